@@ -212,8 +212,6 @@ class PDFAccessibility(Stack):
                             items_path=sfn.JsonPath.string_at("$.chunks"),
                             result_path="$.MapResults")
 
-        map_state.item_processor(ecs_task_1.next(ecs_task_2))
-
         cloudwatch_logs_policy = iam.PolicyStatement(
                     actions=["cloudwatch:PutMetricData"],  # Allow PutMetricData action
                     resources=["*"],  # All CloudWatch resources # All CloudWatch Logs resources
@@ -227,18 +225,48 @@ class PDFAccessibility(Stack):
                 'BUCKET_NAME': bucket.bucket_name  # this line sets the environment variable
             },
             timeout=Duration.seconds(900),
-            memory_size=1024
+            memory_size=1024,
+            # Restore from a snapshot taken after App primes itself, instead of cold starting
+            snap_start=lambda_.SnapStartConf.ON_PUBLISHED_VERSIONS
         )
+        # SnapStart only applies to published versions, so invoke through an alias of the latest one
+        java_lambda_live = lambda_.Alias(self, 'JavaLambdaLive',
+                                         alias_name='live',
+                                         version=java_lambda.current_version)
 
         java_lambda.add_to_role_policy(cloudwatch_logs_policy)
         java_lambda_task = tasks.LambdaInvoke(self, "Invoke Java Lambda",
-                                      lambda_function=java_lambda,
+                                      lambda_function=java_lambda_live,
                                       payload=sfn.TaskInput.from_object({
         "fileNames.$": "$.chunks[*].s3_key"
                      }),
                                       output_path=sfn.JsonPath.string_at("$.Payload"))
         bucket.grant_read_write(java_lambda)
 
+        # A merge that nears the Lambda timeout saves a checkpoint and returns the input that resumes it
+        java_lambda_resume_task = tasks.LambdaInvoke(self, "Resume Java Lambda",
+                                      lambda_function=java_lambda_live,
+                                      payload=sfn.TaskInput.from_json_path_at("$"),
+                                      output_path=sfn.JsonPath.string_at("$.Payload"))
+        read_continuation = sfn.Pass(self, "Read Merge Continuation",
+                                     parameters={"result.$": "States.StringToJson($)"},
+                                     output_path="$.result.continuation")
+        merge_checkpointed = sfn.Choice(self, "Merge Checkpointed?")
+
+        # Append each chunk to the merge checkpoint as soon as it is remediated, so the merge after the Map
+        # only adds what is left. This only saves time, so a failure here never fails the chunk.
+        java_lambda_incremental_task = tasks.LambdaInvoke(self, "Append Chunk To Merge",
+                                      lambda_function=java_lambda_live,
+                                      payload=sfn.TaskInput.from_object({
+        "fileNames.$": "States.Array($.Overrides.ContainerOverrides[0].Environment[1].Value)",
+        "mergeMode": "incremental"
+                     }),
+                                      result_path=sfn.JsonPath.DISCARD)
+        java_lambda_incremental_task.add_catch(sfn.Pass(self, "Skip Incremental Merge"),
+                                               result_path=sfn.JsonPath.DISCARD)
+
+        map_state.item_processor(ecs_task_1.next(ecs_task_2).next(java_lambda_incremental_task))
+
         # Define the Add Title Lambda function
         host_machine = platform.machine().lower()
         print("Architecture of Machine:",host_machine)
@@ -332,7 +360,11 @@ class PDFAccessibility(Stack):
             output_path="$.Payload"
         )
         
-        chain = map_state.next(java_lambda_task).next(add_title_lambda_task).next(a11y_postcheck_lambda_task)
+        merge_checkpointed.when(
+            sfn.Condition.string_matches("$", '*"status":"checkpointed"*'),
+            read_continuation.next(java_lambda_resume_task).next(merge_checkpointed)
+        ).otherwise(add_title_lambda_task.next(a11y_postcheck_lambda_task))
+        chain = map_state.next(java_lambda_task).next(merge_checkpointed)
 
         parallel_state = sfn.Parallel(self, "ParallelState",
                                       result_path="$.ParallelResults")
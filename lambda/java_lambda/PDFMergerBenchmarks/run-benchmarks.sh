@@ -0,0 +1,31 @@
+#!/bin/bash
+# Runs the merge benchmarks with the GC profiler and, when a baseline is given,
+# fails if any benchmark regressed.
+#
+# Usage: ./run-benchmarks.sh [baseline.json | s3://bucket/key.json]
+#
+# BENCHMARK_THRESHOLD sets the allowed regression as a fraction (default 0.10).
+# BENCHMARK_ARGS is passed on to JMH, e.g. "-p chunks=10,100" for a quicker run.
+# Without it the full matrix runs, which takes over an hour; the deploy gate in
+# buildspec-unified.yml runs "-p chunks=10,100 -p fileAccess=MAPPED" instead,
+# so a baseline for the gate must be recorded with the same arguments.
+set -euo pipefail
+cd "$(dirname "$0")"
+
+BASELINE="${1:-}"
+THRESHOLD="${BENCHMARK_THRESHOLD:-0.10}"
+
+mvn -q -f ../PDFMergerLambda/pom.xml install -DskipTests
+mvn -q package
+
+# shellcheck disable=SC2086
+java -jar target/benchmarks.jar -prof gc -rf json -rff target/results.json ${BENCHMARK_ARGS:-}
+echo "Results written to $(pwd)/target/results.json"
+
+if [ -n "$BASELINE" ]; then
+    if [[ "$BASELINE" == s3://* ]]; then
+        aws s3 cp "$BASELINE" target/baseline.json
+        BASELINE=target/baseline.json
+    fi
+    java -cp target/benchmarks.jar com.example.RegressionCheck "$BASELINE" target/results.json "$THRESHOLD"
+fi
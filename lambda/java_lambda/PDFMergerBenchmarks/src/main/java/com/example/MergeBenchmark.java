@@ -0,0 +1,139 @@
+package com.example;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Throughput of the merge pipeline in {@link App} over a synthetic corpus.
+ * <p>
+ * {@code mergePDFs} covers the whole pipeline from parsed chunks to a
+ * completed (discarded) upload. The compression benchmarks start from a
+ * freshly merged, uncompressed document for every invocation. Run with
+ * {@code -prof gc} to record allocation rates alongside throughput; for the
+ * compression benchmarks these include the allocations of that setup merge,
+ * so {@link RegressionCheck} only gates their throughput.
+ * The chunks are staged to files, as downloaded chunks are, and parsed with
+ * each {@code CHUNK_FILE_ACCESS} setting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1024m"})
+public class MergeBenchmark {
+
+    @Param({"TEXT", "IMAGES", "TAGGED", "FORMS"})
+    public SyntheticCorpus.Kind corpus;
+
+    @Param({"10", "100", "1000"})
+    public int chunks;
+
+    // A name rather than the enum, which JMH's generated code cannot see
+    @Param({"MAPPED", "BUFFERED"})
+    public String fileAccess;
+
+    private App app;
+    private MergerConfig.FileAccess access;
+    private Path stagingDir;
+    private List<PdfChunk> sources;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        access = MergerConfig.FileAccess.valueOf(fileAccess);
+        stagingDir = Files.createTempDirectory("merge-benchmark");
+        sources = SyntheticCorpus.stage(corpus, chunks, stagingDir.toFile());
+        Map<String, String> env = new HashMap<>(System.getenv());
+        env.put(MergerConfig.CHUNK_FILE_ACCESS, fileAccess);
+        app = new App(new DiscardingS3Client(), MergerConfig.fromMap(env));
+        // The merge logs a line per chunk; keep that out of the measurement and the JMH output
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setOut(originalOut);
+        try (Stream<Path> staged = Files.walk(stagingDir)) {
+            for (Path path : staged.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void mergePDFs() throws IOException {
+        app.mergePDFs(sources, "benchmark", "benchmark/merged_benchmark.pdf", "benchmark.pdf", false);
+    }
+
+    @Benchmark
+    public PDDocument compressAllStreams(MergedDocument document) {
+        app.compressAllStreams(document.destination, "benchmark.pdf");
+        return document.destination;
+    }
+
+    @Benchmark
+    public PDDocument applyCompression(MergedDocument document) {
+        app.applyCompression(document.destination, "benchmark.pdf");
+        return document.destination;
+    }
+
+    /**
+     * A merged but not yet compressed document, rebuilt before every
+     * invocation because compression modifies it in place.
+     */
+    @State(Scope.Thread)
+    public static class MergedDocument {
+        private PDDocument destination;
+        private final List<PDDocument> sources = new ArrayList<>();
+
+        @Setup(Level.Invocation)
+        public void merge(MergeBenchmark benchmark) throws IOException {
+            destination = new PDDocument(MemoryUsageSetting.setupMainMemoryOnly());
+            PDFMergerUtility merger = new PDFMergerUtility();
+            for (PdfChunk chunk : benchmark.sources) {
+                PDDocument source = chunk.load(MemoryUsageSetting.setupMainMemoryOnly(), benchmark.access);
+                sources.add(source);
+                merger.appendDocument(destination, source);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            destination.close();
+            for (PDDocument source : sources) {
+                source.close();
+            }
+            sources.clear();
+        }
+    }
+}
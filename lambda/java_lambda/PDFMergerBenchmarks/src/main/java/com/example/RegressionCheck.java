@@ -0,0 +1,120 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Compares JMH results against a baseline and fails if any benchmark lost
+ * more than the allowed share of its throughput, or allocates that much more
+ * per operation.
+ * <p>
+ * Usage: {@code RegressionCheck <baseline.json> <results.json> [threshold]},
+ * where both files are written with {@code -rf json} and the threshold is a
+ * fraction, 0.10 by default. Benchmarks missing from either file are reported
+ * but do not fail the check.
+ * <p>
+ * The compression benchmarks merge a fresh document before every operation,
+ * and the GC profiler counts that setup in their allocation per operation,
+ * where it drowns out any change in compression itself. Their allocation is
+ * still printed, but only their throughput, which excludes the setup, is
+ * gated.
+ */
+public final class RegressionCheck {
+
+    private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+    private static final Set<String> ALLOCATION_NOT_GATED = Set.of(
+            "com.example.MergeBenchmark.compressAllStreams", "com.example.MergeBenchmark.applyCompression");
+
+    private RegressionCheck() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: RegressionCheck <baseline.json> <results.json> [threshold]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+        Map<String, JSONObject> baseline = load(args[0]);
+        Map<String, JSONObject> results = load(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, JSONObject> entry : results.entrySet()) {
+            JSONObject previous = baseline.get(entry.getKey());
+            if (previous == null) {
+                System.out.println(String.format("NEW        %s", entry.getKey()));
+                continue;
+            }
+            double before = score(previous.getJSONObject("primaryMetric"));
+            double after = score(entry.getValue().getJSONObject("primaryMetric"));
+            boolean slower = after < before * (1 - threshold);
+
+            Double allocatedBefore = allocation(previous);
+            Double allocatedAfter = allocation(entry.getValue());
+            boolean allocatesMore = allocatedBefore != null && allocatedAfter != null
+                    && allocatedAfter > allocatedBefore * (1 + threshold)
+                    && !ALLOCATION_NOT_GATED.contains(entry.getValue().getString("benchmark"));
+
+            if (slower || allocatesMore) {
+                regressions++;
+            }
+            System.out.println(String.format("%-10s %s | ops/s %.3f -> %.3f (%+.1f%%)%s",
+                    slower || allocatesMore ? "REGRESSED" : "OK", entry.getKey(), before, after,
+                    (after / before - 1) * 100,
+                    allocatedBefore != null && allocatedAfter != null
+                            ? String.format(" | B/op %.0f -> %.0f", allocatedBefore, allocatedAfter) : ""));
+        }
+        for (String key : baseline.keySet()) {
+            if (!results.containsKey(key)) {
+                System.out.println(String.format("MISSING    %s", key));
+            }
+        }
+
+        if (regressions > 0) {
+            System.out.println(String.format("%d benchmark(s) regressed by more than %.0f%%", regressions,
+                    threshold * 100));
+            System.exit(1);
+        }
+        System.out.println("No benchmark regressed");
+    }
+
+    /**
+     * Reads a JMH JSON result file, keyed by benchmark name and parameters.
+     */
+    private static Map<String, JSONObject> load(String path) throws IOException {
+        JSONArray runs = new JSONArray(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+        Map<String, JSONObject> byKey = new LinkedHashMap<>();
+        for (int i = 0; i < runs.length(); i++) {
+            JSONObject run = runs.getJSONObject(i);
+            StringBuilder key = new StringBuilder(run.getString("benchmark"));
+            JSONObject params = run.optJSONObject("params");
+            if (params != null) {
+                // Sort the parameters so the key does not depend on their order in the file
+                Map<String, Object> sorted = new TreeMap<>(params.toMap());
+                key.append(' ').append(sorted);
+            }
+            byKey.put(key.toString(), run);
+        }
+        return byKey;
+    }
+
+    private static double score(JSONObject metric) {
+        return metric.getDouble("score");
+    }
+
+    private static Double allocation(JSONObject run) {
+        JSONObject secondary = run.optJSONObject("secondaryMetrics");
+        if (secondary == null || !secondary.has(ALLOCATION_METRIC)) {
+            return null;
+        }
+        return score(secondary.getJSONObject(ALLOCATION_METRIC));
+    }
+}
@@ -0,0 +1,268 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDMarkInfo;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureTreeRoot;
+import org.apache.pdfbox.pdmodel.documentinterchange.markedcontent.PDPropertyList;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDTextField;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates chunk PDFs shaped like the output of the split and remediation
+ * steps, for benchmarking the merge. Generation is deterministic, so every
+ * run measures the same corpus.
+ * <p>
+ * The class and {@link Kind} are public because JMH's generated code, which
+ * lives in a sub-package, reads the corpus parameter.
+ */
+public final class SyntheticCorpus {
+
+    /**
+     * The kinds of document the corpus can be made of.
+     */
+    public enum Kind {
+        /** Pages of plain text. */
+        TEXT,
+        /** Pages with a logo shared by every chunk and a unique JPEG photo. */
+        IMAGES,
+        /** Tagged pages whose paragraphs sit deep in the structure tree. */
+        TAGGED,
+        /** Pages of filled-in form fields with generated appearances. */
+        FORMS
+    }
+
+    private static final int PAGES_PER_CHUNK = 2;
+    private static final int LINES_PER_PAGE = 40;
+    private static final int STRUCTURE_DEPTH = 8;
+    private static final int FIELDS_PER_PAGE = 15;
+
+    private SyntheticCorpus() {
+    }
+
+    /**
+     * Generates a corpus as chunks staged to local files, the way downloaded
+     * chunks are.
+     *
+     * @param kind      The kind of document.
+     * @param chunks    The number of chunks.
+     * @param directory The directory to stage the chunks in.
+     * @return The chunks, in merge order.
+     * @throws IOException If a chunk cannot be generated or written.
+     */
+    static List<PdfChunk> stage(Kind kind, int chunks, File directory) throws IOException {
+        List<PdfChunk> corpus = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            File file = new File(directory, "FINAL_benchmark_chunk_" + (i + 1) + ".pdf");
+            Files.write(file.toPath(), chunk(kind, i));
+            corpus.add(PdfChunk.ofFile("benchmark/" + file.getName(), file));
+        }
+        return corpus;
+    }
+
+    /**
+     * Generates one chunk.
+     *
+     * @param kind  The kind of document.
+     * @param index The position of the chunk in the document.
+     * @return The saved chunk.
+     * @throws IOException If the chunk cannot be generated.
+     */
+    static byte[] chunk(Kind kind, int index) throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            switch (kind) {
+                case TEXT:
+                    addTextPages(doc, index);
+                    break;
+                case IMAGES:
+                    addImagePages(doc, index);
+                    break;
+                case TAGGED:
+                    addTaggedPages(doc, index);
+                    break;
+                case FORMS:
+                    addFormPages(doc, index);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown corpus kind: " + kind);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            doc.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static void addTextPages(PDDocument doc, int index) throws IOException {
+        for (int p = 0; p < PAGES_PER_CHUNK; p++) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page,
+                    PDPageContentStream.AppendMode.OVERWRITE, false)) {
+                contents.beginText();
+                contents.setFont(PDType1Font.HELVETICA, 10);
+                contents.newLineAtOffset(50, 740);
+                for (int line = 0; line < LINES_PER_PAGE; line++) {
+                    contents.showText(sentence(index, p, line));
+                    contents.newLineAtOffset(0, -16);
+                }
+                contents.endText();
+            }
+        }
+    }
+
+    private static void addImagePages(PDDocument doc, int index) throws IOException {
+        // The split step copies shared images, such as a letterhead logo, into every chunk
+        PDImageXObject logo = LosslessFactory.createFromImage(doc, gradient(128, 0x204080));
+        for (int p = 0; p < PAGES_PER_CHUNK; p++) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            PDImageXObject photo = JPEGFactory.createFromImage(doc, photo(400, 300, index * PAGES_PER_CHUNK + p));
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page,
+                    PDPageContentStream.AppendMode.OVERWRITE, false)) {
+                contents.drawImage(logo, 50, 680, 64, 64);
+                contents.drawImage(photo, 50, 300, 400, 300);
+            }
+        }
+    }
+
+    private static void addTaggedPages(PDDocument doc, int index) throws IOException {
+        PDStructureTreeRoot root = new PDStructureTreeRoot();
+        COSDictionary document = structureElement(COSName.DOCUMENT, root.getCOSObject());
+        COSArray documentKids = new COSArray();
+        document.setItem(COSName.K, documentKids);
+        COSArray nums = new COSArray();
+
+        for (int p = 0; p < PAGES_PER_CHUNK; p++) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            page.setStructParents(p);
+
+            // Nest each page's paragraphs a few levels deep, as remediation tools tend to
+            COSDictionary parent = document;
+            COSArray parentKids = documentKids;
+            for (int level = 0; level < STRUCTURE_DEPTH; level++) {
+                COSDictionary section = structureElement(COSName.getPDFName(level == 0 ? "Sect" : "Div"), parent);
+                parentKids.add(section);
+                parent = section;
+                parentKids = new COSArray();
+                section.setItem(COSName.K, parentKids);
+            }
+
+            COSArray markedContentParents = new COSArray();
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page,
+                    PDPageContentStream.AppendMode.OVERWRITE, false)) {
+                contents.setFont(PDType1Font.HELVETICA, 10);
+                for (int line = 0; line < LINES_PER_PAGE; line++) {
+                    COSDictionary paragraph = structureElement(COSName.P, parent);
+                    paragraph.setItem(COSName.PG, page);
+                    paragraph.setInt(COSName.K, line);
+                    parentKids.add(paragraph);
+                    markedContentParents.add(paragraph);
+
+                    COSDictionary properties = new COSDictionary();
+                    properties.setInt(COSName.MCID, line);
+                    contents.beginMarkedContent(COSName.P, PDPropertyList.create(properties));
+                    contents.beginText();
+                    contents.newLineAtOffset(50, 740 - line * 16);
+                    contents.showText(sentence(index, p, line));
+                    contents.endText();
+                    contents.endMarkedContent();
+                }
+            }
+            nums.add(COSInteger.get(p));
+            nums.add(markedContentParents);
+        }
+
+        root.setK(document);
+        COSDictionary parentTree = new COSDictionary();
+        parentTree.setItem(COSName.NUMS, nums);
+        root.getCOSObject().setItem(COSName.PARENT_TREE, parentTree);
+        root.setParentTreeNextKey(PAGES_PER_CHUNK);
+        doc.getDocumentCatalog().setStructureTreeRoot(root);
+        PDMarkInfo markInfo = new PDMarkInfo();
+        markInfo.setMarked(true);
+        doc.getDocumentCatalog().setMarkInfo(markInfo);
+    }
+
+    private static void addFormPages(PDDocument doc, int index) throws IOException {
+        PDAcroForm acroForm = new PDAcroForm(doc);
+        doc.getDocumentCatalog().setAcroForm(acroForm);
+        PDResources resources = new PDResources();
+        resources.put(COSName.getPDFName("Helv"), PDType1Font.HELVETICA);
+        acroForm.setDefaultResources(resources);
+        acroForm.setDefaultAppearance("/Helv 10 Tf 0 g");
+
+        for (int p = 0; p < PAGES_PER_CHUNK; p++) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            for (int f = 0; f < FIELDS_PER_PAGE; f++) {
+                PDTextField field = new PDTextField(acroForm);
+                field.setPartialName(String.format("chunk%d_page%d_field%d", index, p, f));
+                PDAnnotationWidget widget = field.getWidgets().get(0);
+                widget.setRectangle(new PDRectangle(50, 720 - f * 45, 300, 20));
+                widget.setPage(page);
+                page.getAnnotations().add(widget);
+                acroForm.getFields().add(field);
+                field.setValue(sentence(index, p, f));
+            }
+        }
+    }
+
+    private static COSDictionary structureElement(COSName type, COSDictionary parent) {
+        COSDictionary element = new COSDictionary();
+        element.setItem(COSName.TYPE, COSName.getPDFName("StructElem"));
+        element.setItem(COSName.S, type);
+        element.setItem(COSName.P, parent);
+        return element;
+    }
+
+    private static String sentence(int chunk, int page, int line) {
+        return String.format("Chunk %d, page %d, line %d: The quick brown fox jumps over the lazy dog.",
+                chunk, page, line);
+    }
+
+    private static BufferedImage gradient(int size, int baseRgb) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                image.setRGB(x, y, baseRgb + (x << 8) + y);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage photo(int width, int height, int seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int rgb = random.nextInt(0xFFFFFF);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // A noisy walk gives the smooth-but-detailed texture of a photograph
+                rgb = (rgb + random.nextInt(0x030303) - 0x010101) & 0xFFFFFF;
+                image.setRGB(x, y, rgb);
+            }
+        }
+        return image;
+    }
+}
@@ -1,346 +1,1275 @@
 package com.example;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.multipdf.PDFMergerUtility;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.common.PDStream;
-import org.apache.pdfbox.cos.COSName;
-import org.apache.pdfbox.cos.COSObject;
-import org.apache.pdfbox.cos.COSStream;
-import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.crac.Core;
+import org.crac.Resource;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.OptionalInt;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * AWS Lambda function handler for merging PDFs stored in an S3 bucket.
  * This class implements the {@link RequestHandler} interface to process
  * requests containing PDF file names, merge those PDFs, and upload the result
  * back to S3.
+ * <p>
+ * With SnapStart, the handler is also a CRaC {@link Resource}: before the
+ * snapshot is taken it primes itself by merging an embedded sample PDF, so
+ * that restored instances start with PDFBox's fonts loaded and the merge path
+ * already compiled, and after a restore it replaces the S3 client so that no
+ * connection from the snapshot is reused.
+ * <p>
+ * Chunks are read through an {@link ObjectStore}: by default the CRT-based
+ * client, which fetches each chunk with parallel ranged GETs. Downloading,
+ * parsing and appending chunks run as a pipeline on the
+ * {@link ChunkDownloader} and {@link ChunkParser} pools and the merging
+ * thread. The merged PDF is written through a {@link MultipartUploader},
+ * which uploads its parts in parallel as they are produced.
  */
-public class App implements RequestHandler<Map<String, Object>, String> {
+public class App implements RequestHandler<Map<String, Object>, String>, Resource {
 
-    private final AmazonS3 s3Client = AmazonS3ClientBuilder.defaultClient();
+    /** A small tagged PDF with text and an image, merged to prime the function. */
+    private static final String PRIMING_SAMPLE = "/priming-sample.pdf";
+
+    /** The name batch-wide logs and metrics are reported under. */
+    private static final String BATCH_NAME = "batch";
+    private static final String STATUS_SUCCEEDED = "succeeded";
+    private static final String STATUS_CHECKPOINTED = "checkpointed";
+
+    // Replaced after a SnapStart restore, while no request is running
+    private volatile AmazonS3 s3Client;
+    private volatile MultipartUploader uploader;
+    private volatile ObjectStore objectStore;
+    private final MergerConfig config;
+    private final ChunkDownloader chunkDownloader;
+    private final ChunkParser chunkParser;
+    private final MetricsLogger metrics;
+    private final DeflaterPool deflaters;
+    private final StreamCompressor streamCompressor;
+    private final ExecutorService batchExecutor;
+
+    /**
+     * Creates the handler with the default S3 client and the configuration
+     * from the environment. Called once per Lambda instance, or once per
+     * published version when SnapStart is enabled.
+     */
+    public App() {
+        this(AmazonS3ClientBuilder.defaultClient(), MergerConfig.fromEnvironment());
+        this.objectStore = newObjectStore(s3Client, config);
+        Core.getGlobalContext().register(this);
+    }
+
+    /**
+     * Creates the handler with the given S3 client and configuration, for
+     * example to benchmark the merge without a real bucket.
+     *
+     * @param s3Client The S3 client used for downloads and uploads.
+     * @param config   The merger configuration.
+     */
+    App(AmazonS3 s3Client, MergerConfig config) {
+        this(s3Client, new ClassicObjectStore(s3Client), config);
+    }
+
+    /**
+     * Creates the handler with the given S3 client, store to read chunks
+     * from, and configuration.
+     *
+     * @param s3Client    The S3 client used for uploads and metadata.
+     * @param objectStore The store chunks are read from.
+     * @param config      The merger configuration.
+     */
+    App(AmazonS3 s3Client, ObjectStore objectStore, MergerConfig config) {
+        this.s3Client = s3Client;
+        this.objectStore = objectStore;
+        this.config = config;
+        this.chunkDownloader = new ChunkDownloader(config);
+        this.chunkParser = new ChunkParser(config);
+        this.metrics = new MetricsLogger(config.getMetricsNamespace());
+        this.uploader = new MultipartUploader(s3Client, config);
+        // One deflater per compression thread, plus one for the writer of each document merged at once
+        this.deflaters = new DeflaterPool(config.getCompressionPreset(),
+                config.getCompressionParallelism() + config.getBatchConcurrency());
+        this.streamCompressor = new StreamCompressor(config.getCompressionParallelism(),
+                config.getCompressionMinSavingPercent(), deflaters);
+        AtomicInteger batchThreads = new AtomicInteger();
+        this.batchExecutor = Executors.newFixedThreadPool(config.getBatchConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "batch-merge-" + batchThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
     /**
      * Handles the Lambda function request.
      *
      * @param input   The input map containing the file names of PDFs to be merged.
      *                The map should have a key "fileNames" with a list of S3 object
-     *                keys.
+     *                keys. An optional "mergeMode" of "partial" (with a
+     *                "groupIndex") or "final" merges a large document as a tree
+     *                across several invocations; see {@link MergeRequest}.
+     *                Alternatively, a "documents" list of such maps merges a
+     *                batch of documents in one invocation. A "resumeFrom"
+     *                cursor continues a merge from its checkpoint, and a
+     *                "mergeMode" of "incremental" merges a chunk that has
+     *                finished remediation into segments for the full merge.
      * @param context The context object provides methods and properties that
      *                provide
      *                information about the invocation, function, and execution
      *                environment.
      * @return A message indicating the success or failure of the PDF merging
-     *         process.
+     *         process, or for a batch the JSON result of each document. A
+     *         merge that ran out of time returns a JSON object with status
+     *         "checkpointed" and, as "continuation", the input that resumes
+     *         it. An incremental merge returns a JSON object with the
+     *         largest segment it built and the number of chunks it holds.
      */
     @Override
-    @SuppressWarnings("unchecked")
     public String handleRequest(Map<String, Object> input, Context context) {
         String bucketName = System.getenv("BUCKET_NAME"); // Replace with your S3 bucket name
+        if (MergeRequest.isBatch(input)) {
+            return handleBatch(input, bucketName);
+        }
 
-        // Extract the list of file names from the input
-        List<String> pdfKeys = (List<String>) input.get("fileNames");
-        if (pdfKeys == null || pdfKeys.isEmpty()) {
+        // Extract the list of file names, and the level of a tree merge, from the input
+        MergeRequest request;
+        try {
+            request = MergeRequest.fromInput(input);
+        } catch (IllegalArgumentException e) {
+            System.out.println(String.format("Invalid merge request: %s", e.getMessage()));
+            return "Failed to merge PDFs.";
+        }
+        if (request.getFileNames().isEmpty()) {
             return "No files to merge.";
         }
+        String baseFileName = request.baseFileName();
+        String outputKey = request.outputKey();
 
-        List<String> modifiedPdfKeys = pdfKeys.stream()
-                .map(key -> {
-                    int lastSlashIndex = key.lastIndexOf('/');
-                    if (lastSlashIndex != -1) {
-                        String directory = key.substring(0, lastSlashIndex + 1); // Include the slash
-                        String fileName = key.substring(lastSlashIndex + 1);
-                        return directory + "FINAL_" + fileName;
-                    } else {
-                        return "FINAL_" + key; // If no directory is found, prepend "FINAL_"
-                    }
-                })
-                .collect(Collectors.toList());
-
-        String baseFileName = pdfKeys.get(0).substring(pdfKeys.get(0).lastIndexOf('/') + 1).replaceAll("_chunk_\\d+",
-                "");
-        String mergedFilePath = "/tmp/merged_" + baseFileName;
-        String outputKey = String.format("temp/%s/merged_%s", baseFileName.replace(".pdf", ""), baseFileName);
+        // Everything this invocation writes to /tmp goes into a directory of its own, deleted at the end
+        ScratchSpace scratch;
+        try {
+            scratch = ScratchSpace.open(new File(config.getScratchDir()));
+        } catch (IOException e) {
+            System.out.println(String.format("Filename: %s | Operation: Scratch | Error: %s", baseFileName,
+                    e.getMessage()));
+            return "Failed to merge PDFs.";
+        }
 
         try {
-            // Download PDFs from S3
-            for (String key : modifiedPdfKeys) {
-                downloadPDF(bucketName, key, baseFileName);
+            // Stop early enough to save a checkpoint before the Lambda timeout
+            Deadline deadline = Deadline.of(context, config.getCheckpointReserveSeconds() * 1000L);
+            if (request.getMode() == MergeRequest.Mode.INCREMENTAL) {
+                return mergeSegments(request, bucketName, scratch, deadline).toString();
             }
-
-            // Merge the PDFs
-            mergePDFs(modifiedPdfKeys, mergedFilePath, baseFileName);
-
-            // Upload merged PDF back to S3
-            uploadPDF(bucketName, outputKey, mergedFilePath, baseFileName);
+            MergeOutcome outcome = mergeDocument(request, bucketName, scratch, 1, deadline);
+            if (outcome.continuation != null) {
+                return new JSONObject().put("status", STATUS_CHECKPOINTED)
+                        .put("continuation", outcome.continuation).toString();
+            }
+            logFileStatus(baseFileName);
 
             // return "PDFs merged successfully and uploaded to: " + outputKey;
 
             return String.format("PDFs merged successfully.\nBucket: %s\nMerged File Key: %s\nMerged File Name: %s",
                     bucketName, outputKey, baseFileName);
         } catch (Exception e) {
-            baseFileName = baseFileName.replace(".pdf", "");
-            System.out.println("File: " + baseFileName + ", Status: Failed in Merging the PDF");
-            System.out.println(String.format("Filename: %s, File not found: %s", baseFileName, e.getMessage()));
+            logFailure(baseFileName, e);
+            return "Failed to merge PDFs.";
+        } finally {
+            cleanUp(scratch, baseFileName);
+        }
+    }
+
+    /**
+     * Merges every document of a batch input on the batch worker pool, so
+     * that a burst of small documents shares one invocation, its warm S3
+     * client and compiled code instead of paying for an invocation each. A
+     * document that fails does not affect the others.
+     *
+     * @param input      The batch input, with a {@code documents} list.
+     * @param bucketName The name of the S3 bucket.
+     * @return A JSON object with the result of each document, in batch
+     *         order, and the number that succeeded and failed.
+     */
+    private String handleBatch(Map<String, Object> input, String bucketName) {
+        List<Map<String, Object>> documents;
+        try {
+            documents = MergeRequest.documentsOf(input);
+        } catch (IllegalArgumentException e) {
+            System.out.println(String.format("Invalid merge request: %s", e.getMessage()));
             return "Failed to merge PDFs.";
         }
+        if (documents.isEmpty()) {
+            return "No files to merge.";
+        }
+
+        ScratchSpace scratch;
+        try {
+            scratch = ScratchSpace.open(new File(config.getScratchDir()));
+        } catch (IOException e) {
+            System.out.println(String.format("Filename: %s | Operation: Scratch | Error: %s", BATCH_NAME,
+                    e.getMessage()));
+            return "Failed to merge PDFs.";
+        }
+
+        try {
+            MetricsLogger.Phase batch = metrics.start("batch", BATCH_NAME);
+            int concurrentMerges = Math.min(config.getBatchConcurrency(), documents.size());
+            List<Future<JSONObject>> futures = new ArrayList<>(documents.size());
+            for (int i = 0; i < documents.size(); i++) {
+                int index = i;
+                futures.add(batchExecutor.submit(
+                        () -> mergeBatchDocument(documents.get(index), index, bucketName, scratch, concurrentMerges)));
+            }
+
+            JSONArray results = new JSONArray();
+            int succeeded = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                JSONObject result;
+                try {
+                    result = futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result = failedDocument(i, e);
+                } catch (ExecutionException e) {
+                    result = failedDocument(i, e.getCause());
+                }
+                if (STATUS_SUCCEEDED.equals(result.getString("status"))) {
+                    succeeded++;
+                }
+                results.put(result);
+            }
+            int failed = documents.size() - succeeded;
+            batch.count("Documents", documents.size()).count("Succeeded", succeeded).count("Failed", failed).end();
+            System.out.println(String.format(
+                    "Filename: %s | Operation: Batch | Documents: %d, Succeeded: %d, Failed: %d, Concurrency: %d",
+                    BATCH_NAME, documents.size(), succeeded, failed, concurrentMerges));
+
+            return new JSONObject().put("documents", results).put("succeeded", succeeded).put("failed", failed)
+                    .toString();
+        } finally {
+            cleanUp(scratch, BATCH_NAME);
+        }
+    }
+
+    /**
+     * Merges one document of a batch in a working directory of its own,
+     * which is deleted as soon as the document is done. Called concurrently
+     * from the batch worker pool.
+     *
+     * @param input            The input of the document.
+     * @param index            The position of the document in the batch.
+     * @param bucketName       The name of the S3 bucket.
+     * @param scratch          The working directory of the invocation.
+     * @param concurrentMerges The number of documents merged at the same time.
+     * @return The result of the document.
+     */
+    private JSONObject mergeBatchDocument(Map<String, Object> input, int index, String bucketName,
+            ScratchSpace scratch, int concurrentMerges) {
+        MergeRequest request;
+        try {
+            request = MergeRequest.fromBatchEntry(input);
+        } catch (IllegalArgumentException e) {
+            System.out.println(String.format("Invalid merge request: %s", e.getMessage()));
+            return failedDocument(index, e);
+        }
+        if (request.getFileNames().isEmpty()) {
+            return new JSONObject().put("index", index).put("status", "skipped").put("message", "No files to merge.");
+        }
+
+        String baseFileName = request.baseFileName();
+        JSONObject result = new JSONObject().put("index", index).put("fileName", baseFileName);
+        try (ScratchSpace documentScratch = scratch.child("document-" + index)) {
+            MergeOutcome outcome = mergeDocument(request, bucketName, documentScratch, concurrentMerges,
+                    Deadline.NONE);
+            logFileStatus(baseFileName);
+            return result.put("status", STATUS_SUCCEEDED).put("outputKey", request.outputKey())
+                    .put("upToDate", outcome.upToDate);
+        } catch (Exception e) {
+            logFailure(baseFileName, e);
+            return result.put("status", "failed").put("message", String.valueOf(e.getMessage()));
+        }
+    }
+
+    private static JSONObject failedDocument(int index, Throwable cause) {
+        return new JSONObject().put("index", index).put("status", "failed")
+                .put("message", String.valueOf(cause.getMessage()));
+    }
+
+    /**
+     * Downloads the chunks of one document and merges them into its output
+     * key, unless the output is already there with the fingerprint of the
+     * same inputs, as it is when a completed merge is retried. The merged
+     * object is stored with the fingerprint of the chunks it was built from.
+     * <p>
+     * A merge continues from the checkpoint of the document, saved at a
+     * deadline, if every chunk it holds is older than it, and reads the
+     * segments incremental merges built in place of their chunks. If the
+     * deadline passes first, the merge is saved as a checkpoint instead;
+     * once a resumed merge completes, its checkpoint is deleted.
+     *
+     * @param request          The document to merge.
+     * @param bucketName       The name of the S3 bucket.
+     * @param scratch          The working directory for the document.
+     * @param concurrentMerges The number of documents merged at the same
+     *                         time, which share the heap limit.
+     * @param deadline         The time to save a checkpoint by.
+     * @return How the merge ended.
+     * @throws IOException If the document cannot be downloaded or merged.
+     */
+    private MergeOutcome mergeDocument(MergeRequest request, String bucketName, ScratchSpace scratch,
+            int concurrentMerges, Deadline deadline) throws IOException {
+        List<String> namedKeys = request.namedSourceKeys();
+        String baseFileName = request.baseFileName();
+        String outputKey = request.outputKey();
+        if (request.getMode() != MergeRequest.Mode.FULL) {
+            System.out.println(String.format("Filename: %s | Operation: Tree merge | Mode: %s, Inputs: %d, Output: %s",
+                    baseFileName, request.getMode().name().toLowerCase(Locale.ROOT), namedKeys.size(),
+                    outputKey));
+        }
+
+        if (isUpToDate(bucketName, namedKeys, outputKey, baseFileName)) {
+            return MergeOutcome.UP_TO_DATE;
+        }
+        // The ETags of the named files already merged into the checkpoint, as of when they were merged
+        List<String> checkpointedETags = checkpointedETags(request, bucketName);
+        request = request.resumingFrom(checkpointedETags.size());
+        SegmentPlan segments = request.getMode() == MergeRequest.Mode.FULL
+                ? segmentsOf(request, bucketName) : new SegmentPlan();
+        request = request.withSegments(segments.segments);
+        List<String> modifiedPdfKeys = request.sourceKeys();
+        MergeRequest merging = request;
+
+        // Download PDFs from S3 in parallel, either to /tmp or straight into memory, a window ahead of the merge
+        MetricsLogger.Phase download = metrics.start("download", baseFileName);
+        OptionalInt checkpointed;
+        try (ChunkDownloader.InOrder<PdfChunk> chunks = chunkDownloader.fetchInOrder(modifiedPdfKeys,
+                chunkFetch(bucketName, baseFileName, scratch), config.getPipelineDepth(), baseFileName)) {
+            // The merge starts on the first chunks as they arrive, so the download is reported when the last does
+            chunks.whenFetched().thenAccept(fetched -> {
+                long downloadedBytes = 0;
+                for (PdfChunk chunk : fetched) {
+                    downloadedBytes += chunk.exists() ? chunk.length() : 0;
+                }
+                download.bytesOut(downloadedBytes).count("Chunks", fetched.size()).end();
+                scratch.sample();
+            });
+
+            // Merge the PDFs, uploading the result to S3 while it is written
+            checkpointed = mergePDFs(chunks, bucketName, outputKey, baseFileName,
+                    request.getMode() == MergeRequest.Mode.FINAL,
+                    merged -> completeMergeTarget(merging, checkpointedETags, segments, merged), scratch,
+                    concurrentMerges, deadline, request, segments.segmentETags);
+        }
+        if (checkpointed.isPresent()) {
+            Map<String, Object> continuation = request.continuation(checkpointed.getAsInt());
+            System.out.println(String.format(
+                    "Filename: %s | Operation: Checkpoint | Key: %s, Resume from: %s of %d files", baseFileName,
+                    request.checkpointKey(), continuation.get(MergeRequest.RESUME_FROM),
+                    request.getFileNames().size()));
+            return MergeOutcome.checkpointed(continuation);
+        }
+        if (request.isResumed()) {
+            deleteCheckpoint(bucketName, request.checkpointKey(), baseFileName);
+        }
+        return MergeOutcome.MERGED;
+    }
+
+    /**
+     * @return How chunks are fetched for a merge: staged to the working
+     *         directory, or read straight into memory.
+     */
+    private ChunkDownloader.Fetch<PdfChunk> chunkFetch(String bucketName, String baseFileName,
+            ScratchSpace scratch) {
+        return config.getInputMode() == MergerConfig.InputMode.STREAM
+                ? key -> readPDF(bucketName, key, baseFileName)
+                : key -> downloadPDF(bucketName, key, baseFileName, scratch);
+    }
+
+    /**
+     * Chooses where the complete merge of a request is uploaded. A merged
+     * PDF records the fingerprint of the versions actually downloaded, so a
+     * chunk replaced meanwhile forces the next merge; a segment stands for
+     * the versions of its chunks it was checked to hold.
+     *
+     * @param request           The request merged.
+     * @param checkpointedETags The ETags of the named files the checkpoint
+     *                          it resumed from holds.
+     * @param segments          The segments merged in place of their chunks.
+     * @param merged            Every source merged, in merge order.
+     * @return The uploader for the merged PDF.
+     */
+    private MultipartUploader completeMergeTarget(MergeRequest request, List<String> checkpointedETags,
+            SegmentPlan segments, List<PdfChunk> merged) {
+        List<String> eTags = new ArrayList<>(checkpointedETags);
+        for (int i = request.isResumed() ? 1 : 0; i < merged.size(); i++) {
+            List<String> chunkETags = segments.chunkETags.get(merged.get(i).getKey());
+            if (chunkETags != null) {
+                eTags.addAll(chunkETags);
+            } else {
+                eTags.add(merged.get(i).getETag());
+            }
+        }
+        return fingerprinted(MergeFingerprint.of(request.namedSourceKeys(), eTags));
+    }
+
+    /**
+     * @param fingerprint The fingerprint of the inputs of a merge, or
+     *                    {@code null} if it is unknown.
+     * @return The uploader that stores it with the merged PDF.
+     */
+    private MultipartUploader fingerprinted(String fingerprint) {
+        if (fingerprint == null) {
+            return uploader;
+        }
+        return uploader.withUserMetadata(Collections.singletonMap(MergeFingerprint.METADATA_KEY, fingerprint));
+    }
+
+    /**
+     * Merges the chunk named in an incremental request into
+     * {@link ChunkSegment segments}: with its sibling in the segment tree if
+     * that has finished remediation, then the resulting segment with its own
+     * sibling if that has been merged, and so on up the tree until a sibling
+     * is missing. A chunk that finishes while its sibling is still being
+     * remediated is merged by the invocation for the sibling, whichever
+     * checks last, or else by the full merge.
+     * <p>
+     * Each invocation only reads the two halves of the segments it builds,
+     * so every chunk is merged once per level of the tree rather than again
+     * for every chunk after it. Invocations for the chunks of one document
+     * may overlap, but never share an object: each segment has its own key,
+     * is only built from halves checked to hold the current version of each
+     * of their chunks, and is stored with the fingerprint of those versions.
+     * The full merge only reads a segment whose fingerprint still matches, so
+     * one built from a chunk that has since been replaced is merged around
+     * rather than trusted. Once the deadline passes, no further segment is
+     * started.
+     *
+     * @param request    The incremental request.
+     * @param bucketName The name of the S3 bucket.
+     * @param scratch    The working directory of the invocation.
+     * @param deadline   The time to stop starting segments by.
+     * @return A JSON object with the largest segment built, if any.
+     * @throws IOException If the halves of a segment cannot be downloaded or
+     *                     merged.
+     */
+    private JSONObject mergeSegments(MergeRequest request, String bucketName, ScratchSpace scratch,
+            Deadline deadline) throws IOException {
+        String baseFileName = request.baseFileName();
+        MetricsLogger.Phase incremental = metrics.start("incremental", baseFileName);
+        ChunkSegment segment = ChunkSegment.chunk(request.chunkNumber());
+        int built = 0;
+        while (!deadline.hasPassed()
+                && metadataOrNull(bucketName, request.segmentKey(segment.sibling())) != null) {
+            ChunkSegment parent = segment.parent();
+            List<String> chunkKeys = request.remediatedKeys(parent);
+            List<String> eTags = chunkDownloader.fetchAll(chunkKeys,
+                    key -> s3Client.getObjectMetadata(bucketName, key).getETag(), baseFileName);
+
+            // Each half is read as the version checked to hold the current chunks, or the segment is not built
+            Map<String, String> pinnedETags = new LinkedHashMap<>();
+            for (ChunkSegment half : Arrays.asList(parent.firstHalf(), parent.secondHalf())) {
+                List<String> halfETags = eTags.subList(half.getFirst() - parent.getFirst(),
+                        half.getLast() - parent.getFirst() + 1);
+                ObjectMetadata metadata = half.isChunk() ? null
+                        : metadataOrNull(bucketName, request.segmentKey(half));
+                if (!half.isChunk() && !isSegmentOf(metadata, request.remediatedKeys(half), halfETags)) {
+                    System.out.println(String.format(
+                            "Filename: %s | Operation: Incremental merge | Segment of %s is out of date", baseFileName,
+                            half));
+                    break;
+                }
+                pinnedETags.put(request.segmentKey(half), half.isChunk() ? halfETags.get(0) : metadata.getETag());
+            }
+            if (pinnedETags.size() < 2) {
+                break;
+            }
+
+            String segmentKey = request.segmentKey(parent);
+            System.out.println(String.format("Filename: %s | Operation: Incremental merge | Merging %s into %s",
+                    baseFileName, parent, segmentKey));
+            String fingerprint = MergeFingerprint.of(chunkKeys, eTags);
+            try (ChunkDownloader.InOrder<PdfChunk> halves = chunkDownloader.fetchInOrder(
+                    new ArrayList<>(pinnedETags.keySet()), chunkFetch(bucketName, baseFileName, scratch),
+                    baseFileName)) {
+                mergePDFs(halves, bucketName, segmentKey, baseFileName, false, merged -> fingerprinted(fingerprint),
+                        scratch, 1, Deadline.NONE, null, pinnedETags);
+            }
+            segment = parent;
+            built++;
+        }
+        incremental.count("Segments", built).count("SegmentChunks", built > 0 ? segment.size() : 0).end();
+        if (built == 0) {
+            System.out.println(String.format(
+                    "Filename: %s | Operation: Incremental merge | Chunk: %d held until its sibling is done",
+                    baseFileName, segment.getFirst()));
+            return new JSONObject().put("status", "held").put("mergedChunks", 0);
+        }
+        return new JSONObject().put("status", "merged").put("segment", request.segmentKey(segment))
+                .put("mergedChunks", segment.size());
+    }
+
+    /**
+     * Plans which segments a full merge reads in place of the chunks after
+     * its checkpoint: wherever a segment starts, the largest that still
+     * holds the current version of each of its chunks. The segments are only
+     * looked up if the first pair of those chunks was merged, so a document
+     * merged without incremental merges costs one lookup. Any failure here
+     * only means merging the chunks themselves.
+     *
+     * @param request    The full merge, resumed from its checkpoint if any.
+     * @param bucketName The name of the S3 bucket.
+     * @return The segments to read.
+     */
+    private SegmentPlan segmentsOf(MergeRequest request, String bucketName) {
+        String baseFileName = request.baseFileName();
+        int start = request.getResumeFrom() + 1;
+        int lastChunk = request.getFileNames().size();
+        int firstPair = start % 2 == 1 ? start : start + 1;
+        if (firstPair + 1 > lastChunk) {
+            return new SegmentPlan();
+        }
+        try {
+            if (metadataOrNull(bucketName, request.segmentKey(ChunkSegment.of(firstPair, firstPair + 1))) == null) {
+                return new SegmentPlan();
+            }
+            List<String> eTags = chunkDownloader.fetchAll(request.namedSourceKeys().subList(start - 1, lastChunk),
+                    key -> s3Client.getObjectMetadata(bucketName, key).getETag(), baseFileName);
+            List<ChunkSegment> candidates = new ArrayList<>();
+            for (int number = start; number < lastChunk; number++) {
+                candidates.addAll(ChunkSegment.startingAt(number, lastChunk));
+            }
+            List<String> candidateKeys = new ArrayList<>(candidates.size());
+            for (ChunkSegment candidate : candidates) {
+                candidateKeys.add(request.segmentKey(candidate));
+            }
+            List<ObjectMetadata> found = chunkDownloader.fetchAll(candidateKeys,
+                    key -> metadataOrNull(bucketName, key), baseFileName);
+            Map<ChunkSegment, ObjectMetadata> existing = new HashMap<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                if (found.get(i) != null) {
+                    existing.put(candidates.get(i), found.get(i));
+                }
+            }
+
+            SegmentPlan plan = new SegmentPlan();
+            int number = start;
+            while (number <= lastChunk) {
+                int next = number + 1;
+                for (ChunkSegment candidate : ChunkSegment.startingAt(number, lastChunk)) {
+                    List<String> chunkETags = eTags.subList(candidate.getFirst() - start,
+                            candidate.getLast() - start + 1);
+                    ObjectMetadata metadata = existing.get(candidate);
+                    if (metadata != null && isSegmentOf(metadata, request.remediatedKeys(candidate), chunkETags)) {
+                        plan.add(request.segmentKey(candidate), candidate, metadata.getETag(), chunkETags);
+                        next = candidate.getLast() + 1;
+                        break;
+                    }
+                }
+                number = next;
+            }
+            System.out.println(String.format(
+                    "Filename: %s | Operation: Segments | Reading %d segments in place of %d of %d chunks",
+                    baseFileName, plan.segments.size(), plan.chunks, lastChunk - start + 1));
+            return plan;
+        } catch (IOException | RuntimeException e) {
+            System.out.println(String.format("Filename: %s | Operation: Segments | Warning: %s", baseFileName,
+                    e.getMessage()));
+            return new SegmentPlan();
+        }
+    }
+
+    /**
+     * @param segment   The metadata of a merged segment, or {@code null}.
+     * @param chunkKeys The remediated keys of the chunks it holds.
+     * @param eTags     The current ETag of each of those chunks.
+     * @return Whether the segment was built from those versions of the chunks.
+     */
+    private static boolean isSegmentOf(ObjectMetadata segment, List<String> chunkKeys, List<String> eTags) {
+        String fingerprint = MergeFingerprint.of(chunkKeys, eTags);
+        return segment != null && fingerprint != null
+                && fingerprint.equals(segment.getUserMetaDataOf(MergeFingerprint.METADATA_KEY));
+    }
+
+    /**
+     * Reads how many of the named files of a request its checkpoint holds,
+     * and the ETag of each. A checkpoint is only used if every one of those
+     * files is older than it, so one replaced after it was merged forces the
+     * merge to start over, and the stale checkpoint is deleted. Any failure
+     * here also means starting over.
+     *
+     * @param request    The request to resume.
+     * @param bucketName The name of the S3 bucket.
+     * @return The ETags of the named files in the checkpoint, in merge order;
+     *         empty if there is no usable checkpoint.
+     */
+    private List<String> checkpointedETags(MergeRequest request, String bucketName) {
+        String baseFileName = request.baseFileName();
+        try {
+            ObjectMetadata checkpoint = metadataOrNull(bucketName, request.checkpointKey());
+            int files = checkpointedFiles(checkpoint);
+            if (files == 0 || files > request.getFileNames().size()) {
+                if (checkpoint != null) {
+                    deleteCheckpoint(bucketName, request.checkpointKey(), baseFileName);
+                }
+                if (request.isResumed()) {
+                    System.out.println(String.format(
+                            "Filename: %s | Operation: Checkpoint | Warning: No checkpoint of %d files, merging from the start",
+                            baseFileName, request.getFileNames().size()));
+                }
+                return Collections.emptyList();
+            }
+            List<ObjectMetadata> merged = chunkDownloader.fetchAll(request.namedSourceKeys().subList(0, files),
+                    key -> s3Client.getObjectMetadata(bucketName, key), baseFileName);
+            List<String> eTags = new ArrayList<>(files);
+            for (ObjectMetadata file : merged) {
+                if (!file.getLastModified().before(checkpoint.getLastModified())) {
+                    System.out.println(String.format(
+                            "Filename: %s | Operation: Checkpoint | Warning: File %d changed after it was checkpointed, merging from the start",
+                            baseFileName, eTags.size() + 1));
+                    deleteCheckpoint(bucketName, request.checkpointKey(), baseFileName);
+                    return Collections.emptyList();
+                }
+                eTags.add(file.getETag());
+            }
+            System.out.println(String.format("Filename: %s | Operation: Checkpoint | Resuming from %d of %d files",
+                    baseFileName, files, request.getFileNames().size()));
+            return eTags;
+        } catch (IOException | RuntimeException e) {
+            System.out.println(String.format("Filename: %s | Operation: Checkpoint | Warning: %s", baseFileName,
+                    e.getMessage()));
+            return Collections.emptyList();
+        }
+    }
+
+    private static int checkpointedFiles(ObjectMetadata checkpoint) {
+        if (checkpoint == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(
+                    String.valueOf(checkpoint.getUserMetaDataOf(MergeRequest.CHECKPOINT_METADATA_KEY))));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return The metadata of an object, or {@code null} if there is none.
+     */
+    private ObjectMetadata metadataOrNull(String bucketName, String key) {
+        try {
+            return s3Client.getObjectMetadata(bucketName, key);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the checkpoint a completed merge resumed from, or one that
+     * cannot be used. A checkpoint left behind is only overwritten by the
+     * next one.
+     */
+    private void deleteCheckpoint(String bucketName, String checkpointKey, String baseFileName) {
+        try {
+            s3Client.deleteObject(bucketName, checkpointKey);
+        } catch (RuntimeException e) {
+            System.out.println(String.format("Filename: %s | Operation: Checkpoint | Warning: %s", baseFileName,
+                    e.getMessage()));
+        }
+    }
+
+    /**
+     * Checks whether the output of a merge is already in S3, built from the
+     * same versions of the same inputs. Only the output is looked up when it
+     * does not exist or carries no fingerprint; otherwise the ETags of the
+     * inputs are looked up in parallel and fingerprinted. Any failure here
+     * only means the merge is done again.
+     *
+     * @param bucketName   The name of the S3 bucket.
+     * @param sourceKeys   The S3 keys to merge, in merge order.
+     * @param outputKey    The S3 key of the merged PDF.
+     * @param baseFileName The base name of the file used for logging purposes.
+     * @return {@code true} if the merge can be skipped.
+     */
+    private boolean isUpToDate(String bucketName, List<String> sourceKeys, String outputKey, String baseFileName) {
+        MetricsLogger.Phase check = metrics.start("idempotency", baseFileName);
+        boolean upToDate = false;
+        try {
+            String stored = null;
+            try {
+                stored = s3Client.getObjectMetadata(bucketName, outputKey)
+                        .getUserMetaDataOf(MergeFingerprint.METADATA_KEY);
+            } catch (AmazonServiceException e) {
+                if (e.getStatusCode() != 404) {
+                    throw e;
+                }
+            }
+            if (stored != null) {
+                List<String> eTags = chunkDownloader.fetchAll(sourceKeys,
+                        key -> s3Client.getObjectMetadata(bucketName, key).getETag(), baseFileName);
+                upToDate = stored.equals(MergeFingerprint.of(sourceKeys, eTags));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println(String.format("Filename: %s | Operation: Idempotency | Warning: %s", baseFileName,
+                    e.getMessage()));
+        }
+        check.count("Skipped", upToDate ? 1 : 0).end();
+        if (upToDate) {
+            System.out.println(String.format(
+                    "Filename: %s | Operation: Idempotency | Output %s is up to date, merge skipped", baseFileName,
+                    outputKey));
+        }
+        return upToDate;
+    }
+
+    private static void logFailure(String baseFileName, Exception e) {
+        String documentName = baseFileName.replace(".pdf", "");
+        System.out.println("File: " + documentName + ", Status: Failed in Merging the PDF");
+        System.out.println(String.format("Filename: %s, File not found: %s", documentName, e.getMessage()));
     }
 
     /**
-     * Downloads a PDF file from S3 to the local temporary directory.
+     * Downloads a PDF file from S3 to the working directory of the invocation.
+     * The size of the object is checked against the free space before any of
+     * it is written, so a full /tmp fails this download with a clear message
+     * rather than a later write with ENOSPC. Called concurrently from the
+     * {@link ChunkDownloader} pool.
      *
      * @param bucketName   The name of the S3 bucket.
      * @param key          The S3 object key of the PDF file to download.
      * @param baseFileName The base name of the file used for logging purposes.
+     * @param scratch      The working directory of the invocation.
+     * @return The downloaded chunk.
      * @throws IOException If there is an issue downloading the file from S3.
      */
-    private void downloadPDF(String bucketName, String key, String baseFileName) throws IOException {
-        File localFile = new File("/tmp/" + key.substring(key.lastIndexOf('/') + 1));
+    private PdfChunk downloadPDF(String bucketName, String key, String baseFileName, ScratchSpace scratch)
+            throws IOException {
+        File localFile = scratch.file(key.substring(key.lastIndexOf('/') + 1));
         System.out.println(String.format("Filename: %s, Downloading file from S3: %s to %s", baseFileName, key,
                 localFile.getPath()));
-        s3Client.getObject(new GetObjectRequest(bucketName, key), localFile);
+        long[] reserved = new long[1];
+        try {
+            return objectStore.download(bucketName, key, localFile, size -> {
+                scratch.reserve(size, key);
+                reserved[0] = size;
+            });
+        } finally {
+            scratch.release(reserved[0]);
+        }
     }
 
     /**
-     * Merges multiple PDF files into a single PDF file.
+     * Reads a PDF file from S3 into memory without staging it on local storage.
+     * Called concurrently from the {@link ChunkDownloader} pool.
      *
-     * @param sourceKeys      The list of S3 object keys representing the PDF files
-     *                        to be merged.
-     * @param destinationPath The file path where the merged PDF will be saved.
+     * @param bucketName   The name of the S3 bucket.
+     * @param key          The S3 object key of the PDF file to read.
+     * @param baseFileName The base name of the file used for logging purposes.
+     * @return The chunk content.
+     * @throws IOException If there is an issue reading the object from S3.
+     */
+    private PdfChunk readPDF(String bucketName, String key, String baseFileName) throws IOException {
+        System.out.println(String.format("Filename: %s, Streaming file from S3: %s", baseFileName, key));
+        return objectStore.read(bucketName, key);
+    }
+
+    /**
+     * Merges multiple PDF chunks into a single PDF file. The chunks are appended
+     * to a destination document, which is compressed and then saved exactly
+     * once, straight into a multipart upload to S3, so the merged document is
+     * never staged on disk or re-parsed. Stream data is
+     * buffered on the heap up to the configured limit and spills to scratch
+     * files beyond it, so large documents complete instead of running out of
+     * memory.
+     * <p>
+     * If the deadline passes, no further chunk is appended and compression
+     * stops, and the partial document is saved to the checkpoint key instead
+     * of the output key. At least two sources are merged before stopping, so
+     * that even a merge resumed from a checkpoint adds a chunk to it.
+     *
+     * @param sourceChunks    The downloaded PDF chunks to be merged, in merge
+     *                        order.
+     * @param bucketName      The name of the S3 bucket to upload to.
+     * @param outputKey       The S3 object key for the merged PDF.
      * @param baseFileName    The base name of the file used for logging purposes.
+     * @param mergingParts    Whether the sources are intermediate parts of a tree
+     *                        merge, whose structure trees are joined into one.
      * @throws IOException If there is an issue merging the PDF files.
      */
-    private void mergePDFs(List<String> sourceKeys, String destinationPath, String baseFileName) throws IOException {
+    void mergePDFs(List<PdfChunk> sourceChunks, String bucketName, String outputKey, String baseFileName,
+            boolean mergingParts) throws IOException {
+        try (ScratchSpace scratch = ScratchSpace.open(new File(config.getScratchDir()))) {
+            mergePDFs(ChunkDownloader.InOrder.of(sourceChunks), bucketName, outputKey, baseFileName, mergingParts,
+                    merged -> uploader, scratch, 1, Deadline.NONE, null, Collections.emptyMap());
+        }
+    }
+
+    /**
+     * Parses each source as soon as it has been downloaded, on the
+     * {@link ChunkParser} pool, and appends it on this thread once every
+     * source before it has been appended, so that downloading, parsing and
+     * appending overlap. Only the pipeline depth of sources is downloaded or
+     * parsed ahead of the one being appended.
+     *
+     * @param target      Chooses the upload of the complete merge, given
+     *                    every source merged.
+     * @param request     The request merged, which names the checkpoint;
+     *                    may be {@code null} without a deadline.
+     * @param pinnedETags The only ETag each of some sources may be merged
+     *                    at, by key, for sources checked before they were
+     *                    downloaded.
+     * @return The number of sources merged into the checkpoint, or nothing if
+     *         the merged PDF was saved to the output key.
+     */
+    private OptionalInt mergePDFs(ChunkDownloader.InOrder<PdfChunk> sourceChunks, String bucketName,
+            String outputKey, String baseFileName, boolean mergingParts,
+            Function<List<PdfChunk>, MultipartUploader> target, ScratchSpace scratch, int concurrentMerges,
+            Deadline deadline, MergeRequest request, Map<String, String> pinnedETags) throws IOException {
         PDFMergerUtility pdfMerger = new PDFMergerUtility();
+        List<PdfChunk> mergedChunks = new ArrayList<>(sourceChunks.size());
+        List<PDDocument> sources = new ArrayList<>(sourceChunks.size());
+        // Like PDFMergerUtility, share the heap limit between the destination and every source
+        MemoryUsageSetting memUsageSetting = createMemoryUsageSetting(scratch.getDirectory(), concurrentMerges)
+                .getPartitionedCopy(sourceChunks.size() + 1);
+        PDDocument destination = new PDDocument(memUsageSetting);
+        StructureTreeMerger structure = new StructureTreeMerger(destination);
+        boolean linearStructure = config.getStructureMerge() == MergerConfig.StructureMerge.LINEAR;
         long totalInputSize = 0;
+        int merged = 0;
+
+        try {
+            MetricsLogger.Phase merge = metrics.start("merge", baseFileName);
+            // Closing stops the downloads and parses a checkpoint leaves behind
+            try (ChunkParser.Ahead parsed = chunkParser.parseAhead(sourceChunks, memUsageSetting,
+                    config.getPipelineDepth())) {
+                while (parsed.hasNext()) {
+                    if (merged >= 2 && deadline.hasPassed()) {
+                        break;
+                    }
+                    ChunkParser.Parsed next = parsed.next();
+                    PdfChunk chunk = next.getChunk();
+                    PDDocument source = next.getDocument();
+                    // Like PDFMergerUtility.mergeDocuments, keep sources open until the destination is saved
+                    sources.add(source);
+                    String pinnedETag = pinnedETags.get(chunk.getKey());
+                    if (pinnedETag != null && !MergeFingerprint.unquoted(pinnedETag)
+                            .equals(MergeFingerprint.unquoted(chunk.getETag()))) {
+                        throw new IOException(String.format("%s changed after its chunks were checked",
+                                chunk.getKey()));
+                    }
+                    merged++;
+                    mergedChunks.add(chunk);
+                    totalInputSize += chunk.length();
+                    System.out.println(String.format("Filename: %s, Adding PDF to merge: %s", baseFileName,
+                            chunk.describe()));
+                    if ((mergingParts || MergeRequest.isSegmentKey(chunk.getKey())) && sources.size() > 1) {
+                        // Keep later parts and segments at the same structure level as the first
+                        MergedPartStructure.unwrapTopDocument(source);
+                    }
+                    if (linearStructure) {
+                        structure.append(pdfMerger, source);
+                    } else {
+                        pdfMerger.appendDocument(destination, source);
+                    }
+                }
+            }
 
-        for (String key : sourceKeys) {
-            String localFilePath = "/tmp/" + key.substring(key.lastIndexOf('/') + 1);
-            File localFile = new File(localFilePath);
+            structure.finish();
+            merge.bytesIn(totalInputSize).count("Documents", sources.size())
+                    .count("Pages", destination.getNumberOfPages())
+                    .count("ParentTreeEntries", structure.getParentTreeSize()).end();
 
-            if (localFile.exists()) {
-                totalInputSize += localFile.length();
-                System.out.println(String.format("Filename: %s, Adding PDF to merge: %s", baseFileName, localFilePath));
-                pdfMerger.addSource(localFile);
-            } else {
-                System.out.println(String.format("Filename: %s, File not found: %s", baseFileName, localFilePath));
+            // Collapse the resources every chunk carries a copy of, so they are compressed and saved once
+            deduplicateResources(destination, baseFileName);
+
+            // Compress the merged document in memory before its one and only save
+            boolean compressed = applyCompression(destination, baseFileName, deadline);
+
+            boolean complete = merged == sourceChunks.size() && compressed;
+            // A checkpoint is only an input to the next merge, so it records what it holds instead of a fingerprint
+            long finalSize = complete
+                    ? savePDF(destination, target.apply(mergedChunks), bucketName, outputKey, baseFileName)
+                    : savePDF(destination, uploader.withUserMetadata(Collections.singletonMap(
+                            MergeRequest.CHECKPOINT_METADATA_KEY, String.valueOf(request.mergedFiles(merged)))),
+                            bucketName, request.checkpointKey(), baseFileName);
+
+            // Scratch files only grow while documents are open, so their size now is the peak spill
+            MetricsLogger.Phase memory = metrics.start("memory", baseFileName);
+            long spilledBytes = scratchFileBytes(memUsageSetting.getTempDir());
+            scratch.sample();
+            memory.bytes("SpilledBytes", spilledBytes).end();
+            System.out.println(String.format(
+                    "Filename: %s | Operation: Memory | Heap limit: %d MB, Spilled to scratch files: %d bytes",
+                    baseFileName, config.getHeapLimitMb() / concurrentMerges, spilledBytes));
+
+            double ratio = ((double) finalSize / totalInputSize) * 100;
+            System.out.println(String.format("Filename: %s | Input size: %d bytes, Final size: %d bytes (%.1f%% of input)",
+                    baseFileName, totalInputSize, finalSize, ratio));
+            if (!complete) {
+                return OptionalInt.of(merged);
+            }
+            System.out.println(
+                    String.format("Filename: %s, PDFs merged successfully into: %s", baseFileName, outputKey));
+            return OptionalInt.empty();
+        } finally {
+            closeQuietly(destination, baseFileName);
+            for (PDDocument source : sources) {
+                closeQuietly(source, baseFileName);
             }
         }
+    }
 
-        pdfMerger.setDestinationFileName(destinationPath);
-        pdfMerger.mergeDocuments(null);
+    /**
+     * Creates the memory policy for one merge: stream data stays on the heap up
+     * to the configured limit and is then written to scratch files.
+     *
+     * @param scratchDir       The working directory of the merge.
+     * @param concurrentMerges The number of merges sharing the heap limit.
+     * @return The memory usage setting for the whole merge.
+     */
+    private MemoryUsageSetting createMemoryUsageSetting(File scratchDir, int concurrentMerges) {
+        long heapLimitBytes = config.getHeapLimitMb() * 1024L * 1024L / concurrentMerges;
+        return MemoryUsageSetting.setupMixed(heapLimitBytes).setTempDir(scratchDir);
+    }
+
+    /**
+     * Sums the size of the PDFBox scratch files in a directory.
+     *
+     * @param scratchDir The scratch directory of the merge.
+     * @return The number of bytes currently held in scratch files.
+     */
+    private static long scratchFileBytes(File scratchDir) {
+        File[] files = scratchDir.listFiles((dir, name) -> name.startsWith("PDFBox") && name.endsWith(".tmp"));
+        long total = 0;
+        if (files != null) {
+            for (File file : files) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
 
-        long sizeBeforeCompression = new File(destinationPath).length();
+    /**
+     * Replaces identical resource streams, such as the fonts and images copied
+     * into every chunk by the split step, with a single shared object. If this
+     * fails, the document is left with the copies it already had.
+     *
+     * @param doc          The merged PDF document.
+     * @param baseFileName The base name of the file used for logging purposes.
+     */
+    private void deduplicateResources(PDDocument doc, String baseFileName) {
+        try {
+            MetricsLogger.Phase deduplicate = metrics.start("deduplicate", baseFileName);
+            DeduplicationResult result = new ResourceDeduplicator().deduplicate(doc.getDocument());
+            deduplicate.count("DuplicateStreams", result.getDuplicateCount())
+                    .bytes("BytesRemoved", result.getBytesRemoved()).end();
 
-        // Apply compression with error handling and fallback
-        applyCompression(destinationPath, baseFileName, totalInputSize, sizeBeforeCompression);
+            System.out.println(String.format(
+                    "Filename: %s | Operation: Resource deduplication | Removed: %d duplicate streams (%d bytes)",
+                    baseFileName, result.getDuplicateCount(), result.getBytesRemoved()));
+
+        } catch (IOException | RuntimeException e) {
+            System.out.println(String.format(
+                    "Filename: %s | Operation: Resource deduplication | Warning: %s",
+                    baseFileName, e.getMessage()));
+        }
     }
 
     /**
-     * Applies compression to a merged PDF file with error handling and fallback
-     * logic.
+     * Applies compression to the merged document before it is saved. A stream
+     * is only replaced by its compressed form when that form is smaller, so the
+     * saved file can never grow because of compression; if compression fails
+     * part way through, the remaining streams are simply saved uncompressed.
      *
-     * @param destinationPath       The file path of the merged PDF.
-     * @param baseFileName          The base name of the file used for logging
-     *                              purposes.
-     * @param totalInputSize        The total size of input files before merging.
-     * @param sizeBeforeCompression The size of the merged file before compression.
+     * @param doc          The merged PDF document.
+     * @param baseFileName The base name of the file used for logging purposes.
      */
-    private void applyCompression(String destinationPath, String baseFileName, long totalInputSize,
-            long sizeBeforeCompression) {
-        PDDocument doc = null;
-        String tempCompressedPath = destinationPath + ".compressed";
+    void applyCompression(PDDocument doc, String baseFileName) {
+        applyCompression(doc, baseFileName, Deadline.NONE);
+    }
 
+    /**
+     * @return {@code false} if compression stopped at the deadline before
+     *         every stream was visited.
+     */
+    private boolean applyCompression(PDDocument doc, String baseFileName, Deadline deadline) {
         try {
-            // Load the merged PDF
-            doc = PDDocument.load(new File(destinationPath));
-
             // Enable compression via object streams (PDF 1.5+)
             doc.setVersion(1.5f);
 
             // Compress all streams in the document
-            compressAllStreams(doc, baseFileName);
-
-            // Save to temporary file
-            doc.save(tempCompressedPath);
-
-            long compressedSize = new File(tempCompressedPath).length();
-
-            // Check if compression actually reduced file size
-            if (compressedSize <= sizeBeforeCompression) {
-                // Compression successful, replace original with compressed version
-                File originalFile = new File(destinationPath);
-                File compressedFile = new File(tempCompressedPath);
-
-                if (originalFile.delete()) {
-                    if (compressedFile.renameTo(originalFile)) {
-                        double compressionRatio = ((double) compressedSize / totalInputSize) * 100;
-                        System.out.println(String.format(
-                                "Filename: %s | Operation: Compression | Input size: %d bytes, Before compression: %d bytes, Final size: %d bytes (%.1f%% of input)",
-                                baseFileName, totalInputSize, sizeBeforeCompression, compressedSize, compressionRatio));
-                        System.out.println(String.format("Filename: %s, PDFs merged successfully into: %s",
-                                baseFileName, destinationPath));
-                    } else {
-                        System.out.println(String.format(
-                                "Filename: %s | Operation: Compression | Warning: Failed to rename compressed file, using uncompressed version",
-                                baseFileName));
-                        fallbackToUncompressed(destinationPath, baseFileName, totalInputSize, sizeBeforeCompression,
-                                tempCompressedPath);
-                    }
-                } else {
-                    System.out.println(String.format(
-                            "Filename: %s | Operation: Compression | Warning: Failed to delete original file, using uncompressed version",
-                            baseFileName));
-                    fallbackToUncompressed(destinationPath, baseFileName, totalInputSize, sizeBeforeCompression,
-                            tempCompressedPath);
-                }
-            } else {
-                // Compression increased file size, use uncompressed version
-                System.out.println(String.format(
-                        "Filename: %s | Operation: Compression | Warning: Compression increased file size from %d to %d bytes, using uncompressed version",
-                        baseFileName, sizeBeforeCompression, compressedSize));
-                fallbackToUncompressed(destinationPath, baseFileName, totalInputSize, sizeBeforeCompression,
-                        tempCompressedPath);
-            }
+            return compressAllStreams(doc, baseFileName, deadline);
 
-        } catch (IOException e) {
-            // Compression failed, log error and use uncompressed merge
+        } catch (RuntimeException e) {
+            // Compression failed, log error and save the remaining streams uncompressed
             System.out.println(
                     String.format("Filename: %s | Operation: Compression | Error: %s", baseFileName, e.getMessage()));
             System.out.println(String.format(
                     "Filename: %s | Operation: Compression | Fallback: Using uncompressed merged PDF", baseFileName));
-            fallbackToUncompressed(destinationPath, baseFileName, totalInputSize, sizeBeforeCompression,
-                    tempCompressedPath);
-
-        } finally {
-            // Ensure PDDocument is closed
-            if (doc != null) {
-                try {
-                    doc.close();
-                } catch (IOException e) {
-                    System.out.println(String.format(
-                            "Filename: %s | Operation: Compression cleanup | Error: Failed to close PDDocument: %s",
-                            baseFileName, e.getMessage()));
-                }
-            }
+            return true;
         }
     }
 
     /**
      * Compresses all streams in the PDF document using FlateDecode compression.
+     * Streams are deflated in parallel by the {@link StreamCompressor}; those
+     * that would not shrink by the configured minimum saving are left
+     * untouched, and large ones predicted from a sample not to are never
+     * deflated in full.
      *
      * @param doc          The PDF document to compress.
      * @param baseFileName The base name of the file used for logging purposes.
      */
-    private void compressAllStreams(PDDocument doc, String baseFileName) {
-        int compressedCount = 0;
-        int skippedCount = 0;
+    void compressAllStreams(PDDocument doc, String baseFileName) {
+        compressAllStreams(doc, baseFileName, Deadline.NONE);
+    }
 
+    private boolean compressAllStreams(PDDocument doc, String baseFileName, Deadline deadline) {
         try {
-            // Iterate through all objects in the document
-            for (COSObject obj : doc.getDocument().getObjects()) {
-                COSBase base = obj.getObject();
-                if (base instanceof COSStream) {
-                    COSStream stream = (COSStream) base;
-
-                    // Check if stream is already compressed
-                    COSBase filter = stream.getDictionaryObject(COSName.FILTER);
-                    if (filter != null) {
-                        skippedCount++;
-                        continue; // Already has a filter, skip
-                    }
-
-                    // Get the uncompressed stream data
-                    byte[] data;
-                    try (java.io.InputStream is = stream.createRawInputStream()) {
-                        data = is.readAllBytes();
-                    } catch (IOException e) {
-                        skippedCount++;
-                        continue;
-                    }
-
-                    // Skip empty or very small streams
-                    if (data == null || data.length < 100) {
-                        skippedCount++;
-                        continue;
-                    }
-
-                    // Apply FlateDecode compression
-                    try {
-                        stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
-                        try (OutputStream os = stream.createOutputStream(COSName.FLATE_DECODE)) {
-                            os.write(data);
-                        }
-                        compressedCount++;
-                    } catch (IOException e) {
-                        // If compression fails, remove the filter and continue
-                        stream.removeItem(COSName.FILTER);
-                        skippedCount++;
-                    }
-                }
-            }
+            MetricsLogger.Phase compression = metrics.start("compression", baseFileName);
+            CompressionResult result = streamCompressor.compress(doc, deadline);
+            compression.bytesIn(result.getBytesBefore()).bytesOut(result.getBytesAfter())
+                    .count("StreamsCompressed", result.getCompressedCount())
+                    .count("StreamsSkipped", result.getSkippedCount())
+                    .count("StreamsPredictedIncompressible", result.getPredictedCount())
+                    .bytes("BytesNotDeflated", result.getPredictedBytes()).end();
 
             System.out.println(String.format(
-                    "Filename: %s | Operation: Stream compression | Compressed: %d streams, Skipped: %d streams",
-                    baseFileName, compressedCount, skippedCount));
+                    "Filename: %s | Operation: Stream compression | Compressed: %d streams (%d to %d bytes), Skipped: %d streams (%d predicted incompressible, %d bytes%s)",
+                    baseFileName, result.getCompressedCount(), result.getBytesBefore(), result.getBytesAfter(),
+                    result.getSkippedCount(), result.getPredictedCount(), result.getPredictedBytes(),
+                    result.isGivenUp() ? ", sampling stopped early" : ""));
+            return !result.isInterrupted();
 
         } catch (Exception e) {
             System.out.println(String.format(
                     "Filename: %s | Operation: Stream compression | Warning: %s",
                     baseFileName, e.getMessage()));
+            return true;
         }
     }
 
     /**
-     * Fallback to using the uncompressed merged PDF and clean up temporary files.
+     * Saves the merged document into a multipart upload to S3. Unless the
+     * classic writer is configured, the document is written with compressed
+     * object streams and a cross-reference stream; if that fails, the upload is
+     * discarded and the document is saved again with PDFBox's own writer.
      *
-     * @param destinationPath       The file path of the merged PDF.
-     * @param baseFileName          The base name of the file used for logging
-     *                              purposes.
-     * @param totalInputSize        The total size of input files before merging.
-     * @param sizeBeforeCompression The size of the merged file before compression.
-     * @param tempCompressedPath    The path to the temporary compressed file.
+     * @param doc          The document to save.
+     * @param target       The uploader that writes to S3.
+     * @param bucketName   The name of the S3 bucket.
+     * @param key          The S3 object key for the merged PDF.
+     * @param baseFileName The base name of the file used for logging purposes.
+     * @return The size of the uploaded PDF in bytes.
+     * @throws IOException If the document cannot be saved or uploaded.
      */
-    private void fallbackToUncompressed(String destinationPath, String baseFileName, long totalInputSize,
-            long sizeBeforeCompression, String tempCompressedPath) {
-        // Clean up temporary compressed file if it exists
-        File tempFile = new File(tempCompressedPath);
-        if (tempFile.exists()) {
-            tempFile.delete();
+    private long savePDF(PDDocument doc, MultipartUploader target, String bucketName, String key,
+            String baseFileName) throws IOException {
+        System.out.println(String.format("Filename: %s, Streaming merged PDF to S3: %s", baseFileName, key));
+        MetricsLogger.Phase save = metrics.start("save", baseFileName);
+        if (config.getWriterMode() == MergerConfig.WriterMode.OBJECT_STREAMS && ObjectStreamWriter.supports(doc)) {
+            S3MultipartOutputStream upload = target.open(bucketName, key);
+            boolean written = false;
+            try {
+                new ObjectStreamWriter(deflaters).write(doc, upload);
+                written = true;
+            } catch (IOException | RuntimeException e) {
+                upload.abort();
+                System.out.println(String.format(
+                        "Filename: %s | Operation: Save | Warning: Object stream writer failed, using classic writer: %s",
+                        baseFileName, e.getMessage()));
+            }
+            if (written) {
+                return completeUpload(upload, key, baseFileName, save);
+            }
         }
 
-        // Log the uncompressed file details
-        double ratio = ((double) sizeBeforeCompression / totalInputSize) * 100;
-        System.out.println(String.format("Filename: %s | Input size: %d bytes, Final size: %d bytes (%.1f%% of input)",
-                baseFileName, totalInputSize, sizeBeforeCompression, ratio));
-        System.out.println(
-                String.format("Filename: %s, PDFs merged successfully into: %s", baseFileName, destinationPath));
+        S3MultipartOutputStream upload = target.open(bucketName, key);
+        try {
+            // PDDocument.save closes its stream even on failure, which would complete a truncated upload
+            doc.save(new NonClosingOutputStream(upload));
+        } catch (IOException | RuntimeException e) {
+            upload.abort();
+            throw e;
+        }
+        return completeUpload(upload, key, baseFileName, save);
     }
 
     /**
-     * Uploads the merged PDF file back to S3.
+     * Completes an upload once the whole document has been written to it. The
+     * save phase ends here; the upload phase only covers the parts still in
+     * flight when serialization finished.
      *
-     * @param bucketName   The name of the S3 bucket.
-     * @param key          The S3 object key for the uploaded merged PDF.
-     * @param filePath     The local file path of the merged PDF.
+     * @return The size of the uploaded object in bytes.
+     */
+    private long completeUpload(S3MultipartOutputStream upload, String key, String baseFileName,
+            MetricsLogger.Phase save) throws IOException {
+        save.bytesOut(upload.getBytesWritten()).end();
+        MetricsLogger.Phase uploadPhase = metrics.start("upload", baseFileName);
+        upload.close();
+        uploadPhase.bytesOut(upload.getBytesWritten()).count("Parts", upload.getPartCount()).end();
+        System.out.println(String.format("Filename: %s | Operation: Upload | Key: %s, Parts: %d, Bytes: %d",
+                baseFileName, key, upload.getPartCount(), upload.getBytesWritten()));
+        return upload.getBytesWritten();
+    }
+
+    /**
+     * Primes the function before a SnapStart snapshot is taken. The sample
+     * goes through the same merge, compression and save as a real request,
+     * but is uploaded to a client that discards it, and its logs and metrics
+     * are suppressed so they do not count as a real merge. A
+     * failure here only costs the warm-up, never the snapshot. The S3 client
+     * is shut down last, so that the snapshot holds no open connections.
+     *
+     * @param context The CRaC context the handler is registered with.
+     */
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        long start = System.nanoTime();
+        try {
+            prime(config.getPrimingIterations());
+            System.out.println(String.format("Operation: Priming | Iterations: %d, Duration: %d ms",
+                    config.getPrimingIterations(), (System.nanoTime() - start) / 1_000_000));
+        } catch (IOException | RuntimeException e) {
+            System.out.println(String.format("Operation: Priming | Warning: %s", e.getMessage()));
+        }
+        s3Client.shutdown();
+        objectStore.close();
+    }
+
+    /**
+     * Replaces the S3 client and object store after a restore. The client in
+     * the snapshot was shut down before it was taken, and its connection
+     * pool, DNS cache and credentials belong to the instance that was
+     * snapshotted.
+     *
+     * @param context The CRaC context the handler is registered with.
+     */
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        AmazonS3 client = AmazonS3ClientBuilder.defaultClient();
+        uploader = uploader.withClient(client);
+        objectStore = newObjectStore(client, config);
+        s3Client = client;
+    }
+
+    private static ObjectStore newObjectStore(AmazonS3 client, MergerConfig config) {
+        if (config.getS3Transfer() == MergerConfig.S3Transfer.CRT) {
+            return new CrtObjectStore(config);
+        }
+        return new ClassicObjectStore(client);
+    }
+
+    /**
+     * Merges two copies of the embedded sample the given number of times,
+     * alternating between a flat merge and a tree merge of parts, so the JIT
+     * compiles the parser, the merge, deduplication, compression and the
+     * writer before the first real request.
+     *
+     * @param iterations The number of sample merges.
+     * @throws IOException If the sample cannot be read or merged.
+     */
+    void prime(int iterations) throws IOException {
+        if (iterations == 0) {
+            return;
+        }
+        byte[] sample;
+        try (InputStream in = App.class.getResourceAsStream(PRIMING_SAMPLE)) {
+            if (in == null) {
+                throw new IOException("Missing priming sample " + PRIMING_SAMPLE);
+            }
+            sample = in.readAllBytes();
+        }
+        // Load the standard 14 font metrics and the glyph list, which PDFBox reads lazily on first use
+        PDType1Font.HELVETICA.getStringWidth("Priming");
+
+        MultipartUploader discarding = uploader.withClient(new DiscardingS3Client());
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < iterations; i++) {
+                MergeRequest request = MergeRequest.fromInput(Collections.<String, Object>singletonMap(
+                        MergeRequest.FILE_NAMES, Arrays.asList("priming_chunk_1.pdf", "priming_chunk_2.pdf")));
+                List<PdfChunk> chunks = new ArrayList<>();
+                for (String key : request.sourceKeys()) {
+                    chunks.add(PdfChunk.ofBytes(key, sample));
+                }
+                try (ScratchSpace scratch = ScratchSpace.open(new File(config.getScratchDir()))) {
+                    mergePDFs(ChunkDownloader.InOrder.of(chunks), "priming", request.outputKey(),
+                            request.baseFileName(), i % 2 == 1, merged -> discarding, scratch, 1, Deadline.NONE,
+                            null, Collections.emptyMap());
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Deletes the working directory of an invocation and reports how much of
+     * /tmp it used at its peak and how much is left.
+     *
+     * @param scratch      The working directory of the invocation.
+     * @param baseFileName The base name of the file used for logging purposes.
+     */
+    private void cleanUp(ScratchSpace scratch, String baseFileName) {
+        MetricsLogger.Phase cleanup = metrics.start("cleanup", baseFileName);
+        scratch.close();
+        cleanup.bytes("ScratchPeak", scratch.getPeakBytes()).bytes("TmpFree", scratch.getUsableBytes())
+                .count("FilesRemoved", scratch.getFilesRemoved()).end();
+        System.out.println(String.format(
+                "Filename: %s | Operation: Scratch cleanup | Peak: %d bytes, Removed: %d files, Free: %d bytes",
+                baseFileName, scratch.getPeakBytes(), scratch.getFilesRemoved(), scratch.getUsableBytes()));
+    }
+
+    /**
+     * Closes a document, logging instead of throwing if that fails.
+     *
+     * @param doc          The document to close.
      * @param baseFileName The base name of the file used for logging purposes.
      */
-    private void uploadPDF(String bucketName, String key, String filePath, String baseFileName) {
-        System.out.println(
-                String.format("Filename: %s, Uploading merged PDF to S3: %s as %s", baseFileName, filePath, key));
-        s3Client.putObject(new PutObjectRequest(bucketName, key, new File(filePath)));
-        logFileStatus(baseFileName);
+    private void closeQuietly(PDDocument doc, String baseFileName) {
+        try {
+            doc.close();
+        } catch (IOException e) {
+            System.out.println(String.format(
+                    "Filename: %s | Operation: Merge cleanup | Error: Failed to close PDDocument: %s",
+                    baseFileName, e.getMessage()));
+        }
     }
 
     /**
@@ -352,4 +1281,69 @@ public class App implements RequestHandler<Map<String, Object>, String> {
         baseFileName = baseFileName.replace(".pdf", "");
         System.out.println(String.format("File: %s, Status: succeeded", baseFileName));
     }
+
+    /**
+     * How the merge of one document ended.
+     */
+    private static final class MergeOutcome {
+
+        static final MergeOutcome MERGED = new MergeOutcome(false, null);
+        static final MergeOutcome UP_TO_DATE = new MergeOutcome(true, null);
+
+        /** Whether the output was already there and nothing was merged. */
+        final boolean upToDate;
+        /** The input that resumes the merge from its checkpoint, if one was saved. */
+        final Map<String, Object> continuation;
+
+        private MergeOutcome(boolean upToDate, Map<String, Object> continuation) {
+            this.upToDate = upToDate;
+            this.continuation = continuation;
+        }
+
+        static MergeOutcome checkpointed(Map<String, Object> continuation) {
+            return new MergeOutcome(false, continuation);
+        }
+    }
+
+    /**
+     * The segments a full merge reads in place of their chunks.
+     */
+    private static final class SegmentPlan {
+
+        /** The segments, in chunk order. */
+        final List<ChunkSegment> segments = new ArrayList<>();
+        /** The ETag each segment was checked at, by key; only that version holds the chunks checked. */
+        final Map<String, String> segmentETags = new HashMap<>();
+        /** The ETags of the chunks each segment holds, by key. */
+        final Map<String, List<String>> chunkETags = new HashMap<>();
+        /** The number of chunks the segments hold. */
+        int chunks;
+
+        void add(String key, ChunkSegment segment, String eTag, List<String> eTags) {
+            segments.add(segment);
+            segmentETags.put(key, eTag);
+            chunkETags.put(key, eTags);
+            chunks += segment.size();
+        }
+    }
+
+    /**
+     * Passes writes through to another stream but leaves it open on close.
+     */
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
 }
@@ -0,0 +1,311 @@
+package com.example;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Fetches PDF chunks from S3 on a bounded pool of worker threads.
+ * <p>
+ * Each chunk is retried independently with exponential backoff, and results
+ * are handed back in the order of the requested keys regardless of the order
+ * in which the downloads finish. Downloads start in key order, so the first
+ * chunks of a merge arrive first and can be merged while the rest are still
+ * downloading. The pool is created once per Lambda instance and reused by
+ * warm invocations.
+ */
+final class ChunkDownloader {
+
+    private static final long RETRY_BASE_DELAY_MILLIS = 200;
+
+    /**
+     * Fetches a single object, for example by writing it to local storage.
+     *
+     * @param <T> The type of the fetched result.
+     */
+    @FunctionalInterface
+    interface Fetch<T> {
+        T fetch(String key) throws IOException;
+    }
+
+    private final ExecutorService executor;
+    private final int maxAttempts;
+
+    /**
+     * Creates a downloader using the concurrency and retry settings from the
+     * given configuration.
+     *
+     * @param config The merger configuration.
+     */
+    ChunkDownloader(MergerConfig config) {
+        this(config.getDownloadConcurrency(), config.getDownloadMaxAttempts());
+    }
+
+    ChunkDownloader(int concurrency, int maxAttempts) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "chunk-download-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Fetches all keys in parallel and returns the results in key order.
+     * If any chunk fails after all retries, the remaining downloads are
+     * cancelled and the first failure is rethrown.
+     *
+     * @param keys         The S3 object keys to fetch, in merge order.
+     * @param fetch        The per-object fetch operation.
+     * @param baseFileName The base name of the file used for logging purposes.
+     * @param <T>          The type of the fetched results.
+     * @return The fetched results, in the same order as {@code keys}.
+     * @throws IOException If a chunk could not be fetched.
+     */
+    <T> List<T> fetchAll(List<String> keys, Fetch<T> fetch, String baseFileName) throws IOException {
+        try (InOrder<T> fetches = fetchInOrder(keys, fetch, baseFileName)) {
+            List<T> results = new ArrayList<>(keys.size());
+            while (fetches.hasNext()) {
+                results.add(fetches.next());
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Starts fetching all keys in parallel, in key order, so that the first
+     * keys are fetched first and a caller can work on them while later ones
+     * are still in flight.
+     *
+     * @param keys         The S3 object keys to fetch, in merge order.
+     * @param fetch        The per-object fetch operation.
+     * @param baseFileName The base name of the file used for logging purposes.
+     * @param <T>          The type of the fetched results.
+     * @return The running fetches, which the caller must close.
+     */
+    <T> InOrder<T> fetchInOrder(List<String> keys, Fetch<T> fetch, String baseFileName) {
+        return fetchInOrder(keys, fetch, keys.size(), baseFileName);
+    }
+
+    /**
+     * Like {@link #fetchInOrder(List, Fetch, String)}, but only fetches a
+     * window of keys ahead of the results taken: the fetch of a key starts
+     * once the result {@code window} keys before it has been taken. A caller
+     * that falls behind thereby holds up the downloads instead of letting
+     * fetched chunks pile up in memory or /tmp.
+     *
+     * @param keys         The S3 object keys to fetch, in merge order.
+     * @param fetch        The per-object fetch operation.
+     * @param window       The number of keys fetched ahead of those taken.
+     * @param baseFileName The base name of the file used for logging purposes.
+     * @param <T>          The type of the fetched results.
+     * @return The running fetches, which the caller must close.
+     */
+    <T> InOrder<T> fetchInOrder(List<String> keys, Fetch<T> fetch, int window, String baseFileName) {
+        return new InOrder<>(keys.size(), window, baseFileName, (index, result) -> executor.submit(() -> {
+            try {
+                result.complete(fetchWithRetry(keys.get(index), fetch, baseFileName));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }));
+    }
+
+    /**
+     * The results of fetches, taken one at a time in key order as each
+     * becomes available. Closing it cancels the fetches not yet taken.
+     *
+     * @param <T> The type of the fetched results.
+     */
+    static final class InOrder<T> implements Closeable {
+        private final List<CompletableFuture<T>> results;
+        private final List<Future<?>> tasks;
+        private final CompletableFuture<List<T>> completion;
+        private final BiFunction<Integer, CompletableFuture<T>, Future<?>> start;
+        private final int window;
+        private final String baseFileName;
+        private int next;
+
+        /**
+         * @param start Starts the fetch of the key at an index, which
+         *              completes the given result.
+         */
+        private InOrder(int size, int window, String baseFileName,
+                BiFunction<Integer, CompletableFuture<T>, Future<?>> start) {
+            this.results = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                results.add(new CompletableFuture<>());
+            }
+            this.tasks = new ArrayList<>(size);
+            this.completion = CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(done -> {
+                        List<T> all = new ArrayList<>(size);
+                        for (CompletableFuture<T> result : results) {
+                            all.add(result.join());
+                        }
+                        return all;
+                    });
+            this.start = start;
+            this.window = window;
+            this.baseFileName = baseFileName;
+            startWindow();
+        }
+
+        /**
+         * @param results Results that are already at hand.
+         * @param <T>     The type of the results.
+         * @return The results, to be taken like those of running fetches.
+         */
+        static <T> InOrder<T> of(List<T> results) {
+            return new InOrder<>(results.size(), results.size(), null, (index, result) -> {
+                result.complete(results.get(index));
+                return result;
+            });
+        }
+
+        private void startWindow() {
+            while (tasks.size() < results.size() && tasks.size() < next + window) {
+                int index = tasks.size();
+                tasks.add(start.apply(index, results.get(index)));
+            }
+        }
+
+        /**
+         * @return The number of keys fetched.
+         */
+        int size() {
+            return results.size();
+        }
+
+        /**
+         * @return Whether a result is left to take.
+         */
+        boolean hasNext() {
+            return next < results.size();
+        }
+
+        /**
+         * Waits for the fetch of the next key, and starts the fetch of the key
+         * that enters the window. If it failed after all retries, the
+         * remaining fetches are cancelled and its failure is rethrown.
+         *
+         * @return The result of the next key.
+         * @throws IOException If the chunk could not be fetched.
+         */
+        T next() throws IOException {
+            T result;
+            try {
+                result = results.get(next).get();
+            } catch (ExecutionException e) {
+                close();
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading chunks", e);
+            }
+            next++;
+            startWindow();
+            if (baseFileName != null) {
+                System.out.println(String.format("Filename: %s, Chunks ready for merge: %d of %d", baseFileName,
+                        next, results.size()));
+            }
+            return result;
+        }
+
+        /**
+         * Gives the result of a key without taking it, so that later stages
+         * can start on it as soon as it is fetched. The key is only fetched
+         * once it enters the window.
+         *
+         * @param index The position of the key.
+         * @return Completes with the result of the key, or with its failure;
+         *         cancelled if this is closed first.
+         */
+        CompletableFuture<T> result(int index) {
+            return results.get(index);
+        }
+
+        /**
+         * @return Completes with every result, in key order, once the last
+         *         fetch succeeds, whether or not the results were taken yet;
+         *         completes exceptionally if a fetch fails.
+         */
+        CompletableFuture<List<T>> whenFetched() {
+            return completion;
+        }
+
+        /**
+         * Cancels the fetches that have not finished.
+         */
+        @Override
+        public void close() {
+            for (Future<?> task : tasks) {
+                task.cancel(true);
+            }
+            for (CompletableFuture<T> result : results) {
+                result.cancel(false);
+            }
+        }
+    }
+
+    private <T> T fetchWithRetry(String key, Fetch<T> fetch, String baseFileName) throws Exception {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return fetch.fetch(key);
+            } catch (IOException | SdkClientException | SdkException e) {
+                if (attempt >= maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+                long delay = RETRY_BASE_DELAY_MILLIS << (attempt - 1);
+                System.out.println(String.format(
+                        "Filename: %s, Download of %s failed (attempt %d of %d), retrying in %d ms: %s",
+                        baseFileName, key, attempt, maxAttempts, delay, e.getMessage()));
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Decides whether a failed download is worth retrying. Service errors are
+     * only retried when S3 reports a server-side or throttling problem; a
+     * missing object, denied access or a full /tmp will not fix itself.
+     */
+    static boolean isRetryable(Exception e) {
+        if (e instanceof ScratchSpace.OutOfSpaceException) {
+            return false;
+        }
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) e;
+            int status = serviceException.getStatusCode();
+            return status >= 500 || status == 429 || "SlowDown".equals(serviceException.getErrorCode());
+        }
+        if (e instanceof AwsServiceException) {
+            AwsServiceException serviceException = (AwsServiceException) e;
+            int status = serviceException.statusCode();
+            return status >= 500 || status == 429 || serviceException.isThrottlingException();
+        }
+        return true;
+    }
+}
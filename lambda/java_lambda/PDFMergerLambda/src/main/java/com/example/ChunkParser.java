@@ -0,0 +1,191 @@
+package com.example;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses downloaded PDF chunks on a bounded pool of worker threads, ahead of
+ * the thread that appends them to the merged document.
+ * <p>
+ * A merge is then a pipeline of three stages: the {@link ChunkDownloader}
+ * pool fetches chunks, this pool parses each one as soon as it arrives, and
+ * the merging thread appends the parsed documents in chunk order. Only a
+ * window of chunks is downloaded or parsed ahead of the one being appended,
+ * so memory stays bounded however many chunks a document has, while network
+ * and CPU work overlap. The pool is created once per Lambda instance and
+ * reused by warm invocations.
+ */
+final class ChunkParser {
+
+    /**
+     * One chunk, parsed and ready to be appended.
+     */
+    static final class Parsed {
+        private final PdfChunk chunk;
+        private final PDDocument document;
+
+        private Parsed(PdfChunk chunk, PDDocument document) {
+            this.chunk = chunk;
+            this.document = document;
+        }
+
+        PdfChunk getChunk() {
+            return chunk;
+        }
+
+        /**
+         * @return The parsed chunk, which the caller must close.
+         */
+        PDDocument getDocument() {
+            return document;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final MergerConfig.FileAccess fileAccess;
+
+    /**
+     * Creates a parser using the parallelism and file access from the given
+     * configuration.
+     *
+     * @param config The merger configuration.
+     */
+    ChunkParser(MergerConfig config) {
+        this(config.getParseConcurrency(), config.getFileAccess());
+    }
+
+    ChunkParser(int concurrency, MergerConfig.FileAccess fileAccess) {
+        this.fileAccess = fileAccess;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "chunk-parse-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Parses chunks as they are fetched, up to {@code depth} chunks ahead of
+     * those taken.
+     *
+     * @param chunks          The chunks being fetched, in merge order.
+     * @param memUsageSetting How the documents may buffer decoded stream data.
+     * @param depth           The number of chunks parsed ahead of those taken.
+     * @return The running parses, which the caller must close.
+     */
+    Ahead parseAhead(ChunkDownloader.InOrder<PdfChunk> chunks, MemoryUsageSetting memUsageSetting, int depth) {
+        return new Ahead(chunks, memUsageSetting, depth);
+    }
+
+    /**
+     * The parsed chunks of one merge, taken one at a time in merge order.
+     * Closing it cancels the downloads not yet finished and closes every
+     * document parsed but not taken.
+     */
+    final class Ahead implements Closeable {
+        private final ChunkDownloader.InOrder<PdfChunk> chunks;
+        private final MemoryUsageSetting memUsageSetting;
+        private final int depth;
+        private final List<CompletableFuture<PDDocument>> documents;
+        private int next;
+
+        private Ahead(ChunkDownloader.InOrder<PdfChunk> chunks, MemoryUsageSetting memUsageSetting, int depth) {
+            this.chunks = chunks;
+            this.memUsageSetting = memUsageSetting;
+            this.depth = depth;
+            this.documents = new ArrayList<>(chunks.size());
+            parseWindow();
+        }
+
+        private void parseWindow() {
+            while (documents.size() < chunks.size() && documents.size() < next + depth) {
+                documents.add(chunks.result(documents.size()).thenApplyAsync(this::parse, executor));
+            }
+        }
+
+        private PDDocument parse(PdfChunk chunk) {
+            try {
+                if (!chunk.exists()) {
+                    // Skipping it would leave a gap in the pages, so fail the merge instead
+                    throw new FileNotFoundException(chunk.describe());
+                }
+                return chunk.load(memUsageSetting, fileAccess);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * @return The number of chunks merged.
+         */
+        int size() {
+            return chunks.size();
+        }
+
+        /**
+         * @return Whether a chunk is left to take.
+         */
+        boolean hasNext() {
+            return next < chunks.size();
+        }
+
+        /**
+         * Waits for the next chunk to be downloaded and parsed, and starts
+         * on the chunk that enters the window.
+         *
+         * @return The next chunk and its document.
+         * @throws IOException If the chunk could not be downloaded or parsed.
+         */
+        Parsed next() throws IOException {
+            PdfChunk chunk = chunks.next();
+            PDDocument document;
+            try {
+                document = documents.get(next).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while parsing chunks", e);
+            }
+            next++;
+            parseWindow();
+            return new Parsed(chunk, document);
+        }
+
+        @Override
+        public void close() {
+            chunks.close();
+            // A parse already running still finishes, so its document is closed once it does
+            for (int i = next; i < documents.size(); i++) {
+                documents.get(i).thenAccept(ChunkParser::closeQuietly);
+            }
+        }
+    }
+
+    private static void closeQuietly(PDDocument document) {
+        try {
+            document.close();
+        } catch (IOException e) {
+            System.out.println(String.format("Failed to close a parsed chunk: %s", e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A run of consecutive chunks of one document, merged ahead of the full merge
+ * by incremental invocations.
+ * <p>
+ * Segments are the aligned blocks of a binary tree over the chunk numbers: a
+ * segment of {@code 2^k} chunks starts after a multiple of {@code 2^k}, so
+ * chunks 1-2, 3-4, 1-4, 5-8 and so on. A segment is built from its two halves
+ * once both exist, each half being a single chunk or a smaller segment. Every
+ * chunk is therefore merged once per level rather than once per chunk that
+ * follows it, and a segment has exactly one way of being built, so two
+ * invocations that build the same one write the same content.
+ */
+final class ChunkSegment {
+
+    private final int first;
+    private final int last;
+
+    private ChunkSegment(int first, int last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * @param number The number of a chunk, counting from 1 as the split step
+     *               does.
+     * @return The segment of that chunk alone, the leaf of the tree.
+     */
+    static ChunkSegment chunk(int number) {
+        return new ChunkSegment(number, number);
+    }
+
+    /**
+     * @param first The number of the first chunk.
+     * @param last  The number of the last chunk.
+     * @return The segment of those chunks.
+     * @throws IllegalArgumentException If the chunks are not an aligned block.
+     */
+    static ChunkSegment of(int first, int last) {
+        int size = last - first + 1;
+        if (first < 1 || size < 1 || Integer.bitCount(size) != 1 || (first - 1) % size != 0) {
+            throw new IllegalArgumentException(String.format("Chunks %d to %d are not a segment", first, last));
+        }
+        return new ChunkSegment(first, last);
+    }
+
+    /**
+     * Lists the segments of two or more chunks that start at a chunk and end
+     * at or before another, largest first.
+     *
+     * @param first     The number of the chunk the segments start at.
+     * @param lastChunk The number of the last chunk they may hold.
+     * @return The candidate segments, largest first.
+     */
+    static List<ChunkSegment> startingAt(int first, int lastChunk) {
+        List<ChunkSegment> segments = new ArrayList<>();
+        for (int size = Integer.highestOneBit(Math.max(1, lastChunk - first + 1)); size >= 2; size /= 2) {
+            if ((first - 1) % size == 0) {
+                segments.add(new ChunkSegment(first, first + size - 1));
+            }
+        }
+        return segments;
+    }
+
+    int getFirst() {
+        return first;
+    }
+
+    int getLast() {
+        return last;
+    }
+
+    /**
+     * @return The number of chunks in the segment.
+     */
+    int size() {
+        return last - first + 1;
+    }
+
+    /**
+     * @return Whether the segment is a single chunk, read from the chunk
+     *         itself rather than from a merged segment.
+     */
+    boolean isChunk() {
+        return first == last;
+    }
+
+    /**
+     * @return The segment this one and its sibling are the halves of.
+     */
+    ChunkSegment parent() {
+        int size = size() * 2;
+        int start = (first - 1) / size * size + 1;
+        return new ChunkSegment(start, start + size - 1);
+    }
+
+    /**
+     * @return The other half of the parent segment.
+     */
+    ChunkSegment sibling() {
+        int size = size();
+        int start = ((first - 1) / size ^ 1) * size + 1;
+        return new ChunkSegment(start, start + size - 1);
+    }
+
+    /**
+     * @return The first half of this segment, which must not be a chunk.
+     */
+    ChunkSegment firstHalf() {
+        return new ChunkSegment(first, first + size() / 2 - 1);
+    }
+
+    /**
+     * @return The second half of this segment, which must not be a chunk.
+     */
+    ChunkSegment secondHalf() {
+        return new ChunkSegment(first + size() / 2, last);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ChunkSegment)) {
+            return false;
+        }
+        ChunkSegment segment = (ChunkSegment) other;
+        return first == segment.first && last == segment.last;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * first + last;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("chunks %d-%d", first, last);
+    }
+}
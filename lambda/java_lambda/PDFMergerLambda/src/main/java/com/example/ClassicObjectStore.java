@@ -0,0 +1,57 @@
+package com.example;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Reads each object with one GET through the blocking v1 S3 client, so a
+ * single TCP stream carries the whole object.
+ */
+final class ClassicObjectStore implements ObjectStore {
+
+    private final AmazonS3 s3Client;
+
+    ClassicObjectStore(AmazonS3 s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    @Override
+    public PdfChunk download(String bucketName, String key, File destination, SizeCheck sizeCheck)
+            throws IOException {
+        try (S3Object object = s3Client.getObject(new GetObjectRequest(bucketName, key))) {
+            try {
+                sizeCheck.accept(object.getObjectMetadata().getContentLength());
+            } catch (IOException e) {
+                // Drop the connection rather than reading the whole body just to discard it
+                object.getObjectContent().abort();
+                throw e;
+            }
+            try (InputStream content = object.getObjectContent()) {
+                Files.copy(content, destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return PdfChunk.ofFile(key, destination).withETag(object.getObjectMetadata().getETag());
+        }
+    }
+
+    @Override
+    public PdfChunk read(String bucketName, String key) throws IOException {
+        try (S3Object object = s3Client.getObject(new GetObjectRequest(bucketName, key));
+                InputStream content = object.getObjectContent()) {
+            return PdfChunk.ofBytes(key, content.readAllBytes()).withETag(object.getObjectMetadata().getETag());
+        }
+    }
+
+    /**
+     * Leaves the S3 client open; it belongs to the caller.
+     */
+    @Override
+    public void close() {
+    }
+}
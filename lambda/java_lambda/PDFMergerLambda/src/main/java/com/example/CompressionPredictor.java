@@ -0,0 +1,114 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Predicts whether a stream is worth deflating from a few small samples of
+ * it, so that large incompressible streams, such as raw image samples, are
+ * neither read into memory nor deflated in full.
+ * <p>
+ * Three windows are sampled, from the start, middle and end of the stream,
+ * and deflated together; the stream is compressed only if the samples shrink
+ * by at least the required share. Samples have less history to match against
+ * than the whole stream, so the prediction errs towards skipping streams
+ * that would only just have qualified. Streams small enough that sampling
+ * would cost as much as deflating them are always accepted.
+ * <p>
+ * A predictor holds the state of one compression pass over a document: once
+ * enough large streams have been sampled and almost none of them were worth
+ * compressing, it stops sampling and rejects the remaining large streams.
+ * Instances are not thread-safe.
+ */
+final class CompressionPredictor {
+
+    static final int SAMPLE_SIZE = 4 * 1024;
+    private static final int SAMPLE_COUNT = 3;
+
+    /** Large streams sampled before the document as a whole may be given up on. */
+    static final int EARLY_EXIT_STREAMS = 32;
+
+    /** The document is given up on if fewer than one in this many sampled streams qualify. */
+    private static final int EARLY_EXIT_RATE = 16;
+
+    private final int minSavingPercent;
+    private final DeflaterPool deflaters;
+    private int sampledCount;
+    private int acceptedCount;
+
+    /**
+     * @param minSavingPercent The share, in percent, by which a stream must
+     *                         shrink to be stored compressed.
+     * @param deflaters        The deflaters the streams will be compressed
+     *                         with.
+     */
+    CompressionPredictor(int minSavingPercent, DeflaterPool deflaters) {
+        this.minSavingPercent = minSavingPercent;
+        this.deflaters = deflaters;
+    }
+
+    /**
+     * Decides whether a stream is worth reading and deflating.
+     *
+     * @param stream The unfiltered stream.
+     * @return {@code true} if the stream should be deflated.
+     * @throws IOException If the stream cannot be read.
+     */
+    boolean worthCompressing(COSStream stream) throws IOException {
+        long length = stream.getLength();
+        if (length <= (long) SAMPLE_COUNT * SAMPLE_SIZE) {
+            return true;
+        }
+        if (hasGivenUp()) {
+            return false;
+        }
+        byte[] sample = readSample(stream, length);
+        sampledCount++;
+        boolean worthwhile = accepts(sample.length,
+                deflaters.deflatedLength(sample, DeflaterPool.StreamType.of(stream)));
+        if (worthwhile) {
+            acceptedCount++;
+        }
+        return worthwhile;
+    }
+
+    /**
+     * @param originalLength   The length of the uncompressed data.
+     * @param compressedLength The length of the deflated data.
+     * @return Whether the saving reaches the required share.
+     */
+    boolean accepts(long originalLength, long compressedLength) {
+        return compressedLength * 100 <= originalLength * (100 - minSavingPercent)
+                && compressedLength < originalLength;
+    }
+
+    /**
+     * @return Whether the large streams of the document are no longer
+     *         sampled, because almost none of those sampled so far qualified.
+     */
+    boolean hasGivenUp() {
+        return sampledCount >= EARLY_EXIT_STREAMS && acceptedCount * EARLY_EXIT_RATE < sampledCount;
+    }
+
+    private static byte[] readSample(COSStream stream, long length) throws IOException {
+        byte[] sample = new byte[SAMPLE_COUNT * SAMPLE_SIZE];
+        long middle = length / 2 - SAMPLE_SIZE / 2;
+        long end = length - SAMPLE_SIZE;
+        try (InputStream in = stream.createRawInputStream()) {
+            readFully(in, sample, 0);
+            in.skipNBytes(middle - SAMPLE_SIZE);
+            readFully(in, sample, SAMPLE_SIZE);
+            in.skipNBytes(end - middle - SAMPLE_SIZE);
+            readFully(in, sample, 2 * SAMPLE_SIZE);
+        }
+        return sample;
+    }
+
+    private static void readFully(InputStream in, byte[] sample, int offset) throws IOException {
+        if (in.readNBytes(sample, offset, SAMPLE_SIZE) < SAMPLE_SIZE) {
+            throw new IOException("Stream is shorter than its /Length");
+        }
+    }
+}
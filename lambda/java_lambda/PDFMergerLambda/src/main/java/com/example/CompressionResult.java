@@ -0,0 +1,100 @@
+package com.example;
+
+/**
+ * Counters describing one stream compression pass over a document.
+ */
+final class CompressionResult {
+
+    private int compressedCount;
+    private int skippedCount;
+    private int predictedCount;
+    private long predictedBytes;
+    private boolean givenUp;
+    private boolean interrupted;
+    private long bytesBefore;
+    private long bytesAfter;
+
+    void recordCompressed(long originalLength, long compressedLength) {
+        compressedCount++;
+        bytesBefore += originalLength;
+        bytesAfter += compressedLength;
+    }
+
+    void recordSkipped() {
+        skippedCount++;
+    }
+
+    void recordPredictedIncompressible(long length) {
+        skippedCount++;
+        predictedCount++;
+        predictedBytes += length;
+    }
+
+    void recordGivenUp() {
+        givenUp = true;
+    }
+
+    void recordInterrupted() {
+        interrupted = true;
+    }
+
+    /**
+     * @return The number of streams that were switched to FlateDecode.
+     */
+    int getCompressedCount() {
+        return compressedCount;
+    }
+
+    /**
+     * @return The number of streams left as they were.
+     */
+    int getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * @return The number of skipped streams that were sampled, or no longer
+     *         sampled, and predicted not to shrink enough.
+     */
+    int getPredictedCount() {
+        return predictedCount;
+    }
+
+    /**
+     * @return The total size of the streams skipped on prediction, none of
+     *         which were read in full.
+     */
+    long getPredictedBytes() {
+        return predictedBytes;
+    }
+
+    /**
+     * @return Whether the remaining large streams were skipped without
+     *         sampling because almost none of the sampled ones qualified.
+     */
+    boolean isGivenUp() {
+        return givenUp;
+    }
+
+    /**
+     * @return Whether the pass stopped at its deadline, leaving some streams
+     *         unvisited.
+     */
+    boolean isInterrupted() {
+        return interrupted;
+    }
+
+    /**
+     * @return The total size of the compressed streams before compression.
+     */
+    long getBytesBefore() {
+        return bytesBefore;
+    }
+
+    /**
+     * @return The total size of the compressed streams after compression.
+     */
+    long getBytesAfter() {
+        return bytesAfter;
+    }
+}
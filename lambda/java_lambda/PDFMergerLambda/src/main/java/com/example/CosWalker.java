@@ -0,0 +1,71 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks the COS object graph of a document.
+ * <p>
+ * {@link COSDocument#getObjects()} only covers objects that were parsed from a
+ * file. A document assembled in memory, such as a merge destination, holds
+ * most of its objects as direct Java references instead, so the graph has to
+ * be walked from the trailer to find them.
+ */
+final class CosWalker {
+
+    private CosWalker() {
+    }
+
+    /**
+     * Finds every stream reachable from the document trailer. Each stream is
+     * returned once, even if it is referenced from several places.
+     *
+     * @param document The document to search.
+     * @return The reachable streams, in discovery order.
+     */
+    static List<COSStream> findStreams(COSDocument document) {
+        List<COSStream> streams = new ArrayList<>();
+        Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<COSBase> pending = new ArrayDeque<>();
+        pending.push(document.getTrailer());
+
+        while (!pending.isEmpty()) {
+            COSBase current = pending.pop();
+            if (current instanceof COSObject) {
+                current = ((COSObject) current).getObject();
+            }
+            if (current == null || !visited.add(current)) {
+                continue;
+            }
+            if (current instanceof COSStream) {
+                streams.add((COSStream) current);
+            }
+            if (current instanceof COSDictionary) {
+                for (COSBase value : ((COSDictionary) current).getValues()) {
+                    if (value != null) {
+                        pending.push(value);
+                    }
+                }
+            } else if (current instanceof COSArray) {
+                for (COSBase value : (COSArray) current) {
+                    if (value != null) {
+                        pending.push(value);
+                    }
+                }
+            }
+        }
+        return streams;
+    }
+}
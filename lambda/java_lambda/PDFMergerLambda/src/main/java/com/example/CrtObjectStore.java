@@ -0,0 +1,116 @@
+package com.example;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reads objects through the AWS CRT-based asynchronous S3 client, which splits
+ * each GET into ranged requests of the configured part size and runs them in
+ * parallel over several connections, so that one object can be read at close
+ * to the network limit of the instance rather than that of one TCP stream.
+ * <p>
+ * ETags are returned without the quotes the v2 SDK keeps, as the v1 client
+ * used for metadata returns them.
+ * <p>
+ * The client is created on first use. It holds native event loops and
+ * connections, so creating it lazily keeps it out of a SnapStart snapshot.
+ */
+final class CrtObjectStore implements ObjectStore {
+
+    private final double targetThroughputGbps;
+    private final long partSizeBytes;
+    private S3AsyncClient client;
+
+    /**
+     * @param targetThroughputGbps The throughput the client sizes its
+     *                             connection pool for.
+     * @param partSizeBytes        The size of each ranged GET.
+     */
+    CrtObjectStore(double targetThroughputGbps, long partSizeBytes) {
+        this.targetThroughputGbps = targetThroughputGbps;
+        this.partSizeBytes = partSizeBytes;
+    }
+
+    /**
+     * @param config The merger configuration.
+     */
+    CrtObjectStore(MergerConfig config) {
+        this(config.getS3TargetThroughputGbps(), config.getDownloadPartSizeMb() * 1024L * 1024L);
+    }
+
+    @Override
+    public PdfChunk download(String bucketName, String key, File destination, SizeCheck sizeCheck)
+            throws IOException {
+        S3AsyncClient s3 = client();
+        HeadObjectResponse head = await(s3.headObject(HeadObjectRequest.builder().bucket(bucketName).key(key).build()));
+        sizeCheck.accept(head.contentLength());
+
+        // A failed attempt may have left part of the file behind, and the transformer only creates new files
+        Files.deleteIfExists(destination.toPath());
+        // Every ranged GET must read the version that was sized
+        GetObjectRequest request = GetObjectRequest.builder().bucket(bucketName).key(key).ifMatch(head.eTag())
+                .build();
+        GetObjectResponse response = await(s3.getObject(request, AsyncResponseTransformer.toFile(destination)));
+        return PdfChunk.ofFile(key, destination).withETag(MergeFingerprint.unquoted(response.eTag()));
+    }
+
+    @Override
+    public PdfChunk read(String bucketName, String key) throws IOException {
+        GetObjectRequest request = GetObjectRequest.builder().bucket(bucketName).key(key).build();
+        ResponseBytes<GetObjectResponse> bytes = await(client().getObject(request, AsyncResponseTransformer.toBytes()));
+        return PdfChunk.ofBytes(key, bytes.asByteArrayUnsafe())
+                .withETag(MergeFingerprint.unquoted(bytes.response().eTag()));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
+    private synchronized S3AsyncClient client() {
+        if (client == null) {
+            client = S3AsyncClient.crtBuilder().targetThroughputInGbps(targetThroughputGbps)
+                    .minimumPartSizeInBytes(partSizeBytes).build();
+        }
+        return client;
+    }
+
+    /**
+     * Waits for a request, rethrowing its failure as the exception the SDK
+     * raised, so that the {@link ChunkDownloader} can decide whether to
+     * retry it.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading from S3");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
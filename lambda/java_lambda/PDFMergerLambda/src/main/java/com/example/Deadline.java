@@ -0,0 +1,42 @@
+package com.example;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+/**
+ * The point in time by which a merge must stop making progress and save a
+ * checkpoint, so that the checkpoint is in S3 before the Lambda timeout ends
+ * the invocation.
+ */
+final class Deadline {
+
+    /** A deadline that never passes. */
+    static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private final long nanoTime;
+
+    private Deadline(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * @param context       The context of the invocation, or {@code null}
+     *                      outside Lambda.
+     * @param reserveMillis The time to keep for saving a checkpoint; 0
+     *                      disables the deadline.
+     * @return The deadline of the invocation.
+     */
+    static Deadline of(Context context, long reserveMillis) {
+        if (context == null || reserveMillis <= 0) {
+            return NONE;
+        }
+        long remainingMillis = context.getRemainingTimeInMillis() - reserveMillis;
+        return new Deadline(System.nanoTime() + remainingMillis * 1_000_000);
+    }
+
+    /**
+     * @return Whether the time to stop has come.
+     */
+    boolean hasPassed() {
+        return this != NONE && System.nanoTime() - nanoTime >= 0;
+    }
+}
@@ -0,0 +1,29 @@
+package com.example;
+
+/**
+ * Counters describing one resource deduplication pass over a document.
+ */
+final class DeduplicationResult {
+
+    private int duplicateCount;
+    private long bytesRemoved;
+
+    void recordDuplicate(long length) {
+        duplicateCount++;
+        bytesRemoved += length;
+    }
+
+    /**
+     * @return The number of streams replaced by an identical copy.
+     */
+    int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * @return The total raw size of the replaced streams.
+     */
+    long getBytesRemoved() {
+        return bytesRemoved;
+    }
+}
@@ -0,0 +1,218 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates stream data with reusable {@link Deflater}s, choosing the level
+ * and strategy from the configured preset and the kind of stream.
+ * <p>
+ * Every {@code Deflater} holds a zlib context of a few hundred kilobytes of
+ * native memory, which is only released by {@link Deflater#end()} or, much
+ * later, by the garbage collector. Keeping up to a fixed number of idle
+ * instances, reset between uses, avoids allocating one per stream. The pool
+ * is safe for concurrent use.
+ */
+final class DeflaterPool {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Kinds of stream that deflate differently.
+     */
+    enum StreamType {
+        /** Page content streams and form XObjects: operator text. */
+        CONTENT,
+        /** Embedded font programs. */
+        FONT,
+        /** XMP metadata and other XML. */
+        METADATA,
+        /** Raw image samples. */
+        IMAGE,
+        /** Everything else, including object and cross-reference streams. */
+        OTHER;
+
+        /**
+         * Classifies a stream by its dictionary.
+         *
+         * @param dictionary The stream dictionary.
+         * @return The kind of stream.
+         */
+        static StreamType of(COSDictionary dictionary) {
+            COSName type = dictionary.getCOSName(COSName.TYPE);
+            COSName subtype = dictionary.getCOSName(COSName.SUBTYPE);
+            if (COSName.IMAGE.equals(subtype)) {
+                return IMAGE;
+            }
+            if (COSName.METADATA.equals(type) || COSName.getPDFName("XML").equals(subtype)) {
+                return METADATA;
+            }
+            // FontFile and FontFile2 programs carry their segment lengths, FontFile3 its format
+            if (dictionary.containsKey(COSName.LENGTH1) || COSName.getPDFName("Type1C").equals(subtype)
+                    || COSName.getPDFName("CIDFontType0C").equals(subtype)
+                    || COSName.getPDFName("OpenType").equals(subtype)) {
+                return FONT;
+            }
+            if (COSName.FORM.equals(subtype) || (type == null && subtype == null)) {
+                return CONTENT;
+            }
+            return OTHER;
+        }
+    }
+
+    private final MergerConfig.CompressionPreset preset;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<Deflater> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger createdCount = new AtomicInteger();
+
+    /**
+     * @param preset  The trade-off between CPU time and output size.
+     * @param maxIdle The number of idle deflaters kept for reuse, typically
+     *                the number of threads that deflate at once.
+     */
+    DeflaterPool(MergerConfig.CompressionPreset preset, int maxIdle) {
+        this.preset = preset;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Deflates data into the zlib format expected by the FlateDecode filter.
+     *
+     * @param data The uncompressed data.
+     * @param type The kind of stream the data belongs to.
+     * @return The compressed data.
+     */
+    byte[] deflate(byte[] data, StreamType type) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+        Deflater deflater = acquire(type);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            release(deflater);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Deflates everything read from one stream into another, holding no more
+     * than two fixed-size buffers of data at a time. Neither stream is closed.
+     *
+     * @param in   The uncompressed data.
+     * @param out  The stream the compressed data is written to.
+     * @param type The kind of stream the data belongs to.
+     * @return The length of the compressed data.
+     * @throws IOException If reading or writing fails.
+     */
+    long deflate(InputStream in, OutputStream out, StreamType type) throws IOException {
+        Deflater deflater = acquire(type);
+        try {
+            byte[] input = new byte[BUFFER_SIZE];
+            byte[] output = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(input)) != -1) {
+                deflater.setInput(input, 0, read);
+                while (!deflater.needsInput()) {
+                    out.write(output, 0, deflater.deflate(output));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(output, 0, deflater.deflate(output));
+            }
+            return deflater.getBytesWritten();
+        } finally {
+            release(deflater);
+        }
+    }
+
+    /**
+     * Deflates data as {@link #deflate} would, counting the output without
+     * keeping it.
+     *
+     * @param data The uncompressed data.
+     * @param type The kind of stream the data belongs to.
+     * @return The length of the compressed data.
+     */
+    long deflatedLength(byte[] data, StreamType type) {
+        Deflater deflater = acquire(type);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long length = 0;
+            while (!deflater.finished()) {
+                length += deflater.deflate(buffer);
+            }
+            return length;
+        } finally {
+            release(deflater);
+        }
+    }
+
+    /**
+     * @return The number of deflaters the pool has created; every other
+     *         deflate reused an idle one.
+     */
+    int getCreatedCount() {
+        return createdCount.get();
+    }
+
+    private Deflater acquire(StreamType type) {
+        Deflater deflater = idle.poll();
+        if (deflater == null) {
+            deflater = new Deflater();
+            createdCount.incrementAndGet();
+        } else {
+            idleCount.decrementAndGet();
+        }
+        // Applied on the first deflate call, before any input has been compressed
+        deflater.setLevel(level(type));
+        deflater.setStrategy(strategy(type));
+        return deflater;
+    }
+
+    private void release(Deflater deflater) {
+        deflater.reset();
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(deflater);
+        } else {
+            idleCount.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    private int level(StreamType type) {
+        switch (preset) {
+            case FAST:
+                return Deflater.BEST_SPEED;
+            case MAX:
+                return Deflater.BEST_COMPRESSION;
+            default:
+                // Raw samples have few long matches to find, so a shallower search costs little size
+                return type == StreamType.IMAGE ? 4 : Deflater.DEFAULT_COMPRESSION;
+        }
+    }
+
+    private int strategy(StreamType type) {
+        if (type == StreamType.IMAGE) {
+            // Sample data has few long repeats, so favour Huffman coding over string matching
+            return preset == MergerConfig.CompressionPreset.FAST ? Deflater.HUFFMAN_ONLY : Deflater.FILTERED;
+        }
+        return Deflater.DEFAULT_STRATEGY;
+    }
+}
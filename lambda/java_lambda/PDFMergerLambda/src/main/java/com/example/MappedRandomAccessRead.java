@@ -0,0 +1,154 @@
+package com.example;
+
+import org.apache.pdfbox.io.RandomAccessRead;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a local file through a read-only memory mapping, for PDFBox to parse.
+ * <p>
+ * PDFBox's own {@code RandomAccessBufferedFileInputStream} copies the file
+ * through a cache of small heap pages, and the parser seeks back and forth
+ * through it. Reading the mapping instead goes straight to the page cache:
+ * nothing is copied onto the heap but the bytes the parser asks for, and the
+ * kernel reads ahead as it sees fit. The mapping is released when the buffer
+ * is collected, after the document has been closed.
+ * <p>
+ * A single mapping holds at most 2 GB, so larger files cannot be mapped.
+ */
+final class MappedRandomAccessRead implements RandomAccessRead {
+
+    private final long length;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Maps a file. The channel is closed at once, since the mapping stays
+     * valid without it.
+     *
+     * @param file The file to read.
+     * @throws IOException If the file cannot be opened or is too large to
+     *                     map.
+     */
+    MappedRandomAccessRead(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (!canMap(size)) {
+                throw new IOException(String.format("Cannot map %s of %d bytes", file, size));
+            }
+            this.length = size;
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * @param size The size of a file in bytes.
+     * @return Whether a file of that size fits in one mapping.
+     */
+    static boolean canMap(long size) {
+        return size <= Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long getPosition() throws IOException {
+        checkClosed();
+        return buffer.position();
+    }
+
+    /**
+     * Moves to a position; a position past the end reads as the end of the
+     * file.
+     */
+    @Override
+    public void seek(long position) throws IOException {
+        checkClosed();
+        if (position < 0) {
+            throw new IOException("Invalid position " + position);
+        }
+        buffer.position((int) Math.min(position, length));
+    }
+
+    @Override
+    public long length() throws IOException {
+        checkClosed();
+        return length;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return buffer == null;
+    }
+
+    @Override
+    public int peek() throws IOException {
+        checkClosed();
+        return buffer.hasRemaining() ? buffer.get(buffer.position()) & 0xff : -1;
+    }
+
+    @Override
+    public void rewind(int bytes) throws IOException {
+        seek(getPosition() - bytes);
+    }
+
+    @Override
+    public byte[] readFully(int length) throws IOException {
+        checkClosed();
+        if (length > buffer.remaining()) {
+            throw new EOFException("Premature end of file");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public boolean isEOF() throws IOException {
+        return peek() == -1;
+    }
+
+    @Override
+    public int available() throws IOException {
+        checkClosed();
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+    }
+
+    private void checkClosed() throws IOException {
+        if (buffer == null) {
+            throw new IOException("MappedRandomAccessRead already closed");
+        }
+    }
+}
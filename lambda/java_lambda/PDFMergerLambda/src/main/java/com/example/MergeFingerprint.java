@@ -0,0 +1,68 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Identifies the inputs of a merge, so that a retried merge whose output is
+ * already in S3 can be skipped.
+ * <p>
+ * The fingerprint is a SHA-256 digest of the source keys, in merge order, and
+ * the ETag of each. S3 gives an object a new ETag whenever it is rewritten,
+ * so the fingerprint changes if any input is replaced, added, removed or
+ * moved. It is stored as user metadata on the merged object.
+ * <p>
+ * The v1 SDK strips the quotes S3 puts around an ETag and the v2 SDK keeps
+ * them, so ETags are digested without quotes whichever client read them.
+ */
+final class MergeFingerprint {
+
+    /** The user metadata key the fingerprint is stored under. S3 lower-cases metadata keys. */
+    static final String METADATA_KEY = "merge-fingerprint";
+
+    /** Changes whenever the inputs are digested differently, so old fingerprints never match. */
+    private static final String VERSION = "1";
+
+    private MergeFingerprint() {
+    }
+
+    /**
+     * @param keys  The source keys, in merge order.
+     * @param eTags The ETag of each source, in the same order.
+     * @return The fingerprint of the inputs, or {@code null} if an ETag is
+     *         missing.
+     */
+    static String of(List<String> keys, List<String> eTags) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < keys.size(); i++) {
+            String eTag = unquoted(eTags.get(i));
+            if (eTag == null) {
+                return null;
+            }
+            // Keys may contain any character, so length prefixes keep the encoding unambiguous
+            digest.update(String.format("%d:%s%d:%s", keys.get(i).length(), keys.get(i), eTag.length(), eTag)
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @param eTag An ETag as a client returned it, or {@code null}.
+     * @return The ETag without surrounding quotes.
+     */
+    static String unquoted(String eTag) {
+        if (eTag != null && eTag.length() >= 2 && eTag.startsWith("\"") && eTag.endsWith("\"")) {
+            return eTag.substring(1, eTag.length() - 1);
+        }
+        return eTag;
+    }
+}
@@ -0,0 +1,513 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The input of one merge invocation.
+ * <p>
+ * Besides merging every chunk at once, a large document can be merged as a
+ * tree across several invocations: each {@link Mode#PARTIAL} invocation merges
+ * a contiguous group of chunks into an intermediate part, and a
+ * {@link Mode#FINAL} invocation concatenates the parts in order. Parts are
+ * ordinary tagged PDFs, so page order and structure are carried through each
+ * level exactly as for chunks.
+ * <p>
+ * A batch input instead carries a {@code documents} list, each entry of which
+ * has the shape of a single request, so that many small documents share one
+ * invocation.
+ * <p>
+ * A request with a {@code resumeFrom} cursor continues a merge that saved a
+ * checkpoint before the Lambda timeout: the checkpoint, which holds the
+ * sources before the cursor merged into one document, is merged with the
+ * sources from the cursor on. Appending to the checkpoint gives the same
+ * page order and structure as merging every source at once.
+ * <p>
+ * An {@link Mode#INCREMENTAL} request names a chunk that has just finished
+ * remediation, and merges it with the chunks already done next to it into
+ * {@link ChunkSegment segments}, so that the full merge that follows mostly
+ * concatenates segments instead of chunks.
+ * <p>
+ * The Map state returns chunks in whatever order they finish, so the named
+ * files are put in the order of the index in their names before anything is
+ * merged, and a request that misses or repeats one is rejected rather than
+ * merged into a document with pages missing or doubled.
+ */
+final class MergeRequest {
+
+    static final String FILE_NAMES = "fileNames";
+    static final String MERGE_MODE = "mergeMode";
+    static final String GROUP_INDEX = "groupIndex";
+    static final String DOCUMENTS = "documents";
+    static final String RESUME_FROM = "resumeFrom";
+
+    /** The user metadata key under which a checkpoint records how many named files it holds. */
+    static final String CHECKPOINT_METADATA_KEY = "merged-files";
+
+    private static final Pattern CHUNK_NAME = Pattern.compile("(.*)_chunk_(\\d+)\\.pdf");
+    private static final Pattern PART_NAME = Pattern.compile("(.*)_part_(\\d+)\\.pdf");
+    private static final Pattern SEGMENT_KEY = Pattern.compile(".*/checkpoints/[^/]*_seg_\\d+_\\d+\\.pdf");
+
+    /**
+     * What an invocation merges and where its result goes.
+     */
+    enum Mode {
+        /** Merges every chunk of a document into the final merged PDF. */
+        FULL,
+        /** Merges a contiguous group of chunks into an intermediate part. */
+        PARTIAL,
+        /** Concatenates intermediate parts into the final merged PDF. */
+        FINAL,
+        /** Merges finished chunks into segments the full merge concatenates. */
+        INCREMENTAL
+    }
+
+    private final Mode mode;
+    private final List<String> fileNames;
+    private final int groupIndex;
+    private final int resumeFrom;
+    private final List<ChunkSegment> segments;
+
+    private MergeRequest(Mode mode, List<String> fileNames, int groupIndex, int resumeFrom,
+            List<ChunkSegment> segments) {
+        this.mode = mode;
+        this.fileNames = fileNames;
+        this.groupIndex = groupIndex;
+        this.resumeFrom = resumeFrom;
+        this.segments = segments;
+    }
+
+    /**
+     * Reads a merge request from the Lambda input. Without a
+     * {@code mergeMode}, every chunk is merged at once.
+     *
+     * @param input The Lambda input.
+     * @return The request.
+     * @throws IllegalArgumentException If the mode is unknown, a partial
+     *                                  merge has no valid {@code groupIndex},
+     *                                  an incremental merge does not name a
+     *                                  chunk, the file names do not form a
+     *                                  sequence as described in
+     *                                  {@link #inIndexOrder(List, Mode)}, or
+     *                                  {@code resumeFrom} is not a position
+     *                                  among the file names.
+     */
+    @SuppressWarnings("unchecked")
+    static MergeRequest fromInput(Map<String, Object> input) {
+        List<String> fileNames = (List<String>) input.get(FILE_NAMES);
+        if (fileNames == null) {
+            fileNames = Collections.emptyList();
+        }
+
+        Mode mode = Mode.FULL;
+        Object modeValue = input.get(MERGE_MODE);
+        if (modeValue != null) {
+            try {
+                mode = Mode.valueOf(modeValue.toString().trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown merge mode: " + modeValue);
+            }
+        }
+
+        int groupIndex = -1;
+        if (mode == Mode.PARTIAL) {
+            Object indexValue = input.get(GROUP_INDEX);
+            try {
+                groupIndex = indexValue instanceof Number ? ((Number) indexValue).intValue()
+                        : Integer.parseInt(String.valueOf(indexValue).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Partial merge needs a numeric groupIndex, got: " + indexValue);
+            }
+            if (groupIndex < 0) {
+                throw new IllegalArgumentException("Partial merge needs a non-negative groupIndex, got: " + groupIndex);
+            }
+        }
+
+        if (mode == Mode.INCREMENTAL && fileNames.isEmpty()) {
+            throw new IllegalArgumentException("Incremental merge needs a chunk, got: " + fileNames);
+        }
+        if (!fileNames.isEmpty()) {
+            fileNames = inIndexOrder(fileNames, mode);
+        }
+
+        int resumeFrom = 0;
+        Object resumeValue = input.get(RESUME_FROM);
+        if (resumeValue != null) {
+            try {
+                resumeFrom = resumeValue instanceof Number ? ((Number) resumeValue).intValue()
+                        : Integer.parseInt(resumeValue.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Resumed merge needs a numeric resumeFrom, got: " + resumeValue);
+            }
+            if (resumeFrom < 0 || resumeFrom > fileNames.size()) {
+                throw new IllegalArgumentException(String.format("Cannot resume from %d of %d files", resumeFrom,
+                        fileNames.size()));
+            }
+        }
+        return new MergeRequest(mode, fileNames, groupIndex, resumeFrom, Collections.emptyList());
+    }
+
+    /**
+     * Reads one document of a batch. A batch only runs whole merges: an
+     * incremental merge builds segments together with the invocations for
+     * the other chunks, and a resumed merge continues from a checkpoint, so
+     * neither belongs in a batch.
+     *
+     * @param input The input of the document.
+     * @return The merge request.
+     * @throws IllegalArgumentException If the input is invalid, incremental
+     *                                  or resumed.
+     */
+    static MergeRequest fromBatchEntry(Map<String, Object> input) {
+        MergeRequest request = fromInput(input);
+        if (request.mode == Mode.INCREMENTAL) {
+            throw new IllegalArgumentException("A batch cannot hold an incremental merge");
+        }
+        if (input.containsKey(RESUME_FROM)) {
+            throw new IllegalArgumentException("A batch cannot hold a resumed merge");
+        }
+        return request;
+    }
+
+    /**
+     * Orders the named files by the index in their names, compared as
+     * numbers, so that chunk 10 follows chunk 9. Every file must be a chunk
+     * of the same document, or for a final merge a part of it, and the
+     * indices must run without a gap or a repeat: from 1 for the chunks of a
+     * full merge, as the split step numbers them, from 0 for the parts of a
+     * final merge, and from the first chunk of the group otherwise.
+     *
+     * @param fileNames The named files, in any order.
+     * @param mode      The mode of the request.
+     * @return The files in merge order.
+     * @throws IllegalArgumentException If a file is not a chunk or part, the
+     *                                  files belong to different documents,
+     *                                  or an index is missing or repeated.
+     */
+    static List<String> inIndexOrder(List<String> fileNames, Mode mode) {
+        Pattern pattern = mode == Mode.FINAL ? PART_NAME : CHUNK_NAME;
+        String kind = mode == Mode.FINAL ? "part" : "chunk";
+        TreeMap<Integer, String> byIndex = new TreeMap<>();
+        String document = null;
+        for (String fileName : fileNames) {
+            Matcher matcher = pattern.matcher(fileName);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException(String.format("Not a %s: %s", kind, fileName));
+            }
+            if (document == null) {
+                document = matcher.group(1);
+            } else if (!document.equals(matcher.group(1))) {
+                throw new IllegalArgumentException(String.format("Cannot merge %ss of different documents: %s and %s",
+                        kind, byIndex.firstEntry().getValue(), fileName));
+            }
+            int index = Integer.parseInt(matcher.group(2));
+            String repeated = byIndex.put(index, fileName);
+            if (repeated != null) {
+                throw new IllegalArgumentException(String.format("The %s %d is named twice: %s and %s", kind,
+                        index, repeated, fileName));
+            }
+        }
+
+        int expected = mode == Mode.FULL ? 1 : mode == Mode.FINAL ? 0 : byIndex.firstKey();
+        for (int index : byIndex.keySet()) {
+            if (index != expected) {
+                throw new IllegalArgumentException(String.format("The %s %d of %s is missing", kind, expected,
+                        document));
+            }
+            expected++;
+        }
+        return new ArrayList<>(byIndex.values());
+    }
+
+    /**
+     * @param input The Lambda input.
+     * @return Whether the input is a batch of documents.
+     */
+    static boolean isBatch(Map<String, Object> input) {
+        return input.containsKey(DOCUMENTS);
+    }
+
+    /**
+     * Reads the documents of a batch input. Each entry is read with
+     * {@link #fromBatchEntry(Map)} on its own, so that one invalid document
+     * does not fail the others.
+     *
+     * @param input The Lambda input.
+     * @return The input of each document, in batch order.
+     * @throws IllegalArgumentException If {@code documents} is not a list of
+     *                                  objects.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Map<String, Object>> documentsOf(Map<String, Object> input) {
+        Object documents = input.get(DOCUMENTS);
+        if (!(documents instanceof List)) {
+            throw new IllegalArgumentException("Batch needs a list of documents, got: " + documents);
+        }
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (Object document : (List<Object>) documents) {
+            if (!(document instanceof Map)) {
+                throw new IllegalArgumentException("Batch document is not an object: " + document);
+            }
+            entries.add((Map<String, Object>) document);
+        }
+        return entries;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return Whether the request continues from a checkpoint.
+     */
+    boolean isResumed() {
+        return resumeFrom > 0;
+    }
+
+    /**
+     * @return The number of named files the checkpoint holds, 0 if the
+     *         request does not continue from one.
+     */
+    int getResumeFrom() {
+        return resumeFrom;
+    }
+
+    /**
+     * @param chunks The number of named files the checkpoint holds.
+     * @return The same request, continuing from the checkpoint, or from the
+     *         start if {@code chunks} is 0. Segments are looked up again by
+     *         the merge that continues.
+     */
+    MergeRequest resumingFrom(int chunks) {
+        return new MergeRequest(mode, fileNames, groupIndex, chunks, Collections.emptyList());
+    }
+
+    /**
+     * @param segments Segments of the chunks after the checkpoint, in chunk
+     *                 order and not overlapping.
+     * @return The same request, merging each segment in place of its chunks.
+     */
+    MergeRequest withSegments(List<ChunkSegment> segments) {
+        return new MergeRequest(mode, fileNames, groupIndex, resumeFrom, segments);
+    }
+
+    /**
+     * @return The keys named in the request, before any prefix is applied.
+     */
+    List<String> getFileNames() {
+        return fileNames;
+    }
+
+    /**
+     * @return The position of this group among the parts of a partial merge,
+     *         or -1 for other modes.
+     */
+    int getGroupIndex() {
+        return groupIndex;
+    }
+
+    /**
+     * @return The S3 keys to merge, in merge order. Chunks are read from their
+     *         remediated {@code FINAL_} copies; parts are read as named. A
+     *         resumed merge starts with the checkpoint, and a segment is read
+     *         in place of the chunks it holds.
+     */
+    List<String> sourceKeys() {
+        List<String> namedKeys = namedSourceKeys();
+        List<String> keys = new ArrayList<>();
+        if (isResumed()) {
+            keys.add(checkpointKey());
+        }
+        int next = resumeFrom;
+        for (ChunkSegment segment : segments) {
+            keys.addAll(namedKeys.subList(next, segment.getFirst() - 1));
+            keys.add(segmentKey(segment));
+            next = segment.getLast();
+        }
+        keys.addAll(namedKeys.subList(next, namedKeys.size()));
+        return keys;
+    }
+
+    /**
+     * @return The S3 keys of every named file, in merge order, whether or not
+     *         the request continues from a checkpoint.
+     */
+    List<String> namedSourceKeys() {
+        if (mode == Mode.FINAL) {
+            return fileNames;
+        }
+        List<String> keys = new ArrayList<>(fileNames.size());
+        for (String key : fileNames) {
+            keys.add(remediatedKey(key));
+        }
+        return keys;
+    }
+
+    /**
+     * @param key The key of a chunk.
+     * @return The key of its remediated {@code FINAL_} copy.
+     */
+    static String remediatedKey(String key) {
+        int lastSlashIndex = key.lastIndexOf('/');
+        if (lastSlashIndex != -1) {
+            String directory = key.substring(0, lastSlashIndex + 1); // Include the slash
+            String fileName = key.substring(lastSlashIndex + 1);
+            return directory + "FINAL_" + fileName;
+        }
+        return "FINAL_" + key; // If no directory is found, prepend "FINAL_"
+    }
+
+    /**
+     * @param number The number of a chunk, counting from 1 as the split step
+     *               does.
+     * @return The key of that chunk of the same document as the first file
+     *         name.
+     */
+    String chunkKey(int number) {
+        return fileNames.get(0).replaceAll("_chunk_\\d+\\.pdf$", "_chunk_" + number + ".pdf");
+    }
+
+    /**
+     * @return The number of the first named chunk.
+     */
+    int chunkNumber() {
+        Matcher matcher = CHUNK_NAME.matcher(fileNames.get(0));
+        if (!matcher.matches()) {
+            throw new IllegalStateException("Not a chunk: " + fileNames.get(0));
+        }
+        return Integer.parseInt(matcher.group(2));
+    }
+
+    /**
+     * @param segment A segment of the chunks of this document.
+     * @return The remediated keys of the chunks it holds, in merge order.
+     */
+    List<String> remediatedKeys(ChunkSegment segment) {
+        List<String> keys = new ArrayList<>(segment.size());
+        for (int number = segment.getFirst(); number <= segment.getLast(); number++) {
+            keys.add(remediatedKey(chunkKey(number)));
+        }
+        return keys;
+    }
+
+    /**
+     * @return The name of the original document, e.g. {@code report.pdf} for
+     *         {@code report_chunk_3.pdf} or {@code report_part_0.pdf}.
+     */
+    String baseFileName() {
+        String first = fileNames.get(0);
+        return first.substring(first.lastIndexOf('/') + 1).replaceAll("_(chunk|part)_\\d+", "");
+    }
+
+    /**
+     * @return The S3 key the result of this invocation is uploaded to. An
+     *         incremental merge only writes segments.
+     */
+    String outputKey() {
+        String baseFileName = baseFileName();
+        String stem = baseFileName.replace(".pdf", "");
+        if (mode == Mode.PARTIAL) {
+            return String.format("temp/%s/parts/%s_part_%d.pdf", stem, stem, groupIndex);
+        }
+        return String.format("temp/%s/merged_%s", stem, baseFileName);
+    }
+
+    /**
+     * @param segment A segment of the chunks of this document.
+     * @return The S3 key the segment is read from: the remediated chunk of a
+     *         single chunk, otherwise the merged segment, saved next to the
+     *         checkpoint.
+     */
+    String segmentKey(ChunkSegment segment) {
+        if (segment.isChunk()) {
+            return remediatedKey(chunkKey(segment.getFirst()));
+        }
+        String stem = baseFileName().replace(".pdf", "");
+        return String.format("temp/%s/checkpoints/%s_seg_%d_%d.pdf", stem, stem, segment.getFirst(),
+                segment.getLast());
+    }
+
+    /**
+     * @param key An S3 key.
+     * @return Whether the key is that of a segment, an already merged run of
+     *         chunks.
+     */
+    static boolean isSegmentKey(String key) {
+        return SEGMENT_KEY.matcher(key).matches();
+    }
+
+    /**
+     * @return The S3 key a checkpoint of this merge is saved to, next to the
+     *         parts of the document.
+     */
+    String checkpointKey() {
+        String baseFileName = baseFileName();
+        String stem = baseFileName.replace(".pdf", "");
+        if (mode == Mode.PARTIAL) {
+            return String.format("temp/%s/checkpoints/%s_part_%d.pdf", stem, stem, groupIndex);
+        }
+        if (mode == Mode.FINAL) {
+            // Holds parts rather than chunks, so it must not be mistaken for the checkpoint of a full merge
+            return String.format("temp/%s/checkpoints/%s_parts.pdf", stem, stem);
+        }
+        return String.format("temp/%s/checkpoints/merged_%s", stem, baseFileName);
+    }
+
+    /**
+     * @param merged The number of sources merged, counting the checkpoint
+     *               this request resumed from.
+     * @return The number of named files those sources stand for.
+     */
+    int mergedFiles(int merged) {
+        // The checkpoint already stands for the files it was resumed from, and a segment for its chunks
+        int files = isResumed() ? resumeFrom : 0;
+        int sources = isResumed() ? 1 : 0;
+        int next = resumeFrom;
+        for (ChunkSegment segment : segments) {
+            int chunksBefore = Math.min(segment.getFirst() - 1 - next, merged - sources);
+            files += chunksBefore;
+            sources += chunksBefore;
+            if (sources == merged) {
+                return files;
+            }
+            files += segment.size();
+            sources++;
+            next = segment.getLast();
+        }
+        return files + merged - sources;
+    }
+
+    /**
+     * Describes the request that continues this one from its checkpoint.
+     *
+     * @param merged The number of sources of this request merged into the
+     *               checkpoint, counting the checkpoint it resumed from.
+     * @return The input of the continuing invocation.
+     */
+    Map<String, Object> continuation(int merged) {
+        return resumingFrom(mergedFiles(merged)).toInput();
+    }
+
+    /**
+     * @return The Lambda input this request is read from.
+     */
+    Map<String, Object> toInput() {
+        Map<String, Object> input = new LinkedHashMap<>();
+        input.put(FILE_NAMES, fileNames);
+        input.put(MERGE_MODE, mode.name().toLowerCase(Locale.ROOT));
+        if (mode == Mode.PARTIAL) {
+            input.put(GROUP_INDEX, groupIndex);
+        }
+        if (isResumed()) {
+            input.put(RESUME_FROM, resumeFrom);
+        }
+        return input;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureTreeRoot;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Prepares the structure tree of an intermediate part for the final level of
+ * a tree merge.
+ * <p>
+ * When {@link org.apache.pdfbox.multipdf.PDFMergerUtility} merges chunks, it
+ * gathers their top-level elements as {@code /Part} children of one new
+ * {@code /Document} element. Appending a second part would put that whole
+ * {@code /Document} one level below the parts of the first, so the tree would
+ * get deeper with every part. Unwrapping the {@code /Document} of each later
+ * part lets its {@code /Part} children join the first part's list instead,
+ * giving the same tree as merging every chunk at once.
+ */
+final class MergedPartStructure {
+
+    /** The only entries of the /Document element PDFMergerUtility creates. */
+    private static final Set<COSName> MERGE_WRAPPER_KEYS = new HashSet<>(
+            Arrays.asList(COSName.TYPE, COSName.S, COSName.P, COSName.K));
+
+    private MergedPartStructure() {
+    }
+
+    /**
+     * Replaces a part's top-level {@code /Document} element by its children,
+     * if it is the plain wrapper created by a previous merge and all of its
+     * children are {@code /Document} or {@code /Part} elements. Any other
+     * structure tree is left as it is.
+     *
+     * @param part The loaded intermediate part, before it is appended.
+     * @return {@code true} if the wrapper was removed.
+     */
+    static boolean unwrapTopDocument(PDDocument part) {
+        PDStructureTreeRoot root = part.getDocumentCatalog().getStructureTreeRoot();
+        if (root == null) {
+            return false;
+        }
+        COSBase k = root.getK();
+        if (k instanceof COSArray && ((COSArray) k).size() == 1) {
+            k = ((COSArray) k).getObject(0);
+        }
+        if (!(k instanceof COSDictionary)) {
+            return false;
+        }
+        COSDictionary wrapper = (COSDictionary) k;
+        if (!COSName.DOCUMENT.equals(wrapper.getCOSName(COSName.S))
+                || !MERGE_WRAPPER_KEYS.containsAll(wrapper.keySet())) {
+            return false;
+        }
+        COSArray children = wrapper.getCOSArray(COSName.K);
+        if (children == null || children.size() == 0) {
+            return false;
+        }
+        for (int i = 0; i < children.size(); i++) {
+            COSBase child = children.getObject(i);
+            if (!(child instanceof COSDictionary)) {
+                return false;
+            }
+            COSName type = ((COSDictionary) child).getCOSName(COSName.S);
+            if (!COSName.DOCUMENT.equals(type) && !COSName.PART.equals(type)) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < children.size(); i++) {
+            ((COSDictionary) children.getObject(i)).setItem(COSName.P, root);
+        }
+        root.setK(children);
+        return true;
+    }
+}
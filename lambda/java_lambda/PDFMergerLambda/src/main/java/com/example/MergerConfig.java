@@ -0,0 +1,371 @@
+package com.example;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tuning knobs for the PDF merger Lambda. Values are read from environment
+ * variables so they can be changed per deployment without a rebuild; any
+ * missing or malformed value falls back to its default.
+ */
+final class MergerConfig {
+
+    static final String DOWNLOAD_CONCURRENCY = "DOWNLOAD_CONCURRENCY";
+    static final String DOWNLOAD_MAX_ATTEMPTS = "DOWNLOAD_MAX_ATTEMPTS";
+    static final String MERGE_INPUT_MODE = "MERGE_INPUT_MODE";
+    static final String COMPRESSION_PARALLELISM = "COMPRESSION_PARALLELISM";
+    static final String COMPRESSION_MIN_SAVING_PERCENT = "COMPRESSION_MIN_SAVING_PERCENT";
+    static final String COMPRESSION_PRESET = "COMPRESSION_PRESET";
+    static final String PDF_WRITER = "PDF_WRITER";
+    static final String STRUCTURE_MERGE = "STRUCTURE_MERGE";
+    static final String MERGE_HEAP_LIMIT_MB = "MERGE_HEAP_LIMIT_MB";
+    static final String MERGE_SCRATCH_DIR = "MERGE_SCRATCH_DIR";
+    static final String UPLOAD_PART_SIZE_MB = "UPLOAD_PART_SIZE_MB";
+    static final String UPLOAD_CONCURRENCY = "UPLOAD_CONCURRENCY";
+    static final String METRICS_NAMESPACE = "METRICS_NAMESPACE";
+    static final String PRIMING_ITERATIONS = "PRIMING_ITERATIONS";
+    static final String BATCH_CONCURRENCY = "BATCH_CONCURRENCY";
+    static final String CHECKPOINT_RESERVE_SECONDS = "CHECKPOINT_RESERVE_SECONDS";
+    static final String S3_TRANSFER = "S3_TRANSFER";
+    static final String S3_TARGET_THROUGHPUT_GBPS = "S3_TARGET_THROUGHPUT_GBPS";
+    static final String DOWNLOAD_PART_SIZE_MB = "DOWNLOAD_PART_SIZE_MB";
+    static final String PARSE_CONCURRENCY = "PARSE_CONCURRENCY";
+    static final String PIPELINE_DEPTH = "PIPELINE_DEPTH";
+    static final String CHUNK_FILE_ACCESS = "CHUNK_FILE_ACCESS";
+
+    /**
+     * Where downloaded chunks are kept until they are merged.
+     */
+    enum InputMode {
+        /** Each chunk is written to /tmp and merged from there. */
+        FILE,
+        /** Each chunk is read from S3 into memory and never touches /tmp. */
+        STREAM
+    }
+
+    /**
+     * How PDFBox reads a chunk staged in /tmp.
+     */
+    enum FileAccess {
+        /** Straight from a memory mapping of the file. */
+        MAPPED,
+        /** PDFBox's own reader, which copies the file through small heap buffers. */
+        BUFFERED
+    }
+
+    /**
+     * How hard streams are deflated.
+     */
+    enum CompressionPreset {
+        /** The fastest level; image samples are only Huffman coded. */
+        FAST,
+        /** zlib's default level, a little higher for fonts and metadata. */
+        BALANCED,
+        /** The best compression zlib offers, at several times the CPU cost. */
+        MAX
+    }
+
+    /**
+     * How the merged document is serialized.
+     */
+    enum WriterMode {
+        /** PDF 1.5 object streams and a cross-reference stream. */
+        OBJECT_STREAMS,
+        /** PDFBox's own writer: plain objects and a classic xref table. */
+        CLASSIC
+    }
+
+    /**
+     * How the structure trees of tagged chunks are merged.
+     */
+    enum StructureMerge {
+        /** One pass over each chunk's tags, building a balanced parent tree at the end. */
+        LINEAR,
+        /** PDFMergerUtility's own merge, which rewrites the whole parent tree per chunk. */
+        PDFBOX
+    }
+
+    /**
+     * How chunks are read from S3.
+     */
+    enum S3Transfer {
+        /** The blocking v1 client: one GET, and one TCP stream, per object. */
+        CLASSIC,
+        /** The AWS CRT-based client: parallel ranged GETs per object. */
+        CRT
+    }
+
+    private final int downloadConcurrency;
+    private final int downloadMaxAttempts;
+    private final InputMode inputMode;
+    private final int compressionParallelism;
+    private final int compressionMinSavingPercent;
+    private final CompressionPreset compressionPreset;
+    private final WriterMode writerMode;
+    private final StructureMerge structureMerge;
+    private final int heapLimitMb;
+    private final String scratchDir;
+    private final int uploadPartSizeMb;
+    private final int uploadConcurrency;
+    private final String metricsNamespace;
+    private final int primingIterations;
+    private final int batchConcurrency;
+    private final int checkpointReserveSeconds;
+    private final S3Transfer s3Transfer;
+    private final int s3TargetThroughputGbps;
+    private final int downloadPartSizeMb;
+    private final int parseConcurrency;
+    private final int pipelineDepth;
+    private final FileAccess fileAccess;
+
+    private MergerConfig(Map<String, String> env) {
+        this.downloadConcurrency = intValue(env, DOWNLOAD_CONCURRENCY, 8, 1);
+        this.downloadMaxAttempts = intValue(env, DOWNLOAD_MAX_ATTEMPTS, 3, 1);
+        this.inputMode = enumValue(env, MERGE_INPUT_MODE, InputMode.class, InputMode.FILE);
+        this.compressionParallelism = intValue(env, COMPRESSION_PARALLELISM,
+                Runtime.getRuntime().availableProcessors(), 1);
+        this.compressionMinSavingPercent = Math.min(99, intValue(env, COMPRESSION_MIN_SAVING_PERCENT, 5, 0));
+        this.compressionPreset = enumValue(env, COMPRESSION_PRESET, CompressionPreset.class,
+                CompressionPreset.BALANCED);
+        this.writerMode = enumValue(env, PDF_WRITER, WriterMode.class, WriterMode.OBJECT_STREAMS);
+        this.structureMerge = enumValue(env, STRUCTURE_MERGE, StructureMerge.class, StructureMerge.LINEAR);
+        this.heapLimitMb = intValue(env, MERGE_HEAP_LIMIT_MB, 384, 1);
+        this.scratchDir = stringValue(env, MERGE_SCRATCH_DIR, "/tmp/pdf-scratch");
+        // S3 rejects multipart uploads whose parts, other than the last, are under 5 MB
+        this.uploadPartSizeMb = intValue(env, UPLOAD_PART_SIZE_MB, 8, 5);
+        this.uploadConcurrency = intValue(env, UPLOAD_CONCURRENCY, 4, 1);
+        this.metricsNamespace = stringValue(env, METRICS_NAMESPACE, "PDFMerger");
+        this.primingIterations = intValue(env, PRIMING_ITERATIONS, 3, 0);
+        this.batchConcurrency = intValue(env, BATCH_CONCURRENCY, 2, 1);
+        this.checkpointReserveSeconds = intValue(env, CHECKPOINT_RESERVE_SECONDS, 120, 0);
+        this.s3Transfer = enumValue(env, S3_TRANSFER, S3Transfer.class, S3Transfer.CRT);
+        this.s3TargetThroughputGbps = intValue(env, S3_TARGET_THROUGHPUT_GBPS, 10, 1);
+        this.downloadPartSizeMb = intValue(env, DOWNLOAD_PART_SIZE_MB, 8, 1);
+        this.parseConcurrency = intValue(env, PARSE_CONCURRENCY, Runtime.getRuntime().availableProcessors(), 1);
+        this.pipelineDepth = intValue(env, PIPELINE_DEPTH, 8, 1);
+        this.fileAccess = enumValue(env, CHUNK_FILE_ACCESS, FileAccess.class, FileAccess.MAPPED);
+    }
+
+    /**
+     * Reads the configuration from the process environment.
+     *
+     * @return The configuration for this Lambda instance.
+     */
+    static MergerConfig fromEnvironment() {
+        return fromMap(System.getenv());
+    }
+
+    /**
+     * Reads the configuration from the given variables.
+     *
+     * @param env The variables to read, keyed by environment variable name.
+     * @return The resulting configuration.
+     */
+    static MergerConfig fromMap(Map<String, String> env) {
+        return new MergerConfig(env);
+    }
+
+    /**
+     * @return The maximum number of chunks downloaded from S3 at the same time.
+     */
+    int getDownloadConcurrency() {
+        return downloadConcurrency;
+    }
+
+    /**
+     * @return The number of attempts made for each chunk before the download
+     *         fails.
+     */
+    int getDownloadMaxAttempts() {
+        return downloadMaxAttempts;
+    }
+
+    /**
+     * @return Whether chunks are staged in /tmp or streamed into memory.
+     */
+    InputMode getInputMode() {
+        return inputMode;
+    }
+
+    /**
+     * @return The number of threads used to deflate streams; defaults to the
+     *         number of vCPUs available to the function.
+     */
+    int getCompressionParallelism() {
+        return compressionParallelism;
+    }
+
+    /**
+     * @return The share, in percent, by which a stream must shrink to be
+     *         stored compressed; smaller savings are not worth a decode on
+     *         every read.
+     */
+    int getCompressionMinSavingPercent() {
+        return compressionMinSavingPercent;
+    }
+
+    /**
+     * @return How hard streams are deflated, trading CPU time for size.
+     */
+    CompressionPreset getCompressionPreset() {
+        return compressionPreset;
+    }
+
+    /**
+     * @return How the merged document is serialized.
+     */
+    WriterMode getWriterMode() {
+        return writerMode;
+    }
+
+    /**
+     * @return How the structure trees of tagged chunks are merged.
+     */
+    StructureMerge getStructureMerge() {
+        return structureMerge;
+    }
+
+    /**
+     * @return The heap, in megabytes, that PDFBox may use to buffer stream data
+     *         for one merge before it spills to scratch files.
+     */
+    int getHeapLimitMb() {
+        return heapLimitMb;
+    }
+
+    /**
+     * @return The directory under which each invocation gets a working
+     *         directory for downloaded chunks and PDFBox scratch files.
+     */
+    String getScratchDir() {
+        return scratchDir;
+    }
+
+    /**
+     * @return The size of each part of the multipart upload of the merged PDF.
+     */
+    int getUploadPartSizeMb() {
+        return uploadPartSizeMb;
+    }
+
+    /**
+     * @return The maximum number of parts uploaded to S3 at the same time.
+     */
+    int getUploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    /**
+     * @return The CloudWatch namespace of the per-phase metrics.
+     */
+    String getMetricsNamespace() {
+        return metricsNamespace;
+    }
+
+    /**
+     * @return The number of sample merges run before a SnapStart snapshot is
+     *         taken; 0 disables priming.
+     */
+    int getPrimingIterations() {
+        return primingIterations;
+    }
+
+    /**
+     * @return The maximum number of documents of a batch merged at the same
+     *         time. They share the heap limit, so each gets an equal part.
+     */
+    int getBatchConcurrency() {
+        return batchConcurrency;
+    }
+
+    /**
+     * @return The time, in seconds, left before the Lambda timeout at which a
+     *         merge stops and saves a checkpoint to resume from; 0 disables
+     *         checkpointing.
+     */
+    int getCheckpointReserveSeconds() {
+        return checkpointReserveSeconds;
+    }
+
+    /**
+     * @return How chunks are read from S3.
+     */
+    S3Transfer getS3Transfer() {
+        return s3Transfer;
+    }
+
+    /**
+     * @return The throughput, in gigabits per second, the CRT client sizes
+     *         its connection pool for.
+     */
+    int getS3TargetThroughputGbps() {
+        return s3TargetThroughputGbps;
+    }
+
+    /**
+     * @return The size, in MB, of each ranged GET the CRT client issues.
+     */
+    int getDownloadPartSizeMb() {
+        return downloadPartSizeMb;
+    }
+
+    /**
+     * @return The number of threads that parse downloaded chunks; defaults to
+     *         the number of vCPUs available to the function.
+     */
+    int getParseConcurrency() {
+        return parseConcurrency;
+    }
+
+    /**
+     * @return The maximum number of chunks of a document downloaded or parsed
+     *         ahead of the one being appended to the merged document.
+     */
+    int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * @return How chunks staged in /tmp are read while they are parsed.
+     */
+    FileAccess getFileAccess() {
+        return fileAccess;
+    }
+
+    private static String stringValue(Map<String, String> env, String name, String defaultValue) {
+        String value = env.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    private static int intValue(Map<String, String> env, String name, int defaultValue, int minValue) {
+        String value = env.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(minValue, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            System.out.println(String.format("Configuration | Warning: Invalid value '%s' for %s, using %d",
+                    value, name, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    private static <E extends Enum<E>> E enumValue(Map<String, String> env, String name, Class<E> type,
+            E defaultValue) {
+        String value = env.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println(String.format("Configuration | Warning: Invalid value '%s' for %s, using %s",
+                    value, name, defaultValue.name().toLowerCase(Locale.ROOT)));
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emits per-phase metrics as CloudWatch Embedded Metric Format (EMF) log
+ * lines.
+ * <p>
+ * Lambda forwards standard output to CloudWatch Logs, which extracts the
+ * metrics from every EMF line, so no CloudWatch API calls are made. Each line
+ * carries the phase as its only dimension, so percentiles can be charted per
+ * phase across all documents; the file name is included as a plain property
+ * for Logs Insights queries.
+ * <p>
+ * Phases overlap, within a merge and across the documents of a batch, so the
+ * peak heap usage of each is sampled on its own rather than read from the
+ * memory pools, whose peak can only be reset for all of them at once. While
+ * any phase runs, one daemon thread samples the heap usage every
+ * {@value #SAMPLE_INTERVAL_MILLIS} ms and raises the peak of every running
+ * phase.
+ */
+final class MetricsLogger {
+
+    static final String UNIT_MILLISECONDS = "Milliseconds";
+    static final String UNIT_BYTES = "Bytes";
+    static final String UNIT_COUNT = "Count";
+
+    static final long SAMPLE_INTERVAL_MILLIS = 10;
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "heap-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Held weakly, so that a phase abandoned by a failed merge without ending is not sampled forever
+    private static final Set<Phase> RUNNING = Collections.newSetFromMap(new WeakHashMap<>());
+    private static ScheduledFuture<?> sampling;
+
+    private final String namespace;
+
+    /**
+     * @param namespace The CloudWatch namespace the metrics are published to.
+     */
+    MetricsLogger(String namespace) {
+        this.namespace = namespace;
+    }
+
+    /**
+     * Starts timing a phase. The peak heap usage is sampled from this point
+     * until {@link Phase#end()}.
+     *
+     * @param phase        The name of the phase, e.g. {@code download}.
+     * @param baseFileName The base name of the file being merged.
+     * @return The running phase.
+     */
+    Phase start(String phase, String baseFileName) {
+        return new Phase(phase, baseFileName);
+    }
+
+    /**
+     * One timed phase of a merge. Values recorded on it are emitted together
+     * with its duration and peak heap usage when it ends.
+     */
+    final class Phase {
+        private final String name;
+        private final String baseFileName;
+        private final long startNanos;
+        private final Map<String, Number> values = new LinkedHashMap<>();
+        private final Map<String, String> units = new LinkedHashMap<>();
+        private final AtomicLong peakHeap = new AtomicLong(heapUsed());
+
+        private Phase(String name, String baseFileName) {
+            this.name = name;
+            this.baseFileName = baseFileName;
+            this.startNanos = System.nanoTime();
+            track(this);
+        }
+
+        Phase bytesIn(long bytes) {
+            return bytes("BytesIn", bytes);
+        }
+
+        Phase bytesOut(long bytes) {
+            return bytes("BytesOut", bytes);
+        }
+
+        Phase bytes(String metric, long bytes) {
+            return record(metric, bytes, UNIT_BYTES);
+        }
+
+        Phase count(String metric, long count) {
+            return record(metric, count, UNIT_COUNT);
+        }
+
+        /**
+         * Ends the phase and writes its EMF line to standard output.
+         */
+        void end() {
+            System.out.println(toEmf());
+        }
+
+        /**
+         * Ends the phase and returns its EMF document instead of writing it.
+         */
+        String toEmf() {
+            long durationMillis = (System.nanoTime() - startNanos) / 1_000_000;
+            observe(heapUsed());
+            synchronized (RUNNING) {
+                RUNNING.remove(this);
+            }
+            Map<String, Number> metrics = new LinkedHashMap<>();
+            Map<String, String> metricUnits = new LinkedHashMap<>();
+            metrics.put("Duration", durationMillis);
+            metricUnits.put("Duration", UNIT_MILLISECONDS);
+            metrics.putAll(values);
+            metricUnits.putAll(units);
+            metrics.put("PeakHeap", peakHeap.get());
+            metricUnits.put("PeakHeap", UNIT_BYTES);
+
+            JSONArray definitions = new JSONArray();
+            for (Map.Entry<String, String> unit : metricUnits.entrySet()) {
+                definitions.put(new JSONObject().put("Name", unit.getKey()).put("Unit", unit.getValue()));
+            }
+            JSONObject directive = new JSONObject()
+                    .put("Namespace", namespace)
+                    .put("Dimensions", new JSONArray().put(new JSONArray().put("Phase")))
+                    .put("Metrics", definitions);
+
+            JSONObject emf = new JSONObject()
+                    .put("_aws", new JSONObject()
+                            .put("Timestamp", System.currentTimeMillis())
+                            .put("CloudWatchMetrics", new JSONArray().put(directive)))
+                    .put("Phase", name)
+                    .put("Filename", baseFileName);
+            for (Map.Entry<String, Number> metric : metrics.entrySet()) {
+                emf.put(metric.getKey(), metric.getValue());
+            }
+            return emf.toString();
+        }
+
+        private Phase record(String metric, long value, String unit) {
+            values.put(metric, value);
+            units.put(metric, unit);
+            return this;
+        }
+
+        private void observe(long heapBytes) {
+            peakHeap.accumulateAndGet(heapBytes, Math::max);
+        }
+    }
+
+    /**
+     * Adds a phase to those sampled, and starts sampling if it is the only
+     * one running.
+     */
+    private static void track(Phase phase) {
+        synchronized (RUNNING) {
+            RUNNING.add(phase);
+            if (sampling == null) {
+                sampling = SAMPLER.scheduleAtFixedRate(MetricsLogger::sampleRunning, SAMPLE_INTERVAL_MILLIS,
+                        SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Raises the peak of every running phase to the current heap usage, and
+     * stops sampling once none is left.
+     */
+    private static void sampleRunning() {
+        long used = heapUsed();
+        List<Phase> running;
+        synchronized (RUNNING) {
+            if (RUNNING.isEmpty()) {
+                sampling.cancel(false);
+                sampling = null;
+                return;
+            }
+            running = new ArrayList<>(RUNNING);
+        }
+        for (Phase phase : running) {
+            phase.observe(used);
+        }
+    }
+
+    /**
+     * @return The bytes of heap in use, live or not yet collected.
+     */
+    private static long heapUsed() {
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+}
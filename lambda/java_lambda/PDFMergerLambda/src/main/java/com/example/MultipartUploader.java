@@ -0,0 +1,92 @@
+package com.example;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens streaming multipart uploads to S3, sharing one pool of upload threads
+ * per Lambda instance.
+ */
+final class MultipartUploader {
+
+    private final AmazonS3 s3Client;
+    private final ExecutorService executor;
+    private final int partSize;
+    private final int concurrency;
+    private final Map<String, String> userMetadata;
+
+    /**
+     * Creates an uploader using the part size and concurrency settings from the
+     * given configuration.
+     *
+     * @param s3Client The S3 client.
+     * @param config   The merger configuration.
+     */
+    MultipartUploader(AmazonS3 s3Client, MergerConfig config) {
+        this(s3Client, config.getUploadPartSizeMb() * 1024 * 1024, config.getUploadConcurrency());
+    }
+
+    MultipartUploader(AmazonS3 s3Client, int partSize, int concurrency) {
+        this(s3Client, newExecutor(concurrency), partSize, concurrency, Collections.emptyMap());
+    }
+
+    private MultipartUploader(AmazonS3 s3Client, ExecutorService executor, int partSize, int concurrency,
+            Map<String, String> userMetadata) {
+        this.s3Client = s3Client;
+        this.executor = executor;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.userMetadata = userMetadata;
+    }
+
+    /**
+     * Returns an uploader with the same settings and upload threads that
+     * writes through another S3 client.
+     *
+     * @param client The S3 client to upload with.
+     * @return The new uploader.
+     */
+    MultipartUploader withClient(AmazonS3 client) {
+        return new MultipartUploader(client, executor, partSize, concurrency, userMetadata);
+    }
+
+    /**
+     * Returns an uploader with the same settings and upload threads that
+     * stores the given user metadata on every object it writes.
+     *
+     * @param metadata The user metadata, without the {@code x-amz-meta-}
+     *                 prefix.
+     * @return The new uploader.
+     */
+    MultipartUploader withUserMetadata(Map<String, String> metadata) {
+        return new MultipartUploader(s3Client, executor, partSize, concurrency, metadata);
+    }
+
+    /**
+     * Starts writing an object. Nothing is visible in S3 until the returned
+     * stream is closed.
+     *
+     * @param bucketName The bucket to write to.
+     * @param key        The key of the object to write.
+     * @return The stream to write the object content to.
+     */
+    S3MultipartOutputStream open(String bucketName, String key) {
+        // Queue one part beyond the pool size so a thread can start on it as soon as it is free
+        return new S3MultipartOutputStream(s3Client, executor, bucketName, key, partSize, concurrency + 1,
+                userMetadata);
+    }
+
+    private static ExecutorService newExecutor(int concurrency) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "part-upload-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
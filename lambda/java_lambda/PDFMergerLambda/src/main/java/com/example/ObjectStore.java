@@ -0,0 +1,52 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads the objects a merge starts from. Implementations differ in how an
+ * object travels over the network: as one GET stream, or as many ranged GETs
+ * in parallel. Methods are called concurrently from the
+ * {@link ChunkDownloader} pool.
+ */
+interface ObjectStore extends Closeable {
+
+    /**
+     * Checks the size of an object before any of it is written locally, for
+     * example against the free space in /tmp.
+     */
+    @FunctionalInterface
+    interface SizeCheck {
+        void accept(long size) throws IOException;
+    }
+
+    /**
+     * Downloads an object to a local file.
+     *
+     * @param bucketName  The name of the S3 bucket.
+     * @param key         The key of the object.
+     * @param destination The file to write, replaced if it exists.
+     * @param sizeCheck   Called with the size of the object before any of it
+     *                    is written; if it throws, the download is abandoned.
+     * @return The downloaded chunk, with the ETag of the version read.
+     * @throws IOException If the object cannot be read or written.
+     */
+    PdfChunk download(String bucketName, String key, File destination, SizeCheck sizeCheck) throws IOException;
+
+    /**
+     * Reads an object into memory.
+     *
+     * @param bucketName The name of the S3 bucket.
+     * @param key        The key of the object.
+     * @return The chunk content, with the ETag of the version read.
+     * @throws IOException If the object cannot be read.
+     */
+    PdfChunk read(String bucketName, String key) throws IOException;
+
+    /**
+     * Releases the connections and threads of the store.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,509 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes a document as PDF 1.5 with compressed object streams and a
+ * cross-reference stream.
+ * <p>
+ * PDFBox 2.0's {@link COSWriter} always writes every non-stream object as
+ * plain text followed by a classic xref table, even for version 1.5 files.
+ * For tagged PDFs the structure tree alone can hold tens of thousands of
+ * small dictionaries, so this writer packs all non-stream objects into
+ * Flate-compressed object streams and indexes them with a compressed
+ * cross-reference stream instead.
+ * <p>
+ * Objects are renumbered from 1 in the order they are reached from the
+ * trailer, so unreachable objects are dropped. The same rules as
+ * {@link COSWriter} decide which dictionaries are written inline and which
+ * become indirect objects. Encrypted documents are not supported, and fonts
+ * queued for subsetting are not subset, so this writer is meant for
+ * documents that were loaded or merged rather than built from scratch.
+ */
+final class ObjectStreamWriter {
+
+    /** Maximum number of objects packed into one object stream. */
+    private static final int OBJECTS_PER_STREAM = 200;
+
+    private static final byte[] EOL = { '\n' };
+
+    private final DeflaterPool deflaters;
+    private final Map<COSBase, Integer> objectNumbers = new IdentityHashMap<>();
+    private final Deque<COSBase> pending = new ArrayDeque<>();
+    private final Set<COSBase> inlineStack = Collections.newSetFromMap(new IdentityHashMap<>());
+    private XRefEntries xref = new XRefEntries();
+    private int nextObjectNumber = 1;
+
+    /**
+     * Creates a writer that deflates with the balanced preset.
+     */
+    ObjectStreamWriter() {
+        this(new DeflaterPool(MergerConfig.CompressionPreset.BALANCED, 1));
+    }
+
+    /**
+     * @param deflaters The deflaters used for the object and cross-reference
+     *                  streams.
+     */
+    ObjectStreamWriter(DeflaterPool deflaters) {
+        this.deflaters = deflaters;
+    }
+
+    /**
+     * @param doc The document to check.
+     * @return {@code true} if the document can be written by this writer.
+     */
+    static boolean supports(PDDocument doc) {
+        return !doc.isEncrypted() && doc.getEncryption() == null;
+    }
+
+    /**
+     * Writes the document. The output stream is not closed.
+     *
+     * @param doc    The document to write.
+     * @param output The stream to write to.
+     * @throws IOException If the document cannot be read or written.
+     */
+    void write(PDDocument doc, OutputStream output) throws IOException {
+        if (!supports(doc)) {
+            throw new IOException("Object stream writer does not support encrypted documents");
+        }
+        objectNumbers.clear();
+        pending.clear();
+        xref = new XRefEntries();
+        nextObjectNumber = 1;
+
+        CountingOutputStream out = new CountingOutputStream(output);
+        float version = Math.max(1.5f, doc.getVersion());
+        out.write(String.format(Locale.ROOT, "%%PDF-%.1f\n%%", version).getBytes(StandardCharsets.US_ASCII));
+        out.write(COSWriter.GARBAGE);
+        out.write(EOL);
+
+        COSDictionary trailer = doc.getDocument().getTrailer();
+        int root = reference(trailer.getDictionaryObject(COSName.ROOT));
+        COSBase info = trailer.getDictionaryObject(COSName.INFO);
+        int infoNumber = info instanceof COSDictionary ? reference(info) : 0;
+
+        ObjectStreamBuilder objectStream = new ObjectStreamBuilder();
+        while (!pending.isEmpty()) {
+            COSBase object = pending.poll();
+            int number = objectNumbers.get(object);
+            if (object instanceof COSStream) {
+                xref.setOffset(number, out.getCount());
+                writeStreamObject(number, (COSStream) object, out);
+            } else {
+                objectStream.add(number, object);
+                if (objectStream.size() >= OBJECTS_PER_STREAM) {
+                    objectStream.flush(out);
+                    objectStream = new ObjectStreamBuilder();
+                }
+            }
+        }
+        objectStream.flush(out);
+
+        // The cross-reference stream indexes itself, so its number and offset come last
+        int xrefNumber = nextObjectNumber++;
+        long xrefOffset = out.getCount();
+        xref.setOffset(xrefNumber, xrefOffset);
+
+        byte[] data = deflate(xref.toTable(nextObjectNumber));
+        StringBuilder xrefDict = new StringBuilder();
+        xrefDict.append(String.format(Locale.ROOT, "%d 0 obj\n<</Type /XRef /Size %d /W [1 %d %d] /Root %d 0 R",
+                xrefNumber, nextObjectNumber, xref.getOffsetWidth(), xref.getIndexWidth(), root));
+        if (infoNumber > 0) {
+            xrefDict.append(String.format(Locale.ROOT, " /Info %d 0 R", infoNumber));
+        }
+        xrefDict.append(" /ID ");
+        out.write(xrefDict.toString().getBytes(StandardCharsets.US_ASCII));
+        writeArray(documentId(doc, trailer), out);
+        out.write(String.format(Locale.ROOT, " /Filter /FlateDecode /Length %d>>\nstream\n", data.length)
+                .getBytes(StandardCharsets.US_ASCII));
+        out.write(data);
+        out.write("\nendstream\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+        out.write(String.format(Locale.ROOT, "startxref\n%d\n%%%%EOF\n", xrefOffset)
+                .getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Returns the object number of an indirect object, assigning one and
+     * queuing the object for output on first use.
+     */
+    private int reference(COSBase object) {
+        Integer number = objectNumbers.get(object);
+        if (number == null) {
+            number = nextObjectNumber++;
+            objectNumbers.put(object, number);
+            pending.add(object);
+        }
+        return number;
+    }
+
+    private void writeStreamObject(int number, COSStream stream, OutputStream out) throws IOException {
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        dictionary.write(COSWriter.DICT_OPEN);
+        for (Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+            if (entry.getValue() == null || COSName.LENGTH.equals(entry.getKey())) {
+                continue;
+            }
+            entry.getKey().writePDF(dictionary);
+            dictionary.write(COSWriter.SPACE);
+            writeValue(entry.getValue(), dictionary);
+            dictionary.write(EOL);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        long length = rawLength(stream, buffer);
+        COSName.LENGTH.writePDF(dictionary);
+        dictionary.write(String.format(Locale.ROOT, " %d", length).getBytes(StandardCharsets.US_ASCII));
+        dictionary.write(COSWriter.DICT_CLOSE);
+
+        out.write(String.format(Locale.ROOT, "%d 0 obj\n", number).getBytes(StandardCharsets.US_ASCII));
+        dictionary.writeTo(out);
+        out.write("\nstream\n".getBytes(StandardCharsets.US_ASCII));
+        try (InputStream in = stream.createRawInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        out.write("\nendstream\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Returns the exact length of the raw stream data. The /Length entry of a
+     * parsed stream is not trusted; the backing buffer knows its size, and only
+     * streams too large for {@link InputStream#available()} are counted.
+     */
+    private static long rawLength(COSStream stream, byte[] buffer) throws IOException {
+        try (InputStream in = stream.createRawInputStream()) {
+            int available = in.available();
+            if (available < Integer.MAX_VALUE) {
+                return available;
+            }
+            long length = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                length += read;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Serializes the body of an indirect object: the object itself is always
+     * written inline, its children follow the {@link COSWriter} rules.
+     */
+    private void writeObjectBody(COSBase object, OutputStream out) throws IOException {
+        if (object instanceof COSDictionary) {
+            writeDictionary((COSDictionary) object, out);
+        } else if (object instanceof COSArray) {
+            writeArray((COSArray) object, out);
+        } else {
+            writeValue(object, out);
+        }
+    }
+
+    private void writeValue(COSBase value, OutputStream out) throws IOException {
+        if (value instanceof COSObject) {
+            COSBase target = ((COSObject) value).getObject();
+            if (target == null || target instanceof COSNull) {
+                COSNull.NULL.writePDF(out);
+            } else if (target instanceof COSDictionary) {
+                writeReference(target, out);
+            } else {
+                writeValue(target, out);
+            }
+        } else if (value instanceof COSStream) {
+            writeReference(value, out);
+        } else if (value instanceof COSDictionary) {
+            if (value.isDirect() && !inlineStack.contains(value)) {
+                writeDictionary((COSDictionary) value, out);
+            } else {
+                writeReference(value, out);
+            }
+        } else if (value instanceof COSArray) {
+            if (inlineStack.contains(value)) {
+                // A self-containing array cannot be written inline
+                writeReference(value, out);
+            } else {
+                writeArray((COSArray) value, out);
+            }
+        } else if (value instanceof COSString) {
+            COSWriter.writeString((COSString) value, out);
+        } else if (value instanceof COSName) {
+            ((COSName) value).writePDF(out);
+        } else if (value instanceof COSInteger) {
+            ((COSInteger) value).writePDF(out);
+        } else if (value instanceof COSFloat) {
+            ((COSFloat) value).writePDF(out);
+        } else if (value instanceof COSBoolean) {
+            ((COSBoolean) value).writePDF(out);
+        } else {
+            COSNull.NULL.writePDF(out);
+        }
+    }
+
+    private void writeDictionary(COSDictionary dictionary, OutputStream out) throws IOException {
+        inlineStack.add(dictionary);
+        out.write(COSWriter.DICT_OPEN);
+        for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            entry.getKey().writePDF(out);
+            out.write(COSWriter.SPACE);
+            writeValue(entry.getValue(), out);
+            out.write(EOL);
+        }
+        out.write(COSWriter.DICT_CLOSE);
+        inlineStack.remove(dictionary);
+    }
+
+    private void writeArray(COSArray array, OutputStream out) throws IOException {
+        inlineStack.add(array);
+        out.write(COSWriter.ARRAY_OPEN);
+        for (int i = 0; i < array.size(); i++) {
+            if (i > 0) {
+                out.write(i % 10 == 0 ? EOL : COSWriter.SPACE);
+            }
+            COSBase element = array.get(i);
+            if (element == null) {
+                COSNull.NULL.writePDF(out);
+            } else {
+                writeValue(element, out);
+            }
+        }
+        out.write(COSWriter.ARRAY_CLOSE);
+        inlineStack.remove(array);
+    }
+
+    private void writeReference(COSBase target, OutputStream out) throws IOException {
+        out.write(String.format(Locale.ROOT, "%d 0 R", reference(target)).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Returns the file identifier, generating one the same way
+     * {@link COSWriter} does if the document has none.
+     */
+    private static COSArray documentId(PDDocument doc, COSDictionary trailer) {
+        COSBase existing = trailer.getDictionaryObject(COSName.ID);
+        if (existing instanceof COSArray && ((COSArray) existing).size() == 2) {
+            return (COSArray) existing;
+        }
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long idTime = doc.getDocumentId() == null ? System.currentTimeMillis() : doc.getDocumentId();
+        md5.update(Long.toString(idTime).getBytes(StandardCharsets.ISO_8859_1));
+        COSDictionary info = trailer.getCOSDictionary(COSName.INFO);
+        if (info != null) {
+            for (COSBase value : info.getValues()) {
+                md5.update(String.valueOf(value).getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+        COSString id = new COSString(md5.digest());
+        COSArray idArray = new COSArray();
+        idArray.add(id);
+        idArray.add(id);
+        trailer.setItem(COSName.ID, idArray);
+        return idArray;
+    }
+
+    private byte[] deflate(byte[] data) {
+        return deflaters.deflate(data, DeflaterPool.StreamType.OTHER);
+    }
+
+    /**
+     * Collects serialized objects for one object stream.
+     */
+    private final class ObjectStreamBuilder {
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final int[] numbers = new int[OBJECTS_PER_STREAM];
+        private int size;
+
+        void add(int number, COSBase object) throws IOException {
+            header.write(String.format(Locale.ROOT, "%d %d ", number, body.size())
+                    .getBytes(StandardCharsets.US_ASCII));
+            writeObjectBody(object, body);
+            body.write(EOL);
+            numbers[size++] = number;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void flush(CountingOutputStream out) throws IOException {
+            if (size == 0) {
+                return;
+            }
+            int streamNumber = nextObjectNumber++;
+            for (int i = 0; i < size; i++) {
+                xref.setCompressed(numbers[i], streamNumber, i);
+            }
+            int first = header.size();
+            header.write(body.toByteArray());
+            byte[] data = deflate(header.toByteArray());
+
+            xref.setOffset(streamNumber, out.getCount());
+            out.write(String.format(Locale.ROOT,
+                    "%d 0 obj\n<</Type /ObjStm /N %d /First %d /Filter /FlateDecode /Length %d>>\nstream\n",
+                    streamNumber, size, first, data.length).getBytes(StandardCharsets.US_ASCII));
+            out.write(data);
+            out.write("\nendstream\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Cross-reference entries indexed by object number.
+     */
+    private static final class XRefEntries {
+        private byte[] types = new byte[1024];
+        private long[] field2 = new long[1024];
+        private int[] field3 = new int[1024];
+        private int offsetWidth;
+        private int indexWidth;
+
+        void setOffset(int number, long offset) {
+            set(number, (byte) 1, offset, 0);
+        }
+
+        void setCompressed(int number, int streamNumber, int index) {
+            set(number, (byte) 2, streamNumber, index);
+        }
+
+        private void set(int number, byte type, long second, int third) {
+            if (number >= types.length) {
+                int capacity = Math.max(number + 1, types.length * 2);
+                types = Arrays.copyOf(types, capacity);
+                field2 = Arrays.copyOf(field2, capacity);
+                field3 = Arrays.copyOf(field3, capacity);
+            }
+            types[number] = type;
+            field2[number] = second;
+            field3[number] = third;
+        }
+
+        /**
+         * Encodes the entries for objects 0 to size - 1 as xref stream rows,
+         * choosing the narrowest field widths that fit.
+         */
+        byte[] toTable(int size) {
+            long maxSecond = 0;
+            int maxThird = 0xFFFF; // object 0 has generation 65535
+            for (int i = 1; i < size; i++) {
+                maxSecond = Math.max(maxSecond, field2[i]);
+                maxThird = Math.max(maxThird, field3[i]);
+            }
+            offsetWidth = byteWidth(maxSecond);
+            indexWidth = byteWidth(maxThird);
+
+            int rowWidth = 1 + offsetWidth + indexWidth;
+            byte[] table = new byte[size * rowWidth];
+            for (int i = 0; i < size; i++) {
+                int row = i * rowWidth;
+                if (i == 0) {
+                    // Head of the free list: type 0, next free 0, generation 65535
+                    putBytes(table, row + 1 + offsetWidth, indexWidth, 0xFFFF);
+                    continue;
+                }
+                table[row] = types[i];
+                putBytes(table, row + 1, offsetWidth, field2[i]);
+                putBytes(table, row + 1 + offsetWidth, indexWidth, field3[i]);
+            }
+            return table;
+        }
+
+        /**
+         * @return The width in bytes of the second field, valid after
+         *         {@link #toTable(int)}.
+         */
+        int getOffsetWidth() {
+            return offsetWidth;
+        }
+
+        /**
+         * @return The width in bytes of the third field, valid after
+         *         {@link #toTable(int)}.
+         */
+        int getIndexWidth() {
+            return indexWidth;
+        }
+
+        private static int byteWidth(long value) {
+            int width = 1;
+            while (width < 8 && (value >>> (8 * width)) != 0) {
+                width++;
+            }
+            return width;
+        }
+
+        private static void putBytes(byte[] table, int offset, int width, long value) {
+            for (int i = width - 1; i >= 0; i--) {
+                table[offset + i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+
+    /**
+     * Tracks the number of bytes written so object offsets can be recorded.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.example;
+
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One downloaded PDF chunk, held either as a local file or as the raw bytes
+ * of the S3 object.
+ */
+final class PdfChunk {
+
+    private final String key;
+    private final File file;
+    private final byte[] data;
+    private final String eTag;
+
+    private PdfChunk(String key, File file, byte[] data, String eTag) {
+        this.key = key;
+        this.file = file;
+        this.data = data;
+        this.eTag = eTag;
+    }
+
+    /**
+     * @param key  The S3 object key the chunk was downloaded from.
+     * @param file The local copy of the chunk.
+     * @return A chunk staged on local storage.
+     */
+    static PdfChunk ofFile(String key, File file) {
+        return new PdfChunk(key, file, null, null);
+    }
+
+    /**
+     * @param key  The S3 object key the chunk was downloaded from.
+     * @param data The content of the S3 object.
+     * @return A chunk held in memory.
+     */
+    static PdfChunk ofBytes(String key, byte[] data) {
+        return new PdfChunk(key, null, data, null);
+    }
+
+    /**
+     * @param eTag The ETag of the S3 object the chunk was read from.
+     * @return This chunk, recording the version of the object it holds.
+     */
+    PdfChunk withETag(String eTag) {
+        return new PdfChunk(key, file, data, eTag);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * @return The ETag of the S3 object the chunk was read from, or
+     *         {@code null} if it did not come from S3.
+     */
+    String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return {@code false} if the chunk was staged to a file that no longer
+     *         exists.
+     */
+    boolean exists() {
+        return file == null || file.exists();
+    }
+
+    /**
+     * @return The size of the chunk in bytes.
+     */
+    long length() {
+        return file != null ? file.length() : data.length;
+    }
+
+    /**
+     * @return A description of where the chunk is read from, for logging.
+     */
+    String describe() {
+        return file != null ? file.getPath() : "s3://" + key + " (in memory)";
+    }
+
+    /**
+     * Parses the chunk. In-memory chunks are parsed straight from their byte
+     * array without another copy; staged chunks are parsed from a memory
+     * mapping of their file, unless configured otherwise or too large to map.
+     *
+     * @param memUsageSetting How the document may buffer decoded stream data.
+     * @param fileAccess      How a staged chunk is read.
+     * @return The loaded document, which the caller must close.
+     * @throws IOException If the chunk cannot be read or parsed.
+     */
+    PDDocument load(MemoryUsageSetting memUsageSetting, MergerConfig.FileAccess fileAccess) throws IOException {
+        if (file == null) {
+            return PDDocument.load(data, "", null, null, memUsageSetting);
+        }
+        if (fileAccess == MergerConfig.FileAccess.MAPPED && MappedRandomAccessRead.canMap(file.length())) {
+            return parse(new MappedRandomAccessRead(file), memUsageSetting);
+        }
+        return PDDocument.load(file, memUsageSetting);
+    }
+
+    /**
+     * Parses a document the way {@link PDDocument#load(File, MemoryUsageSetting)}
+     * does, from any source.
+     */
+    private static PDDocument parse(RandomAccessRead source, MemoryUsageSetting memUsageSetting)
+            throws IOException {
+        ScratchFile scratchFile = new ScratchFile(memUsageSetting);
+        try {
+            PDFParser parser = new PDFParser(source, "", null, null, scratchFile);
+            parser.parse();
+            // The document closes the source and the scratch file when it is closed
+            return parser.getPDDocument();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(scratchFile);
+            IOUtils.closeQuietly(source);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Collapses identical resource streams, such as embedded fonts, images and
+ * ICC profiles, into a single object.
+ * <p>
+ * The split step copies the full resources of each page into every chunk, so
+ * a merged document can carry one copy of the same font per chunk. Every
+ * stream reachable from a {@code /Resources} dictionary is identified by a
+ * SHA-256 hash of its raw data and of its dictionary, and all references to a
+ * duplicate are pointed at the first stream with the same content. Streams
+ * are immutable once written, so sharing one object is equivalent to keeping
+ * the copies.
+ */
+final class ResourceDeduplicator {
+
+    /** How deep a stream dictionary is followed before the stream is left alone. */
+    private static final int MAX_DEPTH = 32;
+
+    private final Map<COSStream, String> contentKeys = new IdentityHashMap<>();
+    private final Set<COSStream> inProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Deduplicates the resource streams of a document in place.
+     *
+     * @param document The document to deduplicate.
+     * @return Counters describing what was removed.
+     * @throws IOException If a stream cannot be read.
+     */
+    DeduplicationResult deduplicate(COSDocument document) throws IOException {
+        DeduplicationResult result = new DeduplicationResult();
+        Map<String, COSStream> canonical = new HashMap<>();
+        Map<COSStream, COSStream> replacements = new IdentityHashMap<>();
+
+        for (COSStream stream : findResourceStreams(document)) {
+            String key = contentKey(stream, 0);
+            if (key == null) {
+                continue;
+            }
+            COSStream first = canonical.putIfAbsent(key, stream);
+            if (first != null && first != stream) {
+                replacements.put(stream, first);
+                result.recordDuplicate(stream.getLength());
+            }
+        }
+        if (!replacements.isEmpty()) {
+            replaceReferences(document, replacements);
+        }
+        return result;
+    }
+
+    /**
+     * Finds every stream reachable from a resource dictionary, in discovery
+     * order.
+     */
+    private static List<COSStream> findResourceStreams(COSDocument document) {
+        List<COSStream> streams = new ArrayList<>();
+        Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<COSBase> pending = new ArrayDeque<>();
+        Deque<Boolean> inResources = new ArrayDeque<>();
+        pending.push(document.getTrailer());
+        inResources.push(Boolean.FALSE);
+
+        while (!pending.isEmpty()) {
+            COSBase current = dereference(pending.pop());
+            boolean resource = inResources.pop();
+            if (current == null || !visited.add(current)) {
+                continue;
+            }
+            if (resource && current instanceof COSStream) {
+                streams.add((COSStream) current);
+            }
+            if (current instanceof COSDictionary) {
+                for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) current).entrySet()) {
+                    if (entry.getValue() != null) {
+                        pending.push(entry.getValue());
+                        inResources.push(resource || COSName.RESOURCES.equals(entry.getKey()));
+                    }
+                }
+            } else if (current instanceof COSArray) {
+                for (COSBase value : (COSArray) current) {
+                    if (value != null) {
+                        pending.push(value);
+                        inResources.push(resource);
+                    }
+                }
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * Computes a key that is equal for two streams exactly when their raw data
+     * and dictionaries are equal. Streams referenced from the dictionary are
+     * represented by their own keys.
+     *
+     * @return The key, or {@code null} if the stream is part of a reference
+     *         cycle or nested too deeply to be compared safely.
+     */
+    private String contentKey(COSStream stream, int depth) throws IOException {
+        String key = contentKeys.get(stream);
+        if (key != null) {
+            return key;
+        }
+        if (depth > MAX_DEPTH || !inProgress.add(stream)) {
+            return null;
+        }
+        try {
+            StringBuilder description = new StringBuilder();
+            if (!describeDictionary(stream, description, depth, Collections.newSetFromMap(new IdentityHashMap<>()))) {
+                return null;
+            }
+            MessageDigest digest = sha256();
+            digest.update(description.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            try (InputStream is = stream.createRawInputStream()) {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                }
+            }
+            key = toHex(digest.digest());
+            contentKeys.put(stream, key);
+            return key;
+        } finally {
+            inProgress.remove(stream);
+        }
+    }
+
+    private boolean describe(COSBase value, StringBuilder out, int depth, Set<COSBase> path) throws IOException {
+        value = dereference(value);
+        if (value == null || value instanceof COSNull) {
+            out.append("null");
+        } else if (value instanceof COSStream) {
+            String key = contentKey((COSStream) value, depth + 1);
+            if (key == null) {
+                return false;
+            }
+            out.append("stream:").append(key);
+        } else if (value instanceof COSDictionary) {
+            return describeDictionary((COSDictionary) value, out, depth, path);
+        } else if (value instanceof COSArray) {
+            if (depth > MAX_DEPTH || !path.add(value)) {
+                return false;
+            }
+            out.append('[');
+            for (COSBase element : (COSArray) value) {
+                if (!describe(element, out, depth + 1, path)) {
+                    return false;
+                }
+                out.append(' ');
+            }
+            out.append(']');
+            path.remove(value);
+        } else if (value instanceof COSName) {
+            out.append('/').append(((COSName) value).getName());
+        } else if (value instanceof COSString) {
+            out.append('<').append(((COSString) value).toHexString()).append('>');
+        } else if (value instanceof COSInteger) {
+            out.append(((COSInteger) value).longValue());
+        } else if (value instanceof COSFloat) {
+            out.append(((COSFloat) value).floatValue()).append('f');
+        } else if (value instanceof COSBoolean) {
+            out.append(((COSBoolean) value).getValue());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Describes a dictionary with its keys in a fixed order. The length of a
+     * stream is left out, since it is covered by the raw data.
+     */
+    private boolean describeDictionary(COSDictionary dictionary, StringBuilder out, int depth, Set<COSBase> path)
+            throws IOException {
+        if (depth > MAX_DEPTH || !path.add(dictionary)) {
+            return false;
+        }
+        Map<String, COSBase> sorted = new TreeMap<>();
+        for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+            if (!(dictionary instanceof COSStream && COSName.LENGTH.equals(entry.getKey()))) {
+                sorted.put(entry.getKey().getName(), entry.getValue());
+            }
+        }
+        out.append("<<");
+        for (Map.Entry<String, COSBase> entry : sorted.entrySet()) {
+            out.append('/').append(entry.getKey()).append(' ');
+            if (!describe(entry.getValue(), out, depth + 1, path)) {
+                return false;
+            }
+            out.append(' ');
+        }
+        out.append(">>");
+        path.remove(dictionary);
+        return true;
+    }
+
+    /**
+     * Points every reference to a duplicate stream at its canonical copy.
+     */
+    private static void replaceReferences(COSDocument document, Map<COSStream, COSStream> replacements) {
+        Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<COSBase> pending = new ArrayDeque<>();
+        pending.push(document.getTrailer());
+
+        while (!pending.isEmpty()) {
+            COSBase current = dereference(pending.pop());
+            if (current == null || !visited.add(current)) {
+                continue;
+            }
+            if (current instanceof COSDictionary) {
+                COSDictionary dictionary = (COSDictionary) current;
+                for (COSName key : new ArrayList<>(dictionary.keySet())) {
+                    COSBase value = dictionary.getItem(key);
+                    COSStream replacement = replacements.get(dereference(value));
+                    if (replacement != null) {
+                        dictionary.setItem(key, replacement);
+                        value = replacement;
+                    }
+                    if (value != null) {
+                        pending.push(value);
+                    }
+                }
+            } else if (current instanceof COSArray) {
+                COSArray array = (COSArray) current;
+                for (int i = 0; i < array.size(); i++) {
+                    COSBase value = array.get(i);
+                    COSStream replacement = replacements.get(dereference(value));
+                    if (replacement != null) {
+                        array.set(i, replacement);
+                        value = replacement;
+                    }
+                    if (value != null) {
+                        pending.push(value);
+                    }
+                }
+            }
+        }
+    }
+
+    private static COSBase dereference(COSBase value) {
+        return value instanceof COSObject ? ((COSObject) value).getObject() : value;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
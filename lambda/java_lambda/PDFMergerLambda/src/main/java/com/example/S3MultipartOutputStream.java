@@ -0,0 +1,272 @@
+package com.example;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes an S3 object as a multipart upload while it is being produced.
+ * <p>
+ * Written bytes are collected into parts of a fixed size, and each full part
+ * is uploaded on the executor while writing continues. At most a fixed number
+ * of parts are in flight at once, which bounds the memory held in part
+ * buffers. {@link #close()} uploads the last part and completes the upload;
+ * output that never fills a part is stored with a single {@code putObject}.
+ * <p>
+ * If writing fails, call {@link #abort()} rather than {@link #close()}, so
+ * that a truncated object is never completed.
+ */
+final class S3MultipartOutputStream extends OutputStream {
+
+    private static final String CONTENT_TYPE = "application/pdf";
+
+    private final AmazonS3 s3Client;
+    private final ExecutorService executor;
+    private final String bucketName;
+    private final String key;
+    private final int partSize;
+    private final Semaphore inFlight;
+    private final Map<String, String> userMetadata;
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private byte[] buffer;
+    private int position;
+    private long bytesWritten;
+    private String uploadId;
+    private boolean closed;
+
+    /**
+     * @param s3Client         The S3 client.
+     * @param executor         The executor that uploads parts.
+     * @param bucketName       The bucket to write to.
+     * @param key              The key of the object to write.
+     * @param partSize         The size of every part but the last, at least
+     *                         5 MB for S3 to accept the upload.
+     * @param maxPartsInFlight The maximum number of parts uploading at once.
+     */
+    S3MultipartOutputStream(AmazonS3 s3Client, ExecutorService executor, String bucketName, String key,
+            int partSize, int maxPartsInFlight) {
+        this(s3Client, executor, bucketName, key, partSize, maxPartsInFlight, Collections.emptyMap());
+    }
+
+    /**
+     * @param s3Client         The S3 client.
+     * @param executor         The executor that uploads parts.
+     * @param bucketName       The bucket to write to.
+     * @param key              The key of the object to write.
+     * @param partSize         The size of every part but the last, at least
+     *                         5 MB for S3 to accept the upload.
+     * @param maxPartsInFlight The maximum number of parts uploading at once.
+     * @param userMetadata     The user metadata stored on the object.
+     */
+    S3MultipartOutputStream(AmazonS3 s3Client, ExecutorService executor, String bucketName, String key,
+            int partSize, int maxPartsInFlight, Map<String, String> userMetadata) {
+        this.s3Client = s3Client;
+        this.executor = executor;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.partSize = partSize;
+        this.inFlight = new Semaphore(maxPartsInFlight);
+        this.userMetadata = userMetadata;
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        buffer[position++] = (byte) b;
+        bytesWritten++;
+        if (position == partSize) {
+            uploadPart();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int count = Math.min(len, partSize - position);
+            System.arraycopy(b, off, buffer, position, count);
+            position += count;
+            bytesWritten += count;
+            off += count;
+            len -= count;
+            if (position == partSize) {
+                uploadPart();
+            }
+        }
+    }
+
+    /**
+     * Uploads the remaining data and completes the object. If that fails,
+     * the multipart upload is aborted.
+     *
+     * @throws IOException If the object could not be stored.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (uploadId == null) {
+                putSingleObject();
+            } else {
+                if (position > 0) {
+                    uploadPart();
+                }
+                completeUpload();
+            }
+            closed = true;
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Discards everything written so far. Parts already uploaded are removed
+     * from S3, and no object is created.
+     */
+    void abort() {
+        closed = true;
+        buffer = null;
+        for (Future<PartETag> part : parts) {
+            part.cancel(true);
+        }
+        if (uploadId != null) {
+            try {
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            } catch (RuntimeException e) {
+                System.out.println(String.format("Key: %s | Operation: Upload | Warning: Failed to abort upload: %s",
+                        key, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes written to the stream.
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return The number of parts uploaded, or 0 if the object was stored with
+     *         a single request.
+     */
+    int getPartCount() {
+        return parts.size();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Upload of " + key + " is already closed");
+        }
+    }
+
+    private void uploadPart() throws IOException {
+        if (uploadId == null) {
+            uploadId = s3Client.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucketName, key, newMetadata())).getUploadId();
+        }
+        failOnUploadError();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to upload " + key);
+        }
+
+        byte[] data = buffer;
+        int length = position;
+        int partNumber = parts.size() + 1;
+        UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(bucketName)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(partNumber)
+                .withInputStream(new ByteArrayInputStream(data, 0, length))
+                .withPartSize(length);
+        try {
+            parts.add(executor.submit(() -> {
+                try {
+                    return s3Client.uploadPart(request).getPartETag();
+                } finally {
+                    inFlight.release();
+                }
+            }));
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+        buffer = new byte[partSize];
+        position = 0;
+    }
+
+    /**
+     * Fails fast if a part that has already finished could not be uploaded.
+     */
+    private void failOnUploadError() throws IOException {
+        for (Future<PartETag> part : parts) {
+            if (part.isDone()) {
+                awaitPart(part);
+            }
+        }
+    }
+
+    private void completeUpload() throws IOException {
+        List<PartETag> partETags = new ArrayList<>(parts.size());
+        for (Future<PartETag> part : parts) {
+            partETags.add(awaitPart(part));
+        }
+        s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+    }
+
+    private void putSingleObject() {
+        ObjectMetadata metadata = newMetadata();
+        metadata.setContentLength(position);
+        s3Client.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(buffer, 0, position),
+                metadata));
+    }
+
+    private ObjectMetadata newMetadata() {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(CONTENT_TYPE);
+        metadata.setUserMetadata(userMetadata);
+        return metadata;
+    }
+
+    private PartETag awaitPart(Future<PartETag> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to upload part of " + key, cause);
+        }
+    }
+}
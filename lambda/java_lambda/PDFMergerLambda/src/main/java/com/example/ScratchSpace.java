@@ -0,0 +1,239 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The working directory of one invocation, for downloaded chunks and PDFBox
+ * scratch files.
+ * <p>
+ * Warm Lambda instances keep /tmp between invocations, so everything an
+ * invocation writes goes into its own directory, which is deleted when the
+ * invocation ends. Invocations of one instance never overlap, so any
+ * directory left under the root when a new one is opened belongs to an
+ * invocation that was cut short, for example by a timeout, and is swept
+ * away first.
+ * <p>
+ * The documents of a batch each work in a child of the invocation's
+ * directory, which shares the invocation's space accounting and is deleted
+ * as soon as its document is done.
+ */
+final class ScratchSpace implements AutoCloseable {
+
+    private static final String PREFIX = "invocation-";
+
+    private final Path directory;
+    private final ScratchSpace parent;
+    private long reservedBytes;
+    private long peakBytes;
+    private int filesRemoved;
+
+    private ScratchSpace(Path directory, ScratchSpace parent) {
+        this.directory = directory;
+        this.parent = parent;
+    }
+
+    /**
+     * Creates a working directory under the given root, after removing what
+     * earlier invocations left behind.
+     *
+     * @param root The directory that holds the working directories.
+     * @return The new working directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    static ScratchSpace open(File root) throws IOException {
+        Path rootPath = root.toPath();
+        Files.createDirectories(rootPath);
+        int stale = 0;
+        try (Stream<Path> entries = Files.list(rootPath)) {
+            for (Path entry : entries.collect(Collectors.toList())) {
+                String name = entry.getFileName().toString();
+                // PDFBox scratch files sat directly in the root before invocations had their own directory
+                if (name.startsWith(PREFIX) || (name.startsWith("PDFBox") && name.endsWith(".tmp"))) {
+                    stale += deleteRecursively(entry);
+                }
+            }
+        }
+        if (stale > 0) {
+            System.out.println(String.format("Operation: Scratch cleanup | Removed: %d stale files from %s",
+                    stale, root));
+        }
+        return new ScratchSpace(Files.createTempDirectory(rootPath, PREFIX), null);
+    }
+
+    /**
+     * Creates a working directory inside this one, for example for one
+     * document of a batch. Space reserved or measured in the child counts
+     * towards this directory, and closing the child deletes only its own
+     * files.
+     *
+     * @param name The name of the child directory.
+     * @return The child working directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    ScratchSpace child(String name) throws IOException {
+        return new ScratchSpace(Files.createDirectories(directory.resolve(name)), this);
+    }
+
+    /**
+     * @return The working directory.
+     */
+    File getDirectory() {
+        return directory.toFile();
+    }
+
+    /**
+     * @param name The name of a file.
+     * @return The file of that name in the working directory.
+     */
+    File file(String name) {
+        return directory.resolve(name).toFile();
+    }
+
+    /**
+     * Claims room for a file that is about to be written, so that concurrent
+     * downloads cannot each see the same free space. Release the claim once
+     * the file is written, or has failed to be.
+     *
+     * @param bytes The size of the file.
+     * @param name  The name of the file, for the error message.
+     * @throws OutOfSpaceException If the file system does not have the room
+     *                             left.
+     */
+    synchronized void reserve(long bytes, String name) throws OutOfSpaceException {
+        if (parent != null) {
+            parent.reserve(bytes, name);
+            return;
+        }
+        long usable = directory.toFile().getUsableSpace();
+        if (usable - reservedBytes < bytes) {
+            throw new OutOfSpaceException(String.format(
+                    "Not enough space in %s for %s: %d bytes needed, %d bytes free", directory, name, bytes,
+                    usable - reservedBytes));
+        }
+        reservedBytes += bytes;
+    }
+
+    /**
+     * Gives back room claimed with {@link #reserve(long, String)}.
+     *
+     * @param bytes The size that was reserved.
+     */
+    synchronized void release(long bytes) {
+        if (parent != null) {
+            parent.release(bytes);
+            return;
+        }
+        reservedBytes -= bytes;
+    }
+
+    /**
+     * Measures the working directory and keeps the largest size seen.
+     *
+     * @return The current size of the working directory in bytes.
+     */
+    synchronized long sample() {
+        if (parent != null) {
+            return parent.sample();
+        }
+        long used = usedBytes();
+        peakBytes = Math.max(peakBytes, used);
+        return used;
+    }
+
+    /**
+     * @return The largest size of the working directory measured by
+     *         {@link #sample()}.
+     */
+    synchronized long getPeakBytes() {
+        return parent != null ? parent.getPeakBytes() : peakBytes;
+    }
+
+    /**
+     * @return The number of files deleted when the directory was closed.
+     */
+    synchronized int getFilesRemoved() {
+        return filesRemoved;
+    }
+
+    /**
+     * @return The bytes still free on the file system of the working
+     *         directory.
+     */
+    long getUsableBytes() {
+        // Ask the root, which outlives the working directory
+        return directory.getParent().toFile().getUsableSpace();
+    }
+
+    /**
+     * Deletes the working directory and everything in it. Files that cannot
+     * be deleted are logged and left for the next invocation to sweep.
+     */
+    @Override
+    public void close() {
+        sample();
+        try {
+            int deleted = deleteRecursively(directory);
+            synchronized (this) {
+                filesRemoved += deleted;
+            }
+            if (parent != null) {
+                synchronized (parent) {
+                    parent.filesRemoved += deleted;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(String.format("Operation: Scratch cleanup | Warning: Failed to delete %s: %s",
+                    directory, e.getMessage()));
+        }
+    }
+
+    private long usedBytes() {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        } catch (IOException | RuntimeException e) {
+            // A file deleted while walking; the next sample will see the directory as it is
+            return 0;
+        }
+    }
+
+    /**
+     * Deletes a file, or a directory and its content.
+     *
+     * @return The number of regular files deleted.
+     */
+    private static int deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        List<Path> entries;
+        try (Stream<Path> walk = Files.walk(path)) {
+            entries = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        int deleted = 0;
+        for (Path entry : entries) {
+            if (Files.isRegularFile(entry)) {
+                deleted++;
+            }
+            Files.deleteIfExists(entry);
+        }
+        return deleted;
+    }
+
+    /**
+     * Thrown when a file would not fit in the space left on the file system.
+     */
+    static final class OutOfSpaceException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OutOfSpaceException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Applies FlateDecode compression to the unfiltered streams of a document,
+ * deflating on a {@link ForkJoinPool}.
+ * <p>
+ * PDFBox objects are not thread-safe, so only the deflate step runs in
+ * parallel: stream bytes are read on the calling thread, deflated
+ * concurrently, and the results are attached back to their
+ * {@link COSStream}s on the calling thread. Streams are processed in batches
+ * so that only a bounded amount of stream data is held in memory at once.
+ * Large streams are first sampled by a {@link CompressionPredictor}, and
+ * those predicted not to shrink enough are never read in full.
+ * <p>
+ * Streams of {@link #STREAMING_THRESHOLD} bytes or more, typically image
+ * samples, are never held in a {@code byte[]}: they are deflated on the
+ * calling thread straight from their raw data into a temporary stream of the
+ * same document, through fixed-size buffers, so that their data lives only
+ * in the document's scratch storage, which spills to disk past the heap
+ * limit.
+ */
+final class StreamCompressor {
+
+    /** Streams smaller than this are not worth a filter entry. */
+    private static final int MIN_STREAM_LENGTH = 100;
+
+    /** Upper bound on raw stream bytes read into memory per batch. */
+    private static final long BATCH_BYTES = 32L * 1024 * 1024;
+
+    /** Streams at least this large are deflated without reading them into memory. */
+    static final long STREAMING_THRESHOLD = 1024 * 1024;
+
+    private final ForkJoinPool pool;
+    private final int minSavingPercent;
+    private final DeflaterPool deflaters;
+
+    /**
+     * Creates a compressor that keeps any compressed stream smaller than its
+     * original, deflating with the balanced preset.
+     *
+     * @param parallelism The number of threads used to deflate streams.
+     */
+    StreamCompressor(int parallelism) {
+        this(parallelism, 0, new DeflaterPool(MergerConfig.CompressionPreset.BALANCED, parallelism));
+    }
+
+    /**
+     * @param parallelism      The number of threads used to deflate streams.
+     * @param minSavingPercent The share, in percent, by which a stream must
+     *                         shrink to be stored compressed.
+     * @param deflaters        The deflaters to compress with.
+     */
+    StreamCompressor(int parallelism, int minSavingPercent, DeflaterPool deflaters) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.minSavingPercent = minSavingPercent;
+        this.deflaters = deflaters;
+    }
+
+    /**
+     * Compresses every unfiltered stream reachable in the document. A stream
+     * keeps its compressed form only if that is smaller than the original by
+     * at least the minimum saving.
+     *
+     * @param doc The document to compress.
+     * @return Counters describing what was compressed.
+     * @throws IOException If a stream cannot be read or written.
+     */
+    CompressionResult compress(PDDocument doc) throws IOException {
+        return compress(doc, Deadline.NONE);
+    }
+
+    /**
+     * Compresses unfiltered streams until every one is done or the deadline
+     * passes. The deadline is checked after each batch and each large
+     * stream, so some progress is always made; the streams not reached are
+     * left as they were, and are compressed by a later pass over the saved
+     * document.
+     *
+     * @param doc      The document to compress.
+     * @param deadline The time to stop by.
+     * @return Counters describing what was compressed.
+     * @throws IOException If a stream cannot be read or written.
+     */
+    CompressionResult compress(PDDocument doc, Deadline deadline) throws IOException {
+        CompressionResult result = new CompressionResult();
+        CompressionPredictor predictor = new CompressionPredictor(minSavingPercent, deflaters);
+        List<Candidate> batch = new ArrayList<>();
+        long batchBytes = 0;
+
+        for (COSStream stream : CosWalker.findStreams(doc.getDocument())) {
+            // Already compressed streams are left alone
+            if (stream.getDictionaryObject(COSName.FILTER) != null) {
+                result.recordSkipped();
+                continue;
+            }
+
+            try {
+                if (!predictor.worthCompressing(stream)) {
+                    result.recordPredictedIncompressible(stream.getLength());
+                    continue;
+                }
+            } catch (IOException e) {
+                result.recordSkipped();
+                continue;
+            }
+
+            if (stream.getLength() >= STREAMING_THRESHOLD) {
+                compressStreaming(doc, stream, predictor, result);
+                if (deadline.hasPassed()) {
+                    result.recordInterrupted();
+                    break;
+                }
+                continue;
+            }
+
+            byte[] data;
+            try (InputStream is = stream.createRawInputStream()) {
+                data = is.readAllBytes();
+            } catch (IOException e) {
+                result.recordSkipped();
+                continue;
+            }
+            if (data.length < MIN_STREAM_LENGTH) {
+                result.recordSkipped();
+                continue;
+            }
+
+            batch.add(new Candidate(stream, DeflaterPool.StreamType.of(stream), data));
+            batchBytes += data.length;
+            if (batchBytes >= BATCH_BYTES) {
+                compressBatch(batch, predictor, result);
+                batch.clear();
+                batchBytes = 0;
+                if (deadline.hasPassed()) {
+                    result.recordInterrupted();
+                    break;
+                }
+            }
+        }
+        compressBatch(batch, predictor, result);
+        if (predictor.hasGivenUp()) {
+            result.recordGivenUp();
+        }
+        return result;
+    }
+
+    private void compressBatch(List<Candidate> batch, CompressionPredictor predictor, CompressionResult result)
+            throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        pool.invoke(new DeflateTask(deflaters, batch, 0, batch.size()));
+
+        for (Candidate candidate : batch) {
+            if (!predictor.accepts(candidate.data.length, candidate.compressed.length)) {
+                result.recordSkipped();
+                continue;
+            }
+            if (attach(candidate)) {
+                result.recordCompressed(candidate.data.length, candidate.compressed.length);
+            } else {
+                result.recordSkipped();
+            }
+        }
+    }
+
+    /**
+     * Deflates one large stream through fixed-size buffers. The compressed
+     * data is written to a temporary stream first, because replacing the
+     * data of a stream discards the old data, and the original is only
+     * replaced once the saving is known to be worth it.
+     */
+    private void compressStreaming(PDDocument doc, COSStream stream, CompressionPredictor predictor,
+            CompressionResult result) throws IOException {
+        long originalLength = stream.getLength();
+        COSStream compressed = doc.getDocument().createCOSStream();
+        try {
+            long compressedLength;
+            try (InputStream in = stream.createRawInputStream();
+                    OutputStream out = compressed.createRawOutputStream()) {
+                compressedLength = deflaters.deflate(in, out, DeflaterPool.StreamType.of(stream));
+            } catch (IOException e) {
+                result.recordSkipped();
+                return;
+            }
+            if (!predictor.accepts(originalLength, compressedLength)) {
+                result.recordSkipped();
+                return;
+            }
+
+            try {
+                try (InputStream in = compressed.createRawInputStream();
+                        OutputStream out = stream.createRawOutputStream()) {
+                    in.transferTo(out);
+                }
+                stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+                result.recordCompressed(originalLength, compressedLength);
+            } catch (IOException e) {
+                // The original data is gone, so put it back by inflating the complete compressed copy
+                stream.removeItem(COSName.FILTER);
+                try (InputStream in = new InflaterInputStream(compressed.createRawInputStream());
+                        OutputStream out = stream.createRawOutputStream()) {
+                    in.transferTo(out);
+                }
+                result.recordSkipped();
+            }
+        } finally {
+            compressed.close();
+        }
+    }
+
+    /**
+     * Replaces the stream data with its compressed form.
+     *
+     * @return {@code false} if the compressed data could not be stored and the
+     *         original data was put back instead.
+     */
+    private static boolean attach(Candidate candidate) throws IOException {
+        COSStream stream = candidate.stream;
+        try {
+            try (OutputStream os = stream.createRawOutputStream()) {
+                os.write(candidate.compressed);
+            }
+            stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+            return true;
+        } catch (IOException e) {
+            // If storing the compressed data fails, put the original data back
+            stream.removeItem(COSName.FILTER);
+            try (OutputStream os = stream.createRawOutputStream()) {
+                os.write(candidate.data);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A stream selected for compression, with its original and deflated bytes.
+     */
+    private static final class Candidate {
+        private final COSStream stream;
+        private final DeflaterPool.StreamType type;
+        private final byte[] data;
+        private byte[] compressed;
+
+        Candidate(COSStream stream, DeflaterPool.StreamType type, byte[] data) {
+            this.stream = stream;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Deflates a range of candidates, splitting it until each task handles a
+     * single stream. Only touches byte arrays, never PDFBox objects.
+     */
+    private static final class DeflateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DeflaterPool deflaters;
+        private final List<Candidate> candidates;
+        private final int from;
+        private final int to;
+
+        DeflateTask(DeflaterPool deflaters, List<Candidate> candidates, int from, int to) {
+            this.deflaters = deflaters;
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                Candidate candidate = candidates.get(from);
+                candidate.compressed = deflaters.deflate(candidate.data, candidate.type);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DeflateTask(deflaters, candidates, from, middle),
+                    new DeflateTask(deflaters, candidates, middle, to));
+        }
+    }
+}
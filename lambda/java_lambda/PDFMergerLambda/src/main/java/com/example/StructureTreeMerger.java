@@ -0,0 +1,542 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDMarkInfo;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureTreeRoot;
+import org.apache.pdfbox.pdmodel.interactive.viewerpreferences.PDViewerPreferences;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Merges the structure trees of tagged chunks in one linear pass.
+ * <p>
+ * {@link PDFMergerUtility} reads the destination's whole parent tree into a
+ * map and writes it back as one flat array on every append, so merging
+ * tagged chunks takes time quadratic in the number of tags. Here the source
+ * structure tree is taken out of each chunk before PDFBox appends its pages.
+ * The chunk's StructParents keys are then shifted by a running offset, its
+ * parent tree entries are added to one sorted list, and its top-level
+ * elements are joined the same way PDFBox joins them. The parent tree and ID
+ * tree are built once, as balanced trees, when the last chunk is in.
+ * <p>
+ * One instance merges into one destination and is not thread-safe.
+ */
+final class StructureTreeMerger {
+
+    /** The entries of each leaf, and the kids of each intermediate node, of the built trees. */
+    static final int MAX_NODE_ENTRIES = 64;
+
+    private final PDDocument destination;
+    private PDStructureTreeRoot root;
+    /** Keys and values of the merged parent tree, in ascending key order. */
+    private final COSArray parentTreeNums = new COSArray();
+    private final Map<String, COSBase> ids = new TreeMap<>();
+    private int nextKey;
+
+    /**
+     * @param destination The document the chunks are merged into, which
+     *                    must not have a structure tree of its own.
+     */
+    StructureTreeMerger(PDDocument destination) {
+        this.destination = destination;
+    }
+
+    /**
+     * Appends a document to the destination, merging its structure tree.
+     *
+     * @param merger The utility that appends the pages and everything else.
+     * @param source The document to append. Its structure tree is removed
+     *               from its catalog.
+     * @throws IOException If the document cannot be appended.
+     */
+    void append(PDFMergerUtility merger, PDDocument source) throws IOException {
+        PDDocumentCatalog sourceCatalog = source.getDocumentCatalog();
+        PDStructureTreeRoot sourceTree = sourceCatalog.getStructureTreeRoot();
+        // Without a structure tree on either side, PDFBox merges none and strips StructParents from the new pages
+        sourceCatalog.getCOSObject().removeItem(COSName.STRUCT_TREE_ROOT);
+        COSArray destinationPages = destination.getPages().getCOSObject().getCOSArray(COSName.KIDS);
+        int firstPage = destinationPages == null ? 0 : destinationPages.size();
+        merger.appendDocument(destination, source);
+        if (sourceTree == null) {
+            return;
+        }
+
+        TreeMap<Integer, COSBase> sourceParentTree = new TreeMap<>();
+        COSDictionary parentTreeNode = sourceTree.getCOSObject().getCOSDictionary(COSName.PARENT_TREE);
+        if (parentTreeNode != null) {
+            collectNumbers(parentTreeNode, sourceParentTree, Collections.newSetFromMap(new IdentityHashMap<>()));
+        }
+        if (sourceParentTree.isEmpty()) {
+            // Like PDFBox, drop a tree that no content refers to
+            return;
+        }
+        if (root == null) {
+            root = new PDStructureTreeRoot();
+        }
+
+        int offset = nextKey;
+        Map<COSBase, COSBase> clones = new IdentityHashMap<>();
+        clones.put(sourceTree.getCOSObject(), root.getCOSObject());
+        // The page tree of the destination is flat: PDFBox adds every page to the root's kids
+        destinationPages = destination.getPages().getCOSObject().getCOSArray(COSName.KIDS);
+        int pageIndex = firstPage;
+        for (PDPage page : sourceCatalog.getPages()) {
+            COSDictionary newPage = (COSDictionary) destinationPages.getObject(pageIndex++);
+            mapCopies(page, newPage, clones, offset);
+        }
+
+        for (Map.Entry<Integer, COSBase> entry : sourceParentTree.entrySet()) {
+            COSBase value = copy(entry.getValue(), clones);
+            if (value != null) {
+                parentTreeNums.add(COSInteger.get((long) entry.getKey() + offset));
+                parentTreeNums.add(value);
+            }
+        }
+        int maxKey = sourceParentTree.lastKey();
+        nextKey = offset + Math.max(maxKey + 1, sourceTree.getParentTreeNextKey());
+
+        mergeKEntries(copy(sourceTree.getK(), clones));
+        mergeRoleMap(sourceTree.getCOSObject());
+        mergeClassMap(sourceTree.getCOSObject(), clones);
+        COSDictionary idTree = sourceTree.getCOSObject().getCOSDictionary(COSName.ID_TREE);
+        if (idTree != null) {
+            Map<String, COSBase> sourceIds = new TreeMap<>();
+            collectNames(idTree, sourceIds, Collections.newSetFromMap(new IdentityHashMap<>()));
+            for (Map.Entry<String, COSBase> entry : sourceIds.entrySet()) {
+                if (!ids.containsKey(entry.getKey())) {
+                    ids.put(entry.getKey(), copy(entry.getValue(), clones));
+                }
+            }
+        }
+        mergeCatalogEntries(destination.getDocumentCatalog(), sourceCatalog);
+    }
+
+    /**
+     * Builds the parent tree and ID tree and attaches the merged structure
+     * tree to the destination. Does nothing if no tagged document was
+     * appended.
+     */
+    void finish() {
+        if (root == null) {
+            return;
+        }
+        COSDictionary rootDictionary = root.getCOSObject();
+        rootDictionary.setItem(COSName.PARENT_TREE, buildTree(parentTreeNums, COSName.NUMS));
+        root.setParentTreeNextKey(nextKey);
+        if (!ids.isEmpty()) {
+            COSArray names = new COSArray();
+            for (Map.Entry<String, COSBase> entry : ids.entrySet()) {
+                names.add(new COSString(entry.getKey()));
+                names.add(entry.getValue());
+            }
+            rootDictionary.setItem(COSName.ID_TREE, buildTree(names, COSName.NAMES));
+        }
+        destination.getDocumentCatalog().setStructureTreeRoot(root);
+    }
+
+    /**
+     * @return The number of entries in the merged parent tree.
+     */
+    int getParentTreeSize() {
+        return parentTreeNums.size() / 2;
+    }
+
+    /**
+     * Pairs the objects of a source page with their copies on the appended
+     * page, so that structure elements referring to them refer to the
+     * copies, and shifts the StructParent(s) keys of the copies by the
+     * chunk's offset.
+     */
+    private static void mapCopies(PDPage page, COSDictionary newPage, Map<COSBase, COSBase> clones,
+            int offset) {
+        Deque<COSBase[]> pending = new ArrayDeque<>();
+        pending.push(new COSBase[] { page.getCOSObject(), newPage });
+        // Resources may be inherited in the source but are always on the copied page
+        if (page.getResources() != null) {
+            pending.push(new COSBase[] { page.getResources().getCOSObject(),
+                    newPage.getDictionaryObject(COSName.RESOURCES) });
+        }
+        while (!pending.isEmpty()) {
+            COSBase[] pair = pending.pop();
+            COSBase original = dereference(pair[0]);
+            COSBase copy = dereference(pair[1]);
+            if (original == null || copy == null || original.getClass() != copy.getClass()
+                    || clones.containsKey(original)) {
+                continue;
+            }
+            clones.put(original, copy);
+            if (original instanceof COSArray) {
+                COSArray originalArray = (COSArray) original;
+                COSArray copyArray = (COSArray) copy;
+                if (originalArray.size() == copyArray.size()) {
+                    for (int i = 0; i < originalArray.size(); i++) {
+                        pending.push(new COSBase[] { originalArray.get(i), copyArray.get(i) });
+                    }
+                }
+            } else if (original instanceof COSDictionary) {
+                COSDictionary originalDictionary = (COSDictionary) original;
+                COSDictionary copyDictionary = (COSDictionary) copy;
+                shiftKey(originalDictionary, copyDictionary, COSName.STRUCT_PARENTS, offset);
+                shiftKey(originalDictionary, copyDictionary, COSName.STRUCT_PARENT, offset);
+                boolean isPage = originalDictionary == page.getCOSObject();
+                for (Map.Entry<COSName, COSBase> entry : originalDictionary.entrySet()) {
+                    COSName key = entry.getKey();
+                    if (!COSName.PARENT.equals(key) && !(isPage && COSName.RESOURCES.equals(key))) {
+                        pending.push(new COSBase[] { entry.getValue(), copyDictionary.getItem(key) });
+                    }
+                }
+            }
+        }
+    }
+
+    private static void shiftKey(COSDictionary original, COSDictionary copy, COSName key, int offset) {
+        int value = original.getInt(key, -1);
+        if (value >= 0) {
+            copy.setInt(key, value + offset);
+        }
+    }
+
+    /**
+     * Copies a structure tree object into the destination, reusing the
+     * copies already made of pages, annotations, XObjects and earlier
+     * structure objects of the same chunk.
+     */
+    private COSBase copy(COSBase base, Map<COSBase, COSBase> clones) throws IOException {
+        COSBase object = dereference(base);
+        if (object == null) {
+            return null;
+        }
+        COSBase existing = clones.get(object);
+        if (existing != null) {
+            return existing;
+        }
+        if (object instanceof COSArray) {
+            COSArray array = (COSArray) object;
+            COSArray copy = new COSArray();
+            clones.put(object, copy);
+            for (int i = 0; i < array.size(); i++) {
+                COSBase item = copy(array.get(i), clones);
+                copy.add(item == null ? COSNull.NULL : item);
+            }
+            return copy;
+        }
+        if (object instanceof COSStream) {
+            COSStream stream = (COSStream) object;
+            COSStream copy = destination.getDocument().createCOSStream();
+            clones.put(object, copy);
+            copyEntries(stream, copy, clones);
+            try (InputStream in = stream.createRawInputStream(); OutputStream out = copy.createRawOutputStream()) {
+                in.transferTo(out);
+            }
+            return copy;
+        }
+        if (object instanceof COSDictionary) {
+            COSDictionary copy = new COSDictionary();
+            clones.put(object, copy);
+            copyEntries((COSDictionary) object, copy, clones);
+            return copy;
+        }
+        // Names, numbers, strings and booleans are never modified, so they can be shared
+        return object;
+    }
+
+    private void copyEntries(COSDictionary original, COSDictionary copy, Map<COSBase, COSBase> clones)
+            throws IOException {
+        for (Map.Entry<COSName, COSBase> entry : original.entrySet()) {
+            COSBase value = copy(entry.getValue(), clones);
+            if (value != null) {
+                copy.setItem(entry.getKey(), value);
+            }
+        }
+    }
+
+    /**
+     * Joins the copied top-level elements of a chunk to the destination
+     * tree, as {@code PDFMergerUtility} does, so that {@link MergedPartStructure}
+     * sees the same shape whichever merge built a part.
+     */
+    private void mergeKEntries(COSBase copiedK) {
+        COSArray sourceKids = new COSArray();
+        if (copiedK instanceof COSArray) {
+            sourceKids.addAll((COSArray) copiedK);
+        } else if (copiedK instanceof COSDictionary) {
+            sourceKids.add(copiedK);
+        }
+        if (sourceKids.size() == 0) {
+            return;
+        }
+
+        COSArray destinationKids = new COSArray();
+        COSBase destinationK = root.getK();
+        if (destinationK instanceof COSArray) {
+            destinationKids.addAll((COSArray) destinationK);
+        } else if (destinationK instanceof COSDictionary) {
+            destinationKids.add(destinationK);
+        }
+
+        if (destinationKids.size() == 1 && destinationKids.getObject(0) instanceof COSDictionary) {
+            // A single /Document whose children are documents or parts takes the new elements as parts
+            COSDictionary top = (COSDictionary) destinationKids.getObject(0);
+            COSArray topKids = top.getCOSArray(COSName.K);
+            if (COSName.DOCUMENT.equals(top.getCOSName(COSName.S)) && topKids != null
+                    && hasOnlyDocumentsOrParts(topKids)) {
+                topKids.addAll(sourceKids);
+                setParent(topKids, top, COSName.PART);
+                return;
+            }
+        }
+
+        if (destinationKids.size() == 0) {
+            setParent(sourceKids, root.getCOSObject(), null);
+            root.setK(sourceKids);
+            return;
+        }
+
+        destinationKids.addAll(sourceKids);
+        COSDictionary document = new COSDictionary();
+        setParent(destinationKids, document, hasOnlyDocumentsOrParts(destinationKids) ? COSName.PART : null);
+        document.setItem(COSName.K, destinationKids);
+        document.setItem(COSName.P, root);
+        document.setItem(COSName.S, COSName.DOCUMENT);
+        root.setK(document);
+    }
+
+    private static boolean hasOnlyDocumentsOrParts(COSArray kids) {
+        for (int i = 0; i < kids.size(); i++) {
+            COSBase kid = kids.getObject(i);
+            if (!(kid instanceof COSDictionary)) {
+                return false;
+            }
+            COSName type = ((COSDictionary) kid).getCOSName(COSName.S);
+            if (!COSName.DOCUMENT.equals(type) && !COSName.PART.equals(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void setParent(COSArray kids, COSDictionary parent, COSName newType) {
+        for (int i = 0; i < kids.size(); i++) {
+            COSBase kid = kids.getObject(i);
+            if (kid instanceof COSDictionary) {
+                ((COSDictionary) kid).setItem(COSName.P, parent);
+                if (newType != null) {
+                    ((COSDictionary) kid).setItem(COSName.S, newType);
+                }
+            }
+        }
+    }
+
+    private void mergeRoleMap(COSDictionary sourceTree) {
+        COSDictionary sourceRoles = sourceTree.getCOSDictionary(COSName.ROLE_MAP);
+        if (sourceRoles == null) {
+            return;
+        }
+        COSDictionary roles = root.getCOSObject().getCOSDictionary(COSName.ROLE_MAP);
+        if (roles == null) {
+            roles = new COSDictionary();
+            root.getCOSObject().setItem(COSName.ROLE_MAP, roles);
+        }
+        // Role map values are names, which need no copy; the first chunk to map a role wins
+        for (Map.Entry<COSName, COSBase> entry : sourceRoles.entrySet()) {
+            if (!roles.containsKey(entry.getKey())) {
+                roles.setItem(entry.getKey(), dereference(entry.getValue()));
+            }
+        }
+    }
+
+    private void mergeClassMap(COSDictionary sourceTree, Map<COSBase, COSBase> clones) throws IOException {
+        COSName classMapKey = COSName.getPDFName("ClassMap");
+        COSDictionary sourceClasses = sourceTree.getCOSDictionary(classMapKey);
+        if (sourceClasses == null) {
+            return;
+        }
+        COSDictionary classes = root.getCOSObject().getCOSDictionary(classMapKey);
+        if (classes == null) {
+            classes = new COSDictionary();
+            root.getCOSObject().setItem(classMapKey, classes);
+        }
+        for (Map.Entry<COSName, COSBase> entry : sourceClasses.entrySet()) {
+            if (!classes.containsKey(entry.getKey())) {
+                classes.setItem(entry.getKey(), copy(entry.getValue(), clones));
+            }
+        }
+    }
+
+    /**
+     * Merges the catalog entries PDFBox merges along with a structure tree.
+     */
+    private static void mergeCatalogEntries(PDDocumentCatalog catalog, PDDocumentCatalog sourceCatalog) {
+        PDMarkInfo markInfo = catalog.getMarkInfo() == null ? new PDMarkInfo() : catalog.getMarkInfo();
+        PDMarkInfo sourceMarkInfo = sourceCatalog.getMarkInfo();
+        markInfo.setMarked(true);
+        if (sourceMarkInfo != null) {
+            markInfo.setSuspect(markInfo.isSuspect() || sourceMarkInfo.isSuspect());
+            markInfo.setUserProperties(markInfo.usesUserProperties() || sourceMarkInfo.usesUserProperties());
+        }
+        catalog.setMarkInfo(markInfo);
+
+        if (catalog.getLanguage() == null && sourceCatalog.getLanguage() != null) {
+            catalog.setLanguage(sourceCatalog.getLanguage());
+        }
+
+        PDViewerPreferences sourcePreferences = sourceCatalog.getViewerPreferences();
+        if (sourcePreferences != null) {
+            PDViewerPreferences preferences = catalog.getViewerPreferences();
+            if (preferences == null) {
+                preferences = new PDViewerPreferences(new COSDictionary());
+                catalog.setViewerPreferences(preferences);
+            }
+            for (Map.Entry<COSName, COSBase> entry : sourcePreferences.getCOSObject().entrySet()) {
+                if (!preferences.getCOSObject().containsKey(entry.getKey())) {
+                    preferences.getCOSObject().setItem(entry.getKey(), entry.getValue());
+                }
+            }
+            // A preference set by any chunk stays set
+            preferences.setHideToolbar(preferences.hideToolbar() || sourcePreferences.hideToolbar());
+            preferences.setHideMenubar(preferences.hideMenubar() || sourcePreferences.hideMenubar());
+            preferences.setHideWindowUI(preferences.hideWindowUI() || sourcePreferences.hideWindowUI());
+            preferences.setFitWindow(preferences.fitWindow() || sourcePreferences.fitWindow());
+            preferences.setCenterWindow(preferences.centerWindow() || sourcePreferences.centerWindow());
+            preferences.setDisplayDocTitle(preferences.displayDocTitle() || sourcePreferences.displayDocTitle());
+        }
+    }
+
+    /**
+     * Builds a balanced number or name tree: leaves of up to
+     * {@link #MAX_NODE_ENTRIES} entries, and as many levels of intermediate
+     * nodes as needed to give the root no more than that many kids.
+     *
+     * @param pairs      The keys and values, alternating, in ascending key
+     *                   order.
+     * @param entriesKey {@code /Nums} or {@code /Names}.
+     * @return The root node, which has no {@code /Limits}.
+     */
+    static COSDictionary buildTree(COSArray pairs, COSName entriesKey) {
+        List<COSDictionary> level = new ArrayList<>();
+        for (int from = 0; from < pairs.size(); from += 2 * MAX_NODE_ENTRIES) {
+            int to = Math.min(pairs.size(), from + 2 * MAX_NODE_ENTRIES);
+            COSArray entries = new COSArray();
+            for (int i = from; i < to; i++) {
+                entries.add(pairs.get(i));
+            }
+            COSDictionary leaf = new COSDictionary();
+            leaf.setItem(entriesKey, entries);
+            leaf.setItem(COSName.LIMITS, limits(pairs.get(from), pairs.get(to - 2)));
+            level.add(leaf);
+        }
+        if (level.size() <= 1) {
+            COSDictionary single = level.isEmpty() ? new COSDictionary() : level.get(0);
+            single.removeItem(COSName.LIMITS);
+            if (level.isEmpty()) {
+                single.setItem(entriesKey, new COSArray());
+            }
+            return single;
+        }
+        while (level.size() > MAX_NODE_ENTRIES) {
+            List<COSDictionary> parents = new ArrayList<>();
+            for (int from = 0; from < level.size(); from += MAX_NODE_ENTRIES) {
+                List<COSDictionary> kids = level.subList(from, Math.min(level.size(), from + MAX_NODE_ENTRIES));
+                COSDictionary node = new COSDictionary();
+                node.setItem(COSName.KIDS, toArray(kids));
+                COSArray first = kids.get(0).getCOSArray(COSName.LIMITS);
+                COSArray last = kids.get(kids.size() - 1).getCOSArray(COSName.LIMITS);
+                node.setItem(COSName.LIMITS, limits(first.get(0), last.get(1)));
+                parents.add(node);
+            }
+            level = parents;
+        }
+        COSDictionary treeRoot = new COSDictionary();
+        treeRoot.setItem(COSName.KIDS, toArray(level));
+        return treeRoot;
+    }
+
+    private static COSArray limits(COSBase lowest, COSBase highest) {
+        COSArray limits = new COSArray();
+        limits.add(lowest);
+        limits.add(highest);
+        return limits;
+    }
+
+    private static COSArray toArray(List<COSDictionary> nodes) {
+        COSArray array = new COSArray();
+        for (COSDictionary node : nodes) {
+            array.add(node);
+        }
+        return array;
+    }
+
+    private static void collectNumbers(COSDictionary node, Map<Integer, COSBase> out, Set<COSBase> visited) {
+        if (!visited.add(node)) {
+            return;
+        }
+        COSArray nums = node.getCOSArray(COSName.NUMS);
+        if (nums != null) {
+            for (int i = 0; i + 1 < nums.size(); i += 2) {
+                COSBase key = nums.getObject(i);
+                if (key instanceof COSNumber) {
+                    out.put(((COSNumber) key).intValue(), nums.get(i + 1));
+                }
+            }
+        }
+        COSArray kids = node.getCOSArray(COSName.KIDS);
+        if (kids != null) {
+            for (int i = 0; i < kids.size(); i++) {
+                if (kids.getObject(i) instanceof COSDictionary) {
+                    collectNumbers((COSDictionary) kids.getObject(i), out, visited);
+                }
+            }
+        }
+    }
+
+    private static void collectNames(COSDictionary node, Map<String, COSBase> out, Set<COSBase> visited) {
+        if (!visited.add(node)) {
+            return;
+        }
+        COSArray names = node.getCOSArray(COSName.NAMES);
+        if (names != null) {
+            for (int i = 0; i + 1 < names.size(); i += 2) {
+                COSBase key = names.getObject(i);
+                if (key instanceof COSString) {
+                    out.putIfAbsent(((COSString) key).getString(), names.get(i + 1));
+                }
+            }
+        }
+        COSArray kids = node.getCOSArray(COSName.KIDS);
+        if (kids != null) {
+            for (int i = 0; i < kids.size(); i++) {
+                if (kids.getObject(i) instanceof COSDictionary) {
+                    collectNames((COSDictionary) kids.getObject(i), out, visited);
+                }
+            }
+        }
+    }
+
+    private static COSBase dereference(COSBase base) {
+        return base instanceof COSObject ? ((COSObject) base).getObject() : base;
+    }
+}
@@ -0,0 +1,129 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests merging a batch of documents in one invocation.
+ */
+public class AppBatchTest {
+
+    @Test
+    void reportsEachDocumentOfABatch(@TempDir Path scratch) throws IOException {
+        byte[] sample;
+        try (InputStream in = App.class.getResourceAsStream("/priming-sample.pdf")) {
+            sample = in.readAllBytes();
+        }
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        for (String document : Arrays.asList("a", "b")) {
+            for (int chunk = 1; chunk <= 2; chunk++) {
+                s3.put(String.format("temp/%s/FINAL_%s_chunk_%d.pdf", document, document, chunk), sample);
+            }
+        }
+        App app = new App(s3, config(scratch));
+
+        Map<String, Object> input = Collections.singletonMap(MergeRequest.DOCUMENTS, Arrays.asList(
+                document("temp/a/a_chunk_1.pdf", "temp/a/a_chunk_2.pdf"),
+                document("temp/missing/missing_chunk_1.pdf"),
+                document("temp/b/b_chunk_1.pdf", "temp/b/b_chunk_2.pdf"),
+                Collections.singletonMap(MergeRequest.MERGE_MODE, "sideways")));
+        JSONObject result = new JSONObject(app.handleRequest(input, null));
+
+        assertEquals(2, result.getInt("succeeded"));
+        assertEquals(2, result.getInt("failed"));
+        JSONArray documents = result.getJSONArray("documents");
+        assertEquals("succeeded", documents.getJSONObject(0).getString("status"));
+        assertEquals("temp/a/merged_a.pdf", documents.getJSONObject(0).getString("outputKey"));
+        assertEquals("failed", documents.getJSONObject(1).getString("status"));
+        assertEquals("succeeded", documents.getJSONObject(2).getString("status"));
+        assertEquals("failed", documents.getJSONObject(3).getString("status"));
+        assertEquals(Set.of("temp/a/merged_a.pdf", "temp/b/merged_b.pdf"), s3.getUploadedKeys());
+        // Every document's working directory, and the invocation's, is gone
+        try (Stream<Path> left = Files.list(scratch)) {
+            assertEquals(0, left.count());
+        }
+    }
+
+    @Test
+    void skipsDocumentsWhoseOutputIsUpToDate(@TempDir Path scratch) throws IOException {
+        byte[] sample;
+        try (InputStream in = App.class.getResourceAsStream("/priming-sample.pdf")) {
+            sample = in.readAllBytes();
+        }
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        s3.put("temp/a/FINAL_a_chunk_1.pdf", sample);
+        s3.put("temp/a/FINAL_a_chunk_2.pdf", sample);
+        App app = new App(s3, config(scratch));
+        Map<String, Object> input = Collections.singletonMap(MergeRequest.DOCUMENTS,
+                Collections.singletonList(document("temp/a/a_chunk_1.pdf", "temp/a/a_chunk_2.pdf")));
+
+        assertFalse(firstDocument(app.handleRequest(input, null)).getBoolean("upToDate"));
+        assertEquals(1, s3.getUploadCount());
+
+        // A retry finds the output with the fingerprint of the same inputs
+        assertTrue(firstDocument(app.handleRequest(input, null)).getBoolean("upToDate"));
+        assertEquals(1, s3.getUploadCount());
+
+        // A replaced chunk has a new ETag, so the document is merged again
+        s3.put("temp/a/FINAL_a_chunk_2.pdf", sample);
+        assertFalse(firstDocument(app.handleRequest(input, null)).getBoolean("upToDate"));
+        assertEquals(2, s3.getUploadCount());
+    }
+
+    @Test
+    void rejectsIncrementalAndResumedDocuments(@TempDir Path scratch) throws IOException {
+        byte[] sample;
+        try (InputStream in = App.class.getResourceAsStream("/priming-sample.pdf")) {
+            sample = in.readAllBytes();
+        }
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        s3.put("temp/a/FINAL_a_chunk_1.pdf", sample);
+        App app = new App(s3, config(scratch));
+
+        Map<String, Object> incremental = new HashMap<>(document("temp/a/a_chunk_1.pdf"));
+        incremental.put(MergeRequest.MERGE_MODE, "incremental");
+        Map<String, Object> resumed = new HashMap<>(document("temp/a/a_chunk_1.pdf"));
+        resumed.put(MergeRequest.RESUME_FROM, 0);
+        Map<String, Object> input = Collections.singletonMap(MergeRequest.DOCUMENTS,
+                Arrays.asList(incremental, resumed));
+        JSONObject result = new JSONObject(app.handleRequest(input, null));
+
+        // Neither may write the checkpoint or segments that other invocations for the document read
+        assertEquals(2, result.getInt("failed"));
+        assertNull(s3.get("temp/a/checkpoints/merged_a.pdf"));
+        assertEquals(0, s3.getUploadCount());
+    }
+
+    private static JSONObject firstDocument(String result) {
+        JSONObject document = new JSONObject(result).getJSONArray("documents").getJSONObject(0);
+        assertEquals("succeeded", document.getString("status"));
+        return document;
+    }
+
+    private static MergerConfig config(Path scratch) {
+        Map<String, String> env = new HashMap<>();
+        env.put(MergerConfig.MERGE_SCRATCH_DIR, scratch.toString());
+        env.put(MergerConfig.BATCH_CONCURRENCY, "2");
+        env.put(MergerConfig.DOWNLOAD_MAX_ATTEMPTS, "1");
+        return MergerConfig.fromMap(env);
+    }
+
+    private static Map<String, Object> document(String... fileNames) {
+        return Collections.singletonMap(MergeRequest.FILE_NAMES, Arrays.asList(fileNames));
+    }
+}
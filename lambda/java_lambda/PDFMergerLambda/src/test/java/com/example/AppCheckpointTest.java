@@ -0,0 +1,268 @@
+package com.example;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests saving a checkpoint when a merge runs out of time and resuming from
+ * it, and merging chunks into segments as they finish.
+ */
+public class AppCheckpointTest {
+
+    private static final String OUTPUT_KEY = "temp/report/merged_report.pdf";
+    private static final String CHECKPOINT_KEY = "temp/report/checkpoints/merged_report.pdf";
+
+    @Test
+    void resumesFromCheckpointToTheSameDocument(@TempDir Path scratch) throws IOException {
+        byte[] sample;
+        try (InputStream in = App.class.getResourceAsStream("/priming-sample.pdf")) {
+            sample = in.readAllBytes();
+        }
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        for (int chunk = 1; chunk <= 3; chunk++) {
+            s3.put(String.format("temp/report/FINAL_report_chunk_%d.pdf", chunk), sample);
+        }
+        App app = new App(s3, config(scratch));
+        Map<String, Object> input = Collections.singletonMap(MergeRequest.FILE_NAMES, Arrays.asList(
+                "temp/report/report_chunk_1.pdf", "temp/report/report_chunk_2.pdf", "temp/report/report_chunk_3.pdf"));
+
+        // Out of time from the start: two chunks are merged, then a checkpoint is saved
+        JSONObject result = new JSONObject(app.handleRequest(input, remainingTime(0)));
+        assertEquals("checkpointed", result.getString("status"));
+        JSONObject continuation = result.getJSONObject("continuation");
+        assertEquals(2, continuation.getInt(MergeRequest.RESUME_FROM));
+        assertNotNull(s3.get(CHECKPOINT_KEY));
+        assertNull(s3.get(OUTPUT_KEY));
+
+        // The continuation merges the checkpoint with the last chunk, and the checkpoint is removed
+        String resumed = app.handleRequest(continuation.toMap(), remainingTime(0));
+        assertTrue(resumed.startsWith("PDFs merged successfully."), resumed);
+        assertNull(s3.get(CHECKPOINT_KEY));
+
+        // Without a deadline, the same chunks merge in one invocation
+        InMemoryS3Client referenceS3 = new InMemoryS3Client();
+        for (int chunk = 1; chunk <= 3; chunk++) {
+            referenceS3.put(String.format("temp/report/FINAL_report_chunk_%d.pdf", chunk), sample);
+        }
+        new App(referenceS3, config(scratch)).handleRequest(input, null);
+
+        try (PDDocument expected = PDDocument.load(referenceS3.get(OUTPUT_KEY));
+                PDDocument actual = PDDocument.load(s3.get(OUTPUT_KEY))) {
+            assertEquals(expected.getNumberOfPages(), actual.getNumberOfPages());
+            assertEquals(expected.getDocumentCatalog().getStructureTreeRoot().getKids().size(),
+                    actual.getDocumentCatalog().getStructureTreeRoot().getKids().size());
+        }
+    }
+
+    @Test
+    void mergesFinishedChunksIntoSegments(@TempDir Path scratch) throws IOException {
+        byte[] sample = sample();
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        App app = new App(s3, config(scratch));
+
+        // A chunk that finishes before its sibling is held until the sibling does
+        s3.put("temp/report/FINAL_report_chunk_2.pdf", sample);
+        assertEquals("held", incremental(app, 2).getString("status"));
+        s3.put("temp/report/FINAL_report_chunk_1.pdf", sample);
+        assertEquals(2, incremental(app, 1).getInt("mergedChunks"));
+        s3.put("temp/report/FINAL_report_chunk_4.pdf", sample);
+        assertEquals("held", incremental(app, 4).getString("status"));
+        s3.put("temp/report/FINAL_report_chunk_3.pdf", sample);
+        JSONObject merged = incremental(app, 3);
+        assertEquals(4, merged.getInt("mergedChunks"));
+        assertEquals(segmentKey(1, 4), merged.getString("segment"));
+        s3.put("temp/report/FINAL_report_chunk_5.pdf", sample);
+        assertEquals("held", incremental(app, 5).getString("status"));
+        assertNull(s3.get(CHECKPOINT_KEY));
+
+        // The full merge reads the segment in place of its chunks, to the same document
+        Map<String, Object> input = Collections.singletonMap(MergeRequest.FILE_NAMES, chunkNames(5));
+        assertTrue(app.handleRequest(input, null).startsWith("PDFs merged successfully."));
+        InMemoryS3Client referenceS3 = new InMemoryS3Client();
+        for (int chunk = 1; chunk <= 5; chunk++) {
+            referenceS3.put(String.format("temp/report/FINAL_report_chunk_%d.pdf", chunk), sample);
+        }
+        new App(referenceS3, config(scratch)).handleRequest(input, null);
+        try (PDDocument expected = PDDocument.load(referenceS3.get(OUTPUT_KEY));
+                PDDocument actual = PDDocument.load(s3.get(OUTPUT_KEY))) {
+            assertEquals(expected.getNumberOfPages(), actual.getNumberOfPages());
+            assertEquals(expected.getDocumentCatalog().getStructureTreeRoot().getKids().size(),
+                    actual.getDocumentCatalog().getStructureTreeRoot().getKids().size());
+        }
+
+        // A chunk remediated again after it was merged is read itself instead of the segments that hold it
+        s3.put("temp/report/FINAL_report_chunk_4.pdf", onePage());
+        assertTrue(app.handleRequest(input, null).startsWith("PDFs merged successfully."));
+        int samplePages;
+        try (PDDocument document = PDDocument.load(sample)) {
+            samplePages = document.getNumberOfPages();
+        }
+        try (PDDocument document = PDDocument.load(s3.get(OUTPUT_KEY))) {
+            assertEquals(4 * samplePages + 1, document.getNumberOfPages());
+        }
+    }
+
+    /**
+     * A slow invocation that finishes building a segment after a newer one
+     * replaced it must not be merged in place of the newer chunks.
+     */
+    @Test
+    void ignoresASegmentBuiltFromAReplacedChunk(@TempDir Path scratch) throws IOException {
+        byte[] sample = sample();
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        App app = new App(s3, config(scratch));
+        s3.put("temp/report/FINAL_report_chunk_1.pdf", sample);
+        s3.put("temp/report/FINAL_report_chunk_2.pdf", sample);
+        assertEquals(2, incremental(app, 2).getInt("mergedChunks"));
+        byte[] stale = s3.get(segmentKey(1, 2));
+        ObjectMetadata staleMetadata = s3.getObjectMetadata(null, segmentKey(1, 2)).clone();
+
+        s3.put("temp/report/FINAL_report_chunk_2.pdf", onePage());
+        assertEquals(2, incremental(app, 2).getInt("mergedChunks"));
+        s3.putObject(new PutObjectRequest(null, segmentKey(1, 2), new ByteArrayInputStream(stale), staleMetadata));
+
+        Map<String, Object> input = Collections.singletonMap(MergeRequest.FILE_NAMES, chunkNames(2));
+        assertTrue(app.handleRequest(input, null).startsWith("PDFs merged successfully."));
+        try (PDDocument document = PDDocument.load(sample)) {
+            int samplePages = document.getNumberOfPages();
+            try (PDDocument merged = PDDocument.load(s3.get(OUTPUT_KEY))) {
+                assertEquals(samplePages + 1, merged.getNumberOfPages());
+            }
+        }
+    }
+
+    /**
+     * A segment is only read as the version whose chunks were checked.
+     */
+    @Test
+    void doesNotMergeASegmentReplacedAfterItWasChecked(@TempDir Path scratch) throws IOException {
+        byte[] sample = sample();
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        for (int chunk = 1; chunk <= 3; chunk++) {
+            s3.put(String.format("temp/report/FINAL_report_chunk_%d.pdf", chunk), sample);
+        }
+        assertEquals(2, incremental(new App(s3, config(scratch)), 2).getInt("mergedChunks"));
+
+        // Another invocation writes the segment again just before this one downloads the version checked
+        byte[] replacement = onePage();
+        ObjectStore classic = new ClassicObjectStore(s3);
+        ObjectStore racing = new ObjectStore() {
+            @Override
+            public PdfChunk download(String bucketName, String key, File destination, SizeCheck sizeCheck)
+                    throws IOException {
+                replaceSegment(key);
+                return classic.download(bucketName, key, destination, sizeCheck);
+            }
+
+            @Override
+            public PdfChunk read(String bucketName, String key) throws IOException {
+                replaceSegment(key);
+                return classic.read(bucketName, key);
+            }
+
+            private void replaceSegment(String key) {
+                if (key.equals(segmentKey(1, 2))) {
+                    s3.put(key, replacement);
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        App app = new App(s3, racing, config(scratch));
+
+        Map<String, Object> input = Collections.singletonMap(MergeRequest.FILE_NAMES, chunkNames(3));
+        assertEquals("Failed to merge PDFs.", app.handleRequest(input, null));
+        assertNull(s3.get(OUTPUT_KEY));
+    }
+
+    @Test
+    void continuationKeepsTheTreeMergeLevel() {
+        Map<String, Object> input = new HashMap<>();
+        input.put(MergeRequest.FILE_NAMES, Arrays.asList("temp/report/report_chunk_1.pdf",
+                "temp/report/report_chunk_2.pdf", "temp/report/report_chunk_3.pdf"));
+        input.put(MergeRequest.MERGE_MODE, "partial");
+        input.put(MergeRequest.GROUP_INDEX, 4);
+        MergeRequest request = MergeRequest.fromInput(input);
+        assertEquals("temp/report/checkpoints/report_part_4.pdf", request.checkpointKey());
+
+        MergeRequest resumed = MergeRequest.fromInput(request.continuation(2));
+        assertTrue(resumed.isResumed());
+        assertEquals("temp/report/parts/report_part_4.pdf", resumed.outputKey());
+        assertEquals(Arrays.asList("temp/report/checkpoints/report_part_4.pdf",
+                "temp/report/FINAL_report_chunk_3.pdf"), resumed.sourceKeys());
+
+        // Only compression was left, so the next checkpoint stands for every chunk
+        assertEquals(Collections.singletonList("temp/report/checkpoints/report_part_4.pdf"),
+                MergeRequest.fromInput(resumed.continuation(2)).sourceKeys());
+    }
+
+    private static byte[] sample() throws IOException {
+        try (InputStream in = App.class.getResourceAsStream("/priming-sample.pdf")) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] onePage() throws IOException {
+        try (PDDocument onePage = new PDDocument(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            onePage.addPage(new PDPage());
+            onePage.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static List<String> chunkNames(int chunks) {
+        List<String> names = new ArrayList<>();
+        for (int chunk = 1; chunk <= chunks; chunk++) {
+            names.add(String.format("temp/report/report_chunk_%d.pdf", chunk));
+        }
+        return names;
+    }
+
+    private static String segmentKey(int first, int last) {
+        return String.format("temp/report/checkpoints/report_seg_%d_%d.pdf", first, last);
+    }
+
+    private static JSONObject incremental(App app, int chunk) {
+        Map<String, Object> input = new HashMap<>();
+        input.put(MergeRequest.FILE_NAMES,
+                Collections.singletonList(String.format("temp/report/report_chunk_%d.pdf", chunk)));
+        input.put(MergeRequest.MERGE_MODE, "incremental");
+        return new JSONObject(app.handleRequest(input, null));
+    }
+
+    private static Context remainingTime(int millis) {
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[] { Context.class },
+                (proxy, method, args) -> "getRemainingTimeInMillis".equals(method.getName()) ? millis : null);
+    }
+
+    private static MergerConfig config(Path scratch) {
+        Map<String, String> env = new HashMap<>();
+        env.put(MergerConfig.MERGE_SCRATCH_DIR, scratch.toString());
+        env.put(MergerConfig.DOWNLOAD_MAX_ATTEMPTS, "1");
+        return MergerConfig.fromMap(env);
+    }
+}
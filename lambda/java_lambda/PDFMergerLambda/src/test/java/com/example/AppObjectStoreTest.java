@@ -0,0 +1,97 @@
+package com.example;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests reading chunks through an {@link ObjectStore} other than S3.
+ */
+public class AppObjectStoreTest {
+
+    @Test
+    void mergesChunksDownloadedFromTheStore(@TempDir Path root) throws IOException {
+        mergesChunksReadFromTheStore(MergerConfig.InputMode.FILE, root);
+    }
+
+    @Test
+    void mergesChunksStreamedFromTheStore(@TempDir Path root) throws IOException {
+        mergesChunksReadFromTheStore(MergerConfig.InputMode.STREAM, root);
+    }
+
+    /**
+     * The v2 SDK returns ETags in quotes, the v1 client used for metadata
+     * without; a retry must still find the output up to date.
+     */
+    @Test
+    void retryIsUpToDateWithQuotedETags(@TempDir Path root) throws IOException {
+        byte[] sample;
+        try (InputStream in = App.class.getResourceAsStream("/priming-sample.pdf")) {
+            sample = in.readAllBytes();
+        }
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        Path chunks = Files.createDirectories(root.resolve("null/temp/report"));
+        for (String name : Arrays.asList("FINAL_report_chunk_1.pdf", "FINAL_report_chunk_2.pdf")) {
+            Files.write(chunks.resolve(name), sample);
+            s3.put("temp/report/" + name, sample);
+        }
+        Map<String, String> env = new HashMap<>();
+        env.put(MergerConfig.MERGE_SCRATCH_DIR, Files.createDirectories(root.resolve("scratch")).toString());
+        LocalObjectStore store = new LocalObjectStore(root, s3);
+        App app = new App(s3, store, MergerConfig.fromMap(env));
+        Map<String, Object> input = Collections.singletonMap(MergeRequest.DOCUMENTS,
+                Collections.singletonList(Collections.singletonMap(MergeRequest.FILE_NAMES,
+                        Arrays.asList("temp/report/report_chunk_1.pdf", "temp/report/report_chunk_2.pdf"))));
+
+        JSONObject first = new JSONObject(app.handleRequest(input, null)).getJSONArray("documents").getJSONObject(0);
+        JSONObject retry = new JSONObject(app.handleRequest(input, null)).getJSONArray("documents").getJSONObject(0);
+
+        assertEquals("succeeded", first.getString("status"), first.toString());
+        assertFalse(first.getBoolean("upToDate"));
+        assertTrue(retry.getBoolean("upToDate"));
+        assertEquals(2, store.getReadCount());
+    }
+
+    private static void mergesChunksReadFromTheStore(MergerConfig.InputMode inputMode, Path root)
+            throws IOException {
+        byte[] sample;
+        try (InputStream in = App.class.getResourceAsStream("/priming-sample.pdf")) {
+            sample = in.readAllBytes();
+        }
+        // Tests run without BUCKET_NAME, so chunks are looked up in the "null" bucket
+        Path chunks = Files.createDirectories(root.resolve("null/temp/report"));
+        Files.write(chunks.resolve("FINAL_report_chunk_1.pdf"), sample);
+        Files.write(chunks.resolve("FINAL_report_chunk_2.pdf"), sample);
+        Path scratch = Files.createDirectories(root.resolve("scratch"));
+
+        Map<String, String> env = new HashMap<>();
+        env.put(MergerConfig.MERGE_SCRATCH_DIR, scratch.toString());
+        env.put(MergerConfig.MERGE_INPUT_MODE, inputMode.name());
+        env.put(MergerConfig.DOWNLOAD_MAX_ATTEMPTS, "1");
+        LocalObjectStore store = new LocalObjectStore(root);
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        App app = new App(s3, store, MergerConfig.fromMap(env));
+
+        String result = app.handleRequest(Collections.singletonMap(MergeRequest.FILE_NAMES,
+                Arrays.asList("temp/report/report_chunk_1.pdf", "temp/report/report_chunk_2.pdf")), null);
+
+        assertTrue(result.startsWith("PDFs merged successfully."), result);
+        assertEquals(2, store.getReadCount());
+        try (PDDocument chunk = PDDocument.load(sample);
+                PDDocument merged = PDDocument.load(s3.get("temp/report/merged_report.pdf"))) {
+            assertEquals(2 * chunk.getNumberOfPages(), merged.getNumberOfPages());
+        }
+    }
+}
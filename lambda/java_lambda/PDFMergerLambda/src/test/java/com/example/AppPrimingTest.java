@@ -0,0 +1,37 @@
+package com.example;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the priming run before a SnapStart snapshot.
+ */
+public class AppPrimingTest {
+
+    @Test
+    void primesWithoutTouchingTheRealClientOrTheLogs(@TempDir Path scratch) throws Exception {
+        // AbstractAmazonS3 throws on every call, so any request to the real client fails the test
+        App app = new App(new AbstractAmazonS3() {
+        }, MergerConfig.fromMap(Collections.singletonMap(MergerConfig.MERGE_SCRATCH_DIR, scratch.toString())));
+
+        PrintStream originalOut = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream capture = new PrintStream(captured);
+        System.setOut(capture);
+        try {
+            app.prime(2);
+            assertSame(capture, System.out);
+        } finally {
+            System.setOut(originalOut);
+        }
+        assertEquals("", captured.toString());
+    }
+}
@@ -0,0 +1,146 @@
+package com.example;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the parallel chunk download pool.
+ */
+public class ChunkDownloaderTest {
+
+    /**
+     * Results come back in key order even when later keys finish first.
+     */
+    @Test
+    void resultsFollowKeyOrder() throws IOException {
+        ChunkDownloader downloader = new ChunkDownloader(4, 1);
+        List<String> keys = Arrays.asList("a", "b", "c", "d", "e", "f");
+
+        List<String> results = downloader.fetchAll(keys, key -> {
+            try {
+                // Earlier keys take longer, so completion order is reversed
+                Thread.sleep(10L * ('g' - key.charAt(0)));
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return key.toUpperCase();
+        }, "test.pdf");
+
+        assertEquals(Arrays.asList("A", "B", "C", "D", "E", "F"), results);
+    }
+
+    /**
+     * A transient failure is retried until the attempt limit is reached.
+     */
+    @Test
+    void transientFailuresAreRetried() throws IOException {
+        ChunkDownloader downloader = new ChunkDownloader(2, 3);
+        Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+        List<String> results = downloader.fetchAll(Arrays.asList("x", "y"), key -> {
+            int attempt = attempts.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+            if (key.equals("y") && attempt < 3) {
+                throw new IOException("connection reset");
+            }
+            return key;
+        }, "test.pdf");
+
+        assertEquals(Arrays.asList("x", "y"), results);
+        assertEquals(3, attempts.get("y").get());
+    }
+
+    /**
+     * A missing object fails immediately instead of being retried.
+     */
+    @Test
+    void missingObjectIsNotRetried() {
+        ChunkDownloader downloader = new ChunkDownloader(2, 5);
+        AtomicInteger attempts = new AtomicInteger();
+
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+
+        AmazonS3Exception thrown = assertThrows(AmazonS3Exception.class,
+                () -> downloader.fetchAll(Arrays.asList("missing"), key -> {
+                    attempts.incrementAndGet();
+                    throw notFound;
+                }, "test.pdf"));
+
+        assertSame(notFound, thrown);
+        assertEquals(1, attempts.get());
+    }
+
+    /**
+     * Errors of the asynchronous client are retried on the same terms.
+     */
+    @Test
+    void asyncClientErrorsFollowTheSameRules() {
+        assertFalse(ChunkDownloader.isRetryable((Exception) S3Exception.builder().statusCode(404).build()));
+        assertTrue(ChunkDownloader.isRetryable((Exception) S3Exception.builder().statusCode(503).build()));
+    }
+
+    /**
+     * The first result can be taken while later keys are still downloading.
+     */
+    @Test
+    void earlierResultsAreTakenBeforeLaterOnesFinish() throws IOException {
+        ChunkDownloader downloader = new ChunkDownloader(2, 1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        try (ChunkDownloader.InOrder<String> fetches = downloader.fetchInOrder(Arrays.asList("a", "b"), key -> {
+            if (key.equals("b")) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return key.toUpperCase();
+        }, "test.pdf")) {
+            assertEquals("A", fetches.next());
+            assertFalse(fetches.whenFetched().isDone());
+
+            release.countDown();
+            assertEquals("B", fetches.next());
+            assertFalse(fetches.hasNext());
+            assertEquals(Arrays.asList("A", "B"), fetches.whenFetched().join());
+        }
+    }
+
+    /**
+     * Keys beyond the window are only fetched once earlier results are taken.
+     */
+    @Test
+    void fetchesOnlyAWindowAhead() throws IOException {
+        ChunkDownloader downloader = new ChunkDownloader(4, 1);
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+        try (ChunkDownloader.InOrder<String> fetches = downloader.fetchInOrder(Arrays.asList("a", "b", "c", "d"),
+                key -> {
+                    started.add(key);
+                    return key;
+                }, 2, "test.pdf")) {
+            fetches.result(0).join();
+            fetches.result(1).join();
+            assertEquals(2, started.size());
+            assertFalse(started.contains("c"));
+
+            assertEquals("a", fetches.next());
+            assertEquals("c", fetches.result(2).join());
+            assertEquals(3, started.size());
+        }
+    }
+}
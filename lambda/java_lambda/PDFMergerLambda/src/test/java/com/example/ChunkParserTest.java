@@ -0,0 +1,68 @@
+package com.example;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for parsing chunks ahead of the merge.
+ */
+public class ChunkParserTest {
+
+    /**
+     * Documents come back in chunk order, each parsed from its own chunk.
+     */
+    @Test
+    void parsedChunksFollowMergeOrder() throws IOException {
+        List<PdfChunk> chunks = new ArrayList<>();
+        for (int pages = 1; pages <= 5; pages++) {
+            chunks.add(PdfChunk.ofBytes("chunk_" + pages + ".pdf", pdfWithPages(pages)));
+        }
+        ChunkParser parser = new ChunkParser(3, MergerConfig.FileAccess.MAPPED);
+
+        try (ChunkParser.Ahead parsed = parser.parseAhead(ChunkDownloader.InOrder.of(chunks),
+                MemoryUsageSetting.setupMainMemoryOnly(), 2)) {
+            for (int pages = 1; pages <= 5; pages++) {
+                ChunkParser.Parsed next = parsed.next();
+                try (PDDocument document = next.getDocument()) {
+                    assertEquals("chunk_" + pages + ".pdf", next.getChunk().getKey());
+                    assertEquals(pages, document.getNumberOfPages());
+                }
+            }
+            assertFalse(parsed.hasNext());
+        }
+    }
+
+    /**
+     * A chunk that is not a PDF fails the merge when it is taken.
+     */
+    @Test
+    void parseFailureIsRethrown() {
+        ChunkParser parser = new ChunkParser(1, MergerConfig.FileAccess.MAPPED);
+        List<PdfChunk> chunks = new ArrayList<>();
+        chunks.add(PdfChunk.ofBytes("broken.pdf", new byte[] { 'n', 'o', 't' }));
+
+        try (ChunkParser.Ahead parsed = parser.parseAhead(ChunkDownloader.InOrder.of(chunks),
+                MemoryUsageSetting.setupMainMemoryOnly(), 1)) {
+            assertThrows(IOException.class, parsed::next);
+        }
+    }
+
+    private static byte[] pdfWithPages(int pages) throws IOException {
+        try (PDDocument document = new PDDocument(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            for (int i = 0; i < pages; i++) {
+                document.addPage(new PDPage());
+            }
+            document.save(out);
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the sampling compression predictor.
+ */
+public class CompressionPredictorTest {
+
+    @Test
+    void rejectsLargeNoiseAndAcceptsLargeText() throws IOException {
+        CompressionPredictor predictor = new CompressionPredictor(5, deflaters());
+        byte[] noise = new byte[256 * 1024];
+        new Random(7).nextBytes(noise);
+        byte[] text = "BT /F1 12 Tf 72 712 Td (Accessible PDF content) Tj ET\n".repeat(5000)
+                .getBytes(StandardCharsets.US_ASCII);
+
+        assertFalse(predictor.worthCompressing(stream(noise)));
+        assertTrue(predictor.worthCompressing(stream(text)));
+        // Small streams are left to the full deflate, which is as cheap as a sample
+        assertTrue(predictor.worthCompressing(stream(new byte[1000])));
+    }
+
+    @Test
+    void givesUpOnDocumentsOfIncompressibleStreams() throws IOException {
+        CompressionPredictor predictor = new CompressionPredictor(5, deflaters());
+        Random random = new Random(11);
+        for (int i = 0; i < CompressionPredictor.EARLY_EXIT_STREAMS; i++) {
+            byte[] noise = new byte[64 * 1024];
+            random.nextBytes(noise);
+            assertFalse(predictor.worthCompressing(stream(noise)));
+        }
+        assertTrue(predictor.hasGivenUp());
+
+        // Later large streams are rejected unread, small ones are still accepted
+        byte[] text = "0 0 m 100 100 l S\n".repeat(10000).getBytes(StandardCharsets.US_ASCII);
+        assertFalse(predictor.worthCompressing(stream(text)));
+        assertTrue(predictor.worthCompressing(stream(new byte[1000])));
+    }
+
+    @Test
+    void requiresTheMinimumSaving() {
+        CompressionPredictor predictor = new CompressionPredictor(10, deflaters());
+        assertTrue(predictor.accepts(1000, 900));
+        assertFalse(predictor.accepts(1000, 901));
+        assertFalse(new CompressionPredictor(0, deflaters()).accepts(1000, 1000));
+    }
+
+    private static DeflaterPool deflaters() {
+        return new DeflaterPool(MergerConfig.CompressionPreset.BALANCED, 1);
+    }
+
+    private static COSStream stream(byte[] data) throws IOException {
+        COSStream stream = new COSStream();
+        try (OutputStream os = stream.createRawOutputStream()) {
+            os.write(data);
+        }
+        return stream;
+    }
+}
@@ -0,0 +1,85 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the pooled deflaters and their presets.
+ */
+public class DeflaterPoolTest {
+
+    @Test
+    void reusesDeflatersAcrossStreamTypes() throws DataFormatException {
+        DeflaterPool pool = new DeflaterPool(MergerConfig.CompressionPreset.BALANCED, 2);
+        byte[] text = "BT /F1 12 Tf 72 712 Td (Accessible PDF content) Tj ET\n".repeat(500)
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] samples = new byte[20000];
+        new Random(3).nextBytes(samples);
+
+        for (DeflaterPool.StreamType type : DeflaterPool.StreamType.values()) {
+            assertArrayEquals(text, inflate(pool.deflate(text, type), text.length));
+            assertArrayEquals(samples, inflate(pool.deflate(samples, type), samples.length));
+        }
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(pool.deflate(text, DeflaterPool.StreamType.CONTENT).length,
+                pool.deflatedLength(text, DeflaterPool.StreamType.CONTENT));
+    }
+
+    @Test
+    void presetsTradeSpeedForSize() {
+        byte[] text = new byte[200000];
+        Random random = new Random(5);
+        for (int i = 0; i < text.length; i++) {
+            // Skewed letters with some repetition, like content stream text
+            text[i] = (byte) ('a' + Math.min(25, (int) Math.abs(random.nextGaussian() * 6)));
+        }
+        long fast = new DeflaterPool(MergerConfig.CompressionPreset.FAST, 1)
+                .deflatedLength(text, DeflaterPool.StreamType.CONTENT);
+        long max = new DeflaterPool(MergerConfig.CompressionPreset.MAX, 1)
+                .deflatedLength(text, DeflaterPool.StreamType.CONTENT);
+        assertTrue(max < fast, max + " >= " + fast);
+    }
+
+    @Test
+    void classifiesStreamsByDictionary() {
+        assertEquals(DeflaterPool.StreamType.CONTENT, DeflaterPool.StreamType.of(new COSDictionary()));
+        assertEquals(DeflaterPool.StreamType.CONTENT, DeflaterPool.StreamType.of(dictionary(COSName.FORM)));
+        assertEquals(DeflaterPool.StreamType.IMAGE, DeflaterPool.StreamType.of(dictionary(COSName.IMAGE)));
+        assertEquals(DeflaterPool.StreamType.METADATA,
+                DeflaterPool.StreamType.of(dictionary(COSName.getPDFName("XML"))));
+        COSDictionary trueType = new COSDictionary();
+        trueType.setInt(COSName.LENGTH1, 1000);
+        assertEquals(DeflaterPool.StreamType.FONT, DeflaterPool.StreamType.of(trueType));
+        COSDictionary iccProfile = new COSDictionary();
+        iccProfile.setInt(COSName.N, 3);
+        iccProfile.setItem(COSName.TYPE, COSName.getPDFName("ICCBased"));
+        assertEquals(DeflaterPool.StreamType.OTHER, DeflaterPool.StreamType.of(iccProfile));
+    }
+
+    private static COSDictionary dictionary(COSName subtype) {
+        COSDictionary dictionary = new COSDictionary();
+        dictionary.setItem(COSName.SUBTYPE, subtype);
+        return dictionary;
+    }
+
+    private static byte[] inflate(byte[] data, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[length];
+            assertEquals(length, inflater.inflate(result));
+            assertTrue(inflater.finished());
+            return result;
+        } finally {
+            inflater.end();
+        }
+    }
+}
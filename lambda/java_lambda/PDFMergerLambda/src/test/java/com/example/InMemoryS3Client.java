@@ -0,0 +1,131 @@
+package com.example;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An S3 client that keeps objects in memory, giving each write a new ETag as
+ * S3 does, and a last-modified time one second after the previous write. Uploads small enough for a single {@code putObject} are supported;
+ * multipart uploads are not.
+ */
+final class InMemoryS3Client extends AbstractAmazonS3 {
+
+    private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+    private final Map<String, ObjectMetadata> metadata = new ConcurrentHashMap<>();
+    private final Set<String> uploadedKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger writes = new AtomicInteger();
+    private final AtomicInteger uploads = new AtomicInteger();
+
+    /**
+     * Stores an object directly, as another step of the pipeline would.
+     */
+    void put(String key, byte[] content) {
+        store(key, content, new HashMap<>());
+    }
+
+    /**
+     * @return The content of an object, or {@code null} if there is none.
+     */
+    byte[] get(String key) {
+        return contents.get(key);
+    }
+
+    /**
+     * @return The keys of the objects written through {@code putObject}.
+     */
+    Set<String> getUploadedKeys() {
+        return uploadedKeys;
+    }
+
+    /**
+     * @return The number of {@code putObject} calls.
+     */
+    int getUploadCount() {
+        return uploads.get();
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request) {
+        byte[] content = contents.get(request.getKey());
+        if (content == null) {
+            throw notFound();
+        }
+        S3Object object = new S3Object();
+        object.setKey(request.getKey());
+        object.setObjectMetadata(metadata.get(request.getKey()));
+        object.setObjectContent(new ByteArrayInputStream(content));
+        return object;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        return getObjectMetadata(new GetObjectMetadataRequest(bucketName, key));
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+        ObjectMetadata stored = metadata.get(request.getKey());
+        if (stored == null) {
+            throw notFound();
+        }
+        return stored;
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request) {
+        try {
+            store(request.getKey(), request.getInputStream().readAllBytes(),
+                    new HashMap<>(request.getMetadata().getUserMetadata()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        uploadedKeys.add(request.getKey());
+        uploads.incrementAndGet();
+        return new PutObjectResult();
+    }
+
+    @Override
+    public void deleteObject(String bucketName, String key) {
+        deleteObject(new DeleteObjectRequest(bucketName, key));
+    }
+
+    @Override
+    public void deleteObject(DeleteObjectRequest request) {
+        contents.remove(request.getKey());
+        metadata.remove(request.getKey());
+    }
+
+    private void store(String key, byte[] content, Map<String, String> userMetadata) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength(content.length);
+        int write = writes.incrementAndGet();
+        objectMetadata.setHeader("ETag", "etag-" + write);
+        objectMetadata.setLastModified(new Date(write * 1000L));
+        objectMetadata.setUserMetadata(userMetadata);
+        contents.put(key, content);
+        metadata.put(key, objectMetadata);
+    }
+
+    private static AmazonS3Exception notFound() {
+        AmazonS3Exception exception = new AmazonS3Exception("The specified key does not exist.");
+        exception.setStatusCode(404);
+        return exception;
+    }
+}
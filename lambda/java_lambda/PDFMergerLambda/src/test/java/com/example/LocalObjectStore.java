@@ -0,0 +1,80 @@
+package com.example;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An object store that reads objects from a local directory, with one
+ * subdirectory per bucket, in place of S3. It can report the ETags an S3
+ * client holds for the same keys, quoted as the v2 SDK returns them.
+ */
+final class LocalObjectStore implements ObjectStore {
+
+    private final Path root;
+    private final AmazonS3 eTagSource;
+    private final AtomicInteger reads = new AtomicInteger();
+
+    LocalObjectStore(Path root) {
+        this(root, null);
+    }
+
+    /**
+     * @param root       The directory holding one subdirectory per bucket.
+     * @param eTagSource The client whose ETags are reported, or {@code null}
+     *                   to derive them from the files.
+     */
+    LocalObjectStore(Path root, AmazonS3 eTagSource) {
+        this.root = root;
+        this.eTagSource = eTagSource;
+    }
+
+    /**
+     * @return The number of objects read so far.
+     */
+    int getReadCount() {
+        return reads.get();
+    }
+
+    @Override
+    public PdfChunk download(String bucketName, String key, File destination, SizeCheck sizeCheck)
+            throws IOException {
+        Path source = locate(bucketName, key);
+        sizeCheck.accept(Files.size(source));
+        Files.copy(source, destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        reads.incrementAndGet();
+        return PdfChunk.ofFile(key, destination).withETag(eTagOf(bucketName, key, source));
+    }
+
+    @Override
+    public PdfChunk read(String bucketName, String key) throws IOException {
+        Path source = locate(bucketName, key);
+        reads.incrementAndGet();
+        return PdfChunk.ofBytes(key, Files.readAllBytes(source)).withETag(eTagOf(bucketName, key, source));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Path locate(String bucketName, String key) throws IOException {
+        Path source = root.resolve(String.valueOf(bucketName)).resolve(key);
+        if (!Files.isRegularFile(source)) {
+            throw new FileNotFoundException(source.toString());
+        }
+        return source;
+    }
+
+    private String eTagOf(String bucketName, String key, Path source) throws IOException {
+        if (eTagSource != null) {
+            return "\"" + eTagSource.getObjectMetadata(bucketName, key).getETag() + "\"";
+        }
+        return Files.size(source) + "-" + Files.getLastModifiedTime(source).toMillis();
+    }
+}
@@ -0,0 +1,90 @@
+package com.example;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessBuffer;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for reading staged chunks through a memory mapping.
+ */
+public class MappedRandomAccessReadTest {
+
+    /**
+     * Every read moves through the file as PDFBox's in-memory reader does.
+     */
+    @Test
+    void readsLikeTheBufferedReader(@TempDir Path root) throws IOException {
+        byte[] content = new byte[300];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+        File file = Files.write(root.resolve("chunk.pdf"), content).toFile();
+
+        try (RandomAccessRead mapped = new MappedRandomAccessRead(file);
+                RandomAccessRead expected = new RandomAccessBuffer(content)) {
+            assertEquals(expected.length(), mapped.length());
+            assertEquals(expected.read(), mapped.read());
+            assertEquals(expected.peek(), mapped.peek());
+            assertArrayEquals(expected.readFully(50), mapped.readFully(50));
+
+            expected.seek(290);
+            mapped.seek(290);
+            byte[] expectedTail = new byte[20];
+            byte[] mappedTail = new byte[20];
+            assertEquals(expected.read(expectedTail), mapped.read(mappedTail));
+            assertArrayEquals(expectedTail, mappedTail);
+            assertTrue(mapped.isEOF());
+            assertEquals(-1, mapped.read());
+
+            expected.rewind(4);
+            mapped.rewind(4);
+            assertEquals(expected.getPosition(), mapped.getPosition());
+            assertEquals(expected.available(), mapped.available());
+            assertEquals(expected.read(), mapped.read());
+            assertThrows(EOFException.class, () -> mapped.readFully(10));
+        }
+    }
+
+    @Test
+    void cannotBeReadOnceClosed(@TempDir Path root) throws IOException {
+        File file = Files.write(root.resolve("chunk.pdf"), new byte[10]).toFile();
+        MappedRandomAccessRead mapped = new MappedRandomAccessRead(file);
+
+        mapped.close();
+
+        assertTrue(mapped.isClosed());
+        assertThrows(IOException.class, mapped::read);
+    }
+
+    /**
+     * A staged chunk parses to the same document however it is read.
+     */
+    @Test
+    void stagedChunkParsesTheSameEitherWay(@TempDir Path root) throws IOException {
+        File file = root.resolve("FINAL_doc_chunk_1.pdf").toFile();
+        try (InputStream in = App.class.getResourceAsStream("/priming-sample.pdf")) {
+            Files.copy(in, file.toPath());
+        }
+        PdfChunk chunk = PdfChunk.ofFile("temp/doc/FINAL_doc_chunk_1.pdf", file);
+
+        try (PDDocument mapped = chunk.load(MemoryUsageSetting.setupMainMemoryOnly(),
+                MergerConfig.FileAccess.MAPPED);
+                PDDocument buffered = chunk.load(MemoryUsageSetting.setupMainMemoryOnly(),
+                        MergerConfig.FileAccess.BUFFERED)) {
+            assertEquals(buffered.getNumberOfPages(), mapped.getNumberOfPages());
+            assertEquals(buffered.getDocument().getObjects().size(), mapped.getDocument().getObjects().size());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for reading merge requests and deriving their S3 keys.
+ */
+public class MergeRequestTest {
+
+    @Test
+    void fullMergeReadsFinalCopiesOfChunks() {
+        MergeRequest request = MergeRequest.fromInput(input(null, null,
+                "temp/report/report_chunk_1.pdf", "temp/report/report_chunk_2.pdf"));
+
+        assertEquals(MergeRequest.Mode.FULL, request.getMode());
+        assertEquals(Arrays.asList("temp/report/FINAL_report_chunk_1.pdf", "temp/report/FINAL_report_chunk_2.pdf"),
+                request.sourceKeys());
+        assertEquals("report.pdf", request.baseFileName());
+        assertEquals("temp/report/merged_report.pdf", request.outputKey());
+    }
+
+    @Test
+    void partialMergeWritesNumberedPart() {
+        MergeRequest request = MergeRequest.fromInput(input("partial", 3,
+                "temp/report/report_chunk_31.pdf", "temp/report/report_chunk_32.pdf"));
+
+        assertEquals(MergeRequest.Mode.PARTIAL, request.getMode());
+        assertEquals("temp/report/FINAL_report_chunk_31.pdf", request.sourceKeys().get(0));
+        assertEquals("temp/report/parts/report_part_3.pdf", request.outputKey());
+    }
+
+    @Test
+    void finalMergeReadsPartsAsNamed() {
+        MergeRequest request = MergeRequest.fromInput(input("FINAL", null,
+                "temp/report/parts/report_part_0.pdf", "temp/report/parts/report_part_1.pdf"));
+
+        assertEquals(MergeRequest.Mode.FINAL, request.getMode());
+        assertEquals(request.getFileNames(), request.sourceKeys());
+        assertEquals("report.pdf", request.baseFileName());
+        assertEquals("temp/report/merged_report.pdf", request.outputKey());
+    }
+
+    @Test
+    void rejectsUnknownModeAndMissingGroupIndex() {
+        assertThrows(IllegalArgumentException.class,
+                () -> MergeRequest.fromInput(input("sideways", null, "a_chunk_1.pdf")));
+        assertThrows(IllegalArgumentException.class,
+                () -> MergeRequest.fromInput(input("partial", null, "a_chunk_1.pdf")));
+        assertThrows(IllegalArgumentException.class,
+                () -> MergeRequest.fromInput(input("partial", -1, "a_chunk_1.pdf")));
+    }
+
+    @Test
+    void ordersChunksByTheirNumber() {
+        MergeRequest request = MergeRequest.fromInput(input(null, null, "temp/report/report_chunk_10.pdf",
+                "temp/report/report_chunk_2.pdf", "temp/report/report_chunk_9.pdf", "temp/report/report_chunk_1.pdf",
+                "temp/report/report_chunk_3.pdf", "temp/report/report_chunk_4.pdf", "temp/report/report_chunk_5.pdf",
+                "temp/report/report_chunk_6.pdf", "temp/report/report_chunk_7.pdf", "temp/report/report_chunk_8.pdf"));
+
+        List<String> fileNames = request.getFileNames();
+        assertEquals("temp/report/report_chunk_1.pdf", fileNames.get(0));
+        assertEquals("temp/report/report_chunk_9.pdf", fileNames.get(8));
+        assertEquals("temp/report/report_chunk_10.pdf", fileNames.get(9));
+    }
+
+    @Test
+    void rejectsMissingRepeatedAndForeignChunks() {
+        assertThrows(IllegalArgumentException.class,
+                () -> MergeRequest.fromInput(input(null, null, "a/a_chunk_1.pdf", "a/a_chunk_3.pdf")));
+        assertThrows(IllegalArgumentException.class,
+                () -> MergeRequest.fromInput(input(null, null, "a/a_chunk_2.pdf", "a/a_chunk_3.pdf")));
+        assertThrows(IllegalArgumentException.class,
+                () -> MergeRequest.fromInput(input(null, null, "a/a_chunk_1.pdf", "a/a_chunk_1.pdf")));
+        assertThrows(IllegalArgumentException.class,
+                () -> MergeRequest.fromInput(input(null, null, "a/a_chunk_1.pdf", "b/b_chunk_2.pdf")));
+        assertThrows(IllegalArgumentException.class,
+                () -> MergeRequest.fromInput(input(null, null, "a/a.pdf")));
+        assertThrows(IllegalArgumentException.class,
+                () -> MergeRequest.fromInput(input("final", null, "a/parts/a_part_1.pdf")));
+        // A group of a partial merge starts wherever the group does
+        assertEquals(2, MergeRequest.fromInput(input("partial", 1, "a/a_chunk_5.pdf", "a/a_chunk_4.pdf"))
+                .getFileNames().size());
+    }
+
+    @Test
+    void readsSegmentsInPlaceOfTheirChunks() {
+        List<String> names = Arrays.asList("temp/report/report_chunk_1.pdf", "temp/report/report_chunk_2.pdf",
+                "temp/report/report_chunk_3.pdf", "temp/report/report_chunk_4.pdf", "temp/report/report_chunk_5.pdf");
+        Map<String, Object> input = new HashMap<>();
+        input.put(MergeRequest.FILE_NAMES, names);
+        input.put(MergeRequest.RESUME_FROM, 1);
+        MergeRequest request = MergeRequest.fromInput(input)
+                .withSegments(Arrays.asList(ChunkSegment.of(3, 4)));
+
+        assertEquals(Arrays.asList("temp/report/checkpoints/merged_report.pdf",
+                "temp/report/FINAL_report_chunk_2.pdf", "temp/report/checkpoints/report_seg_3_4.pdf",
+                "temp/report/FINAL_report_chunk_5.pdf"), request.sourceKeys());
+        assertTrue(MergeRequest.isSegmentKey(request.sourceKeys().get(2)));
+        assertFalse(MergeRequest.isSegmentKey(request.sourceKeys().get(0)));
+        // The checkpoint stands for one chunk and the segment for two
+        assertEquals(2, request.mergedFiles(2));
+        assertEquals(4, request.mergedFiles(3));
+        assertEquals(5, request.mergedFiles(4));
+        // A continuation looks the segments up again
+        assertEquals(Arrays.asList("temp/report/checkpoints/merged_report.pdf",
+                "temp/report/FINAL_report_chunk_5.pdf"), MergeRequest.fromInput(request.continuation(3)).sourceKeys());
+    }
+
+    @Test
+    void segmentsAreAlignedBlocksOfChunks() {
+        ChunkSegment chunk = ChunkSegment.chunk(3);
+        assertEquals(ChunkSegment.chunk(4), chunk.sibling());
+        assertEquals(ChunkSegment.of(3, 4), chunk.parent());
+        assertEquals(ChunkSegment.of(1, 2), chunk.parent().sibling());
+        assertEquals(ChunkSegment.of(1, 4), chunk.parent().parent());
+        assertEquals(ChunkSegment.of(5, 8), ChunkSegment.of(1, 4).sibling());
+        assertEquals(ChunkSegment.of(1, 2), ChunkSegment.of(1, 4).firstHalf());
+        assertEquals(ChunkSegment.of(3, 4), ChunkSegment.of(1, 4).secondHalf());
+
+        assertEquals(Arrays.asList(ChunkSegment.of(1, 4), ChunkSegment.of(1, 2)), ChunkSegment.startingAt(1, 6));
+        assertEquals(Arrays.asList(ChunkSegment.of(5, 6)), ChunkSegment.startingAt(5, 6));
+        assertEquals(Arrays.asList(), ChunkSegment.startingAt(2, 6));
+        assertThrows(IllegalArgumentException.class, () -> ChunkSegment.of(2, 3));
+        assertThrows(IllegalArgumentException.class, () -> ChunkSegment.of(1, 3));
+    }
+
+    @Test
+    void readsEveryDocumentOfABatch() {
+        Map<String, Object> batch = new HashMap<>();
+        batch.put(MergeRequest.DOCUMENTS, Arrays.asList(input(null, null, "a/a_chunk_1.pdf"),
+                input("sideways", null, "b/b_chunk_1.pdf")));
+
+        assertTrue(MergeRequest.isBatch(batch));
+        assertFalse(MergeRequest.isBatch(input(null, null, "a/a_chunk_1.pdf")));
+        assertEquals(2, MergeRequest.documentsOf(batch).size());
+        // An invalid document only fails when it is read on its own
+        assertThrows(IllegalArgumentException.class,
+                () -> MergeRequest.fromInput(MergeRequest.documentsOf(batch).get(1)));
+
+        batch.put(MergeRequest.DOCUMENTS, Arrays.asList("a/a_chunk_1.pdf"));
+        assertThrows(IllegalArgumentException.class, () -> MergeRequest.documentsOf(batch));
+    }
+
+    private static Map<String, Object> input(String mode, Integer groupIndex, String... fileNames) {
+        Map<String, Object> input = new HashMap<>();
+        input.put(MergeRequest.FILE_NAMES, Arrays.asList(fileNames));
+        if (mode != null) {
+            input.put(MergeRequest.MERGE_MODE, mode);
+        }
+        if (groupIndex != null) {
+            input.put(MergeRequest.GROUP_INDEX, groupIndex);
+        }
+        return input;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureTreeRoot;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that a two-level tree merge produces the same structure tree as
+ * merging every chunk at once.
+ */
+public class MergedPartStructureTest {
+
+    private static final int CHUNKS = 4;
+
+    @Test
+    void treeMergeMatchesFlatMerge() throws IOException {
+        try (PDDocument flat = new PDDocument();
+                PDDocument first = mergeChunks(0, 2);
+                PDDocument second = mergeChunks(2, 4);
+                PDDocument merged = new PDDocument()) {
+            PDFMergerUtility merger = new PDFMergerUtility();
+            for (int i = 0; i < CHUNKS; i++) {
+                try (PDDocument chunk = createChunk(i)) {
+                    merger.appendDocument(flat, chunk);
+                }
+            }
+
+            try (PDDocument firstPart = reload(first); PDDocument secondPart = reload(second)) {
+                merger.appendDocument(merged, firstPart);
+                assertTrue(MergedPartStructure.unwrapTopDocument(secondPart));
+                merger.appendDocument(merged, secondPart);
+
+                assertEquals(describe(flat), describe(merged));
+                assertEquals(CHUNKS, merged.getNumberOfPages());
+            }
+        }
+    }
+
+    @Test
+    void leavesUntaggedAndAuthoredTreesAlone() throws IOException {
+        try (PDDocument untagged = new PDDocument(); PDDocument chunk = createChunk(0)) {
+            untagged.addPage(new PDPage());
+            assertFalse(MergedPartStructure.unwrapTopDocument(untagged));
+            // A chunk's own /Document element holds content, not merged parts
+            assertFalse(MergedPartStructure.unwrapTopDocument(chunk));
+        }
+    }
+
+    private static PDDocument mergeChunks(int from, int to) throws IOException {
+        PDDocument part = new PDDocument();
+        PDFMergerUtility merger = new PDFMergerUtility();
+        for (int i = from; i < to; i++) {
+            try (PDDocument chunk = createChunk(i)) {
+                merger.appendDocument(part, chunk);
+            }
+        }
+        return part;
+    }
+
+    private static PDDocument reload(PDDocument doc) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        doc.save(out);
+        return PDDocument.load(out.toByteArray());
+    }
+
+    /**
+     * Creates a one-page chunk tagged as /Document containing one paragraph,
+     * with the parent tree PDFBox needs to merge its structure.
+     */
+    private static PDDocument createChunk(int index) {
+        PDDocument doc = new PDDocument();
+        PDPage page = new PDPage();
+        doc.addPage(page);
+
+        PDStructureTreeRoot root = new PDStructureTreeRoot();
+        COSDictionary document = new COSDictionary();
+        document.setItem(COSName.S, COSName.DOCUMENT);
+        document.setItem(COSName.P, root);
+        COSDictionary paragraph = new COSDictionary();
+        paragraph.setItem(COSName.S, COSName.P);
+        paragraph.setItem(COSName.P, document);
+        paragraph.setItem(COSName.PG, page);
+        paragraph.setString(COSName.T, "Paragraph " + index);
+        COSArray documentKids = new COSArray();
+        documentKids.add(paragraph);
+        document.setItem(COSName.K, documentKids);
+        root.setK(document);
+
+        COSArray pageElements = new COSArray();
+        pageElements.add(paragraph);
+        COSArray nums = new COSArray();
+        nums.add(COSInteger.ZERO);
+        nums.add(pageElements);
+        COSDictionary parentTree = new COSDictionary();
+        parentTree.setItem(COSName.NUMS, nums);
+        root.getCOSObject().setItem(COSName.PARENT_TREE, parentTree);
+        root.setParentTreeNextKey(1);
+        page.setStructParents(0);
+        doc.getDocumentCatalog().setStructureTreeRoot(root);
+        return doc;
+    }
+
+    /**
+     * Describes the element types and titles of a structure tree, checking
+     * that every element points back at its parent.
+     */
+    private static String describe(PDDocument doc) {
+        StringBuilder out = new StringBuilder();
+        PDStructureTreeRoot root = doc.getDocumentCatalog().getStructureTreeRoot();
+        describe(root.getK(), root.getCOSObject(), out);
+        return out.toString();
+    }
+
+    private static void describe(Object k, COSDictionary parent, StringBuilder out) {
+        if (k instanceof COSArray) {
+            for (int i = 0; i < ((COSArray) k).size(); i++) {
+                describe(((COSArray) k).getObject(i), parent, out);
+            }
+        } else if (k instanceof COSDictionary) {
+            COSDictionary element = (COSDictionary) k;
+            assertSame(parent, element.getDictionaryObject(COSName.P));
+            out.append(element.getCOSName(COSName.S).getName());
+            if (element.getString(COSName.T) != null) {
+                out.append('(').append(element.getString(COSName.T)).append(')');
+            }
+            out.append('[');
+            describe(element.getDictionaryObject(COSName.K), element, out);
+            out.append(']');
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that phase metrics are written as valid Embedded Metric Format.
+ */
+public class MetricsLoggerTest {
+
+    @Test
+    void emitsEveryRecordedMetricWithItsUnit() {
+        String line = new MetricsLogger("PDFMerger").start("compression", "report.pdf")
+                .bytesIn(2000)
+                .bytesOut(500)
+                .count("StreamsCompressed", 7)
+                .toEmf();
+
+        JSONObject emf = new JSONObject(line);
+        assertEquals("compression", emf.getString("Phase"));
+        assertEquals("report.pdf", emf.getString("Filename"));
+        assertEquals(2000, emf.getLong("BytesIn"));
+        assertEquals(500, emf.getLong("BytesOut"));
+        assertEquals(7, emf.getLong("StreamsCompressed"));
+        assertTrue(emf.getLong("Duration") >= 0);
+        assertTrue(emf.getLong("PeakHeap") > 0);
+
+        JSONObject metadata = emf.getJSONObject("_aws");
+        assertTrue(metadata.getLong("Timestamp") > 0);
+        JSONObject directive = metadata.getJSONArray("CloudWatchMetrics").getJSONObject(0);
+        assertEquals("PDFMerger", directive.getString("Namespace"));
+        assertEquals("Phase", directive.getJSONArray("Dimensions").getJSONArray(0).getString(0));
+
+        Map<String, String> units = new HashMap<>();
+        JSONArray definitions = directive.getJSONArray("Metrics");
+        for (int i = 0; i < definitions.length(); i++) {
+            JSONObject definition = definitions.getJSONObject(i);
+            units.put(definition.getString("Name"), definition.getString("Unit"));
+            // Every declared metric must have a value on the root object
+            assertTrue(emf.has(definition.getString("Name")));
+        }
+        assertEquals("Milliseconds", units.get("Duration"));
+        assertEquals("Bytes", units.get("BytesIn"));
+        assertEquals("Bytes", units.get("PeakHeap"));
+        assertEquals("Count", units.get("StreamsCompressed"));
+    }
+
+    @Test
+    void overlappingPhasesKeepTheirOwnPeak() throws InterruptedException {
+        MetricsLogger metrics = new MetricsLogger("PDFMerger");
+        MetricsLogger.Phase outer = metrics.start("merge", "report.pdf");
+        byte[] held = new byte[32 * 1024 * 1024];
+        // Long enough for the held array to be sampled into the running phase
+        Thread.sleep(10 * MetricsLogger.SAMPLE_INTERVAL_MILLIS);
+        assertTrue(held.length > 0);
+
+        // A phase started later must not lower the peak of the one still running
+        held = null;
+        System.gc();
+        metrics.start("compression", "report.pdf").toEmf();
+        long outerPeak = new JSONObject(outer.toEmf()).getLong("PeakHeap");
+        assertTrue(outerPeak >= 32 * 1024 * 1024, "PeakHeap " + outerPeak);
+    }
+}
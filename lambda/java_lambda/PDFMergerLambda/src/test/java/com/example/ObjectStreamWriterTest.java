@@ -0,0 +1,96 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.RandomAccessBuffer;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureTreeRoot;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the object stream and cross-reference stream writer.
+ */
+public class ObjectStreamWriterTest {
+
+    private static final int PAGES = 20;
+    private static final int STRUCT_ELEMENTS = 3000;
+
+    /**
+     * A tagged document written with object streams parses strictly, keeps
+     * its pages, text, metadata and structure, and is smaller than the
+     * classic PDFBox output.
+     */
+    @Test
+    void writesParsableAndSmallerTaggedDocument() throws IOException {
+        try (PDDocument doc = createTaggedDocument()) {
+            ByteArrayOutputStream classic = new ByteArrayOutputStream();
+            doc.save(classic);
+            String expectedText = new PDFTextStripper().getText(doc);
+
+            ByteArrayOutputStream compact = new ByteArrayOutputStream();
+            new ObjectStreamWriter().write(doc, compact);
+
+            PDFParser parser = new PDFParser(new RandomAccessBuffer(compact.toByteArray()));
+            parser.setLenient(false);
+            parser.parse();
+            try (PDDocument loaded = parser.getPDDocument()) {
+                assertTrue(loaded.getDocument().isXRefStream());
+                assertEquals(PAGES, loaded.getNumberOfPages());
+                assertEquals("Object stream test", loaded.getDocumentInformation().getTitle());
+                assertEquals(expectedText, new PDFTextStripper().getText(loaded));
+
+                PDStructureTreeRoot structTree = loaded.getDocumentCatalog().getStructureTreeRoot();
+                COSArray kids = (COSArray) structTree.getK();
+                assertEquals(STRUCT_ELEMENTS, kids.size());
+                COSDictionary last = (COSDictionary) kids.getObject(STRUCT_ELEMENTS - 1);
+                assertEquals(COSName.P, last.getCOSName(COSName.S));
+            }
+
+            assertTrue(compact.size() < classic.size(),
+                    String.format("Object stream output (%d bytes) should be smaller than classic output (%d bytes)",
+                            compact.size(), classic.size()));
+        }
+    }
+
+    private static PDDocument createTaggedDocument() throws IOException {
+        PDDocument doc = new PDDocument();
+        doc.getDocumentInformation().setTitle("Object stream test");
+        for (int p = 0; p < PAGES; p++) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+                contents.beginText();
+                contents.setFont(PDType1Font.HELVETICA, 12);
+                contents.newLineAtOffset(72, 700);
+                contents.showText("Page " + (p + 1) + " of the object stream test");
+                contents.endText();
+            }
+        }
+
+        PDStructureTreeRoot structTree = new PDStructureTreeRoot();
+        COSArray kids = new COSArray();
+        for (int i = 0; i < STRUCT_ELEMENTS; i++) {
+            COSDictionary element = new COSDictionary();
+            element.setItem(COSName.TYPE, COSName.getPDFName("StructElem"));
+            element.setItem(COSName.S, COSName.P);
+            element.setItem(COSName.P, structTree);
+            element.setItem(COSName.PG, doc.getPage(i % PAGES));
+            element.setInt(COSName.K, i);
+            kids.add(element);
+        }
+        structTree.getCOSObject().setItem(COSName.K, kids);
+        doc.getDocumentCatalog().setStructureTreeRoot(structTree);
+        return doc;
+    }
+}
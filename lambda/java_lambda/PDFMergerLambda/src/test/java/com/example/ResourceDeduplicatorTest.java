@@ -0,0 +1,94 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the resource deduplication pass.
+ */
+public class ResourceDeduplicatorTest {
+
+    /** The resource names PDFBox gives the first and second image drawn on a page. */
+    private static final COSName LOGO = COSName.getPDFName("Im1");
+    private static final COSName PHOTO = COSName.getPDFName("Im2");
+
+    /**
+     * An image copied into every chunk is shared after deduplication, while
+     * images with different pixels stay separate.
+     */
+    @Test
+    void collapsesImagesRepeatedAcrossChunks() throws IOException {
+        List<PDDocument> sources = new ArrayList<>();
+        try (PDDocument destination = new PDDocument()) {
+            PDFMergerUtility merger = new PDFMergerUtility();
+            for (int chunk = 0; chunk < 3; chunk++) {
+                PDDocument source = createChunk(chunk);
+                sources.add(source);
+                merger.appendDocument(destination, source);
+            }
+            assertNotSame(logo(destination, 0), logo(destination, 1));
+
+            DeduplicationResult result = new ResourceDeduplicator().deduplicate(destination.getDocument());
+
+            assertEquals(2, result.getDuplicateCount());
+            assertTrue(result.getBytesRemoved() > 0);
+            assertSame(logo(destination, 0), logo(destination, 1));
+            assertSame(logo(destination, 0), logo(destination, 2));
+            assertNotSame(photo(destination, 0), photo(destination, 1));
+            assertNotSame(photo(destination, 1), photo(destination, 2));
+        } finally {
+            for (PDDocument source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    private static PDDocument createChunk(int chunk) throws IOException {
+        PDDocument doc = new PDDocument();
+        PDPage page = new PDPage();
+        doc.addPage(page);
+        PDImageXObject logo = LosslessFactory.createFromImage(doc, createImage(0x336699));
+        PDImageXObject photo = LosslessFactory.createFromImage(doc, createImage(0x100000 * (chunk + 1)));
+        try (PDPageContentStream contents = new PDPageContentStream(doc, page)) {
+            contents.drawImage(logo, 72, 600);
+            contents.drawImage(photo, 72, 400);
+        }
+        return doc;
+    }
+
+    private static BufferedImage createImage(int rgb) {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                image.setRGB(x, y, rgb + x + y * 64);
+            }
+        }
+        return image;
+    }
+
+    private static Object logo(PDDocument doc, int page) {
+        return xObject(doc, page, LOGO);
+    }
+
+    private static Object photo(PDDocument doc, int page) {
+        return xObject(doc, page, PHOTO);
+    }
+
+    private static Object xObject(PDDocument doc, int page, COSName name) {
+        return doc.getPage(page).getResources().getCOSObject().getCOSDictionary(COSName.XOBJECT)
+                .getDictionaryObject(name);
+    }
+}
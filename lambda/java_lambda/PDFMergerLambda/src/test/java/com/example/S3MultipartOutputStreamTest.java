@@ -0,0 +1,157 @@
+package com.example;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the streaming multipart upload, against an in-memory S3 fake.
+ */
+public class S3MultipartOutputStreamTest {
+
+    private static final int PART_SIZE = 1000;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+    private final FakeS3 s3 = new FakeS3();
+
+    @AfterEach
+    void shutDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void uploadsPartsInOrder() throws IOException {
+        byte[] content = new byte[PART_SIZE * 7 + 123];
+        new Random(42).nextBytes(content);
+
+        S3MultipartOutputStream out = open();
+        // Mix small and large writes so parts fill across write boundaries
+        out.write(content, 0, 10);
+        out.write(content[10]);
+        out.write(content, 11, content.length - 11);
+        out.close();
+
+        assertEquals(8, out.getPartCount());
+        assertEquals(content.length, out.getBytesWritten());
+        assertArrayEquals(content, s3.objects.get("merged.pdf"));
+        assertFalse(s3.aborted);
+    }
+
+    @Test
+    void storesSmallOutputWithSingleRequest() throws IOException {
+        S3MultipartOutputStream out = open();
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+
+        assertEquals(0, out.getPartCount());
+        assertArrayEquals(new byte[] {1, 2, 3}, s3.objects.get("merged.pdf"));
+        assertEquals(0, s3.initiated);
+    }
+
+    @Test
+    void abortDiscardsUploadedParts() throws IOException {
+        S3MultipartOutputStream out = open();
+        out.write(new byte[PART_SIZE * 3]);
+        out.abort();
+
+        assertTrue(s3.aborted);
+        assertFalse(s3.objects.containsKey("merged.pdf"));
+        assertThrows(IOException.class, () -> out.write(1));
+    }
+
+    @Test
+    void failedPartAbortsUploadOnClose() throws IOException {
+        s3.failPart = 2;
+        S3MultipartOutputStream out = open();
+        out.write(new byte[PART_SIZE * 3]);
+
+        assertThrows(RuntimeException.class, out::close);
+        assertTrue(s3.aborted);
+        assertFalse(s3.objects.containsKey("merged.pdf"));
+    }
+
+    private S3MultipartOutputStream open() {
+        return new S3MultipartOutputStream(s3, executor, "bucket", "merged.pdf", PART_SIZE, 2);
+    }
+
+    private static final class FakeS3 extends AbstractAmazonS3 {
+        private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        private final Map<Integer, byte[]> parts = new ConcurrentHashMap<>();
+        private volatile int initiated;
+        private volatile boolean aborted;
+        private volatile int failPart = -1;
+
+        @Override
+        public PutObjectResult putObject(PutObjectRequest request) {
+            objects.put(request.getKey(), read(request.getInputStream()));
+            return new PutObjectResult();
+        }
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            initiated++;
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("upload-1");
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request) {
+            if (request.getPartNumber() == failPart) {
+                throw new IllegalStateException("Part upload failed");
+            }
+            parts.put(request.getPartNumber(), read(request.getInputStream()));
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            ByteArrayOutputStream object = new ByteArrayOutputStream();
+            int expectedPart = 1;
+            for (PartETag partETag : request.getPartETags()) {
+                assertEquals(expectedPart++, partETag.getPartNumber());
+                object.writeBytes(parts.get(partETag.getPartNumber()));
+            }
+            objects.put(request.getKey(), object.toByteArray());
+            return new CompleteMultipartUploadResult();
+        }
+
+        @Override
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+            aborted = true;
+        }
+
+        private static byte[] read(InputStream input) {
+            try {
+                return input.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the per-invocation working directory.
+ */
+public class ScratchSpaceTest {
+
+    @Test
+    void deletesEverythingItHoldsOnClose(@TempDir Path root) throws IOException {
+        ScratchSpace scratch = ScratchSpace.open(root.toFile());
+        File directory = scratch.getDirectory();
+        Files.write(scratch.file("FINAL_doc_chunk_1.pdf").toPath(), new byte[1000]);
+        Files.write(scratch.file("PDFBox123.tmp").toPath(), new byte[500]);
+
+        scratch.close();
+
+        assertFalse(directory.exists());
+        assertEquals(2, scratch.getFilesRemoved());
+        assertEquals(1500, scratch.getPeakBytes());
+        assertTrue(scratch.getUsableBytes() > 0);
+    }
+
+    @Test
+    void sweepsWhatAnInterruptedInvocationLeftBehind(@TempDir Path root) throws IOException {
+        ScratchSpace interrupted = ScratchSpace.open(root.toFile());
+        Files.write(interrupted.file("FINAL_doc_chunk_1.pdf").toPath(), new byte[100]);
+        Path unrelated = Files.write(root.resolve("keep.txt"), new byte[1]);
+
+        try (ScratchSpace next = ScratchSpace.open(root.toFile())) {
+            assertFalse(interrupted.getDirectory().exists());
+            assertTrue(next.getDirectory().isDirectory());
+            assertTrue(Files.exists(unrelated));
+        }
+    }
+
+    @Test
+    void refusesReservationsBeyondTheFreeSpace(@TempDir Path root) throws IOException {
+        try (ScratchSpace scratch = ScratchSpace.open(root.toFile())) {
+            long usable = scratch.getUsableBytes();
+            scratch.reserve(usable / 2, "first.pdf");
+            // The first reservation counts against the second until it is released
+            assertThrows(ScratchSpace.OutOfSpaceException.class, () -> scratch.reserve(usable / 2 + usable / 4,
+                    "second.pdf"));
+            scratch.release(usable / 2);
+            scratch.reserve(usable / 2 + usable / 4, "second.pdf");
+        }
+    }
+
+    @Test
+    void childSharesAccountingAndDeletesOnlyItsOwnFiles(@TempDir Path root) throws IOException {
+        try (ScratchSpace scratch = ScratchSpace.open(root.toFile())) {
+            Files.write(scratch.file("shared.pdf").toPath(), new byte[100]);
+            ScratchSpace child = scratch.child("document-0");
+            Files.write(child.file("FINAL_doc_chunk_1.pdf").toPath(), new byte[400]);
+
+            long usable = scratch.getUsableBytes();
+            child.reserve(usable / 2, "first.pdf");
+            assertThrows(ScratchSpace.OutOfSpaceException.class, () -> scratch.reserve(usable / 2 + usable / 4,
+                    "second.pdf"));
+            child.release(usable / 2);
+
+            child.close();
+            assertFalse(child.getDirectory().exists());
+            assertTrue(scratch.file("shared.pdf").exists());
+            assertEquals(500, scratch.getPeakBytes());
+            assertEquals(1, scratch.getFilesRemoved());
+        }
+    }
+}
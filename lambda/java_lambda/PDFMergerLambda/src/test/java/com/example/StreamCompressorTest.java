@@ -0,0 +1,96 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the parallel stream compression engine.
+ */
+public class StreamCompressorTest {
+
+    /**
+     * Compressible streams are deflated and still decode to their original
+     * content, while incompressible and tiny streams are left unfiltered.
+     */
+    @Test
+    void compressesOnlyStreamsThatShrink() throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            String text = "BT /F1 12 Tf 72 712 Td (Accessible PDF content) Tj ET\n".repeat(200);
+            COSStream[] textStreams = new COSStream[8];
+            for (int i = 0; i < textStreams.length; i++) {
+                textStreams[i] = addPageWithContent(doc, text.getBytes(StandardCharsets.US_ASCII));
+            }
+            byte[] noise = new byte[4096];
+            new Random(42).nextBytes(noise);
+            COSStream noiseStream = addPageWithContent(doc, noise);
+            COSStream tinyStream = addPageWithContent(doc, "q Q".getBytes(StandardCharsets.US_ASCII));
+
+            CompressionResult result = new StreamCompressor(4).compress(doc);
+
+            assertEquals(textStreams.length, result.getCompressedCount());
+            assertEquals(2, result.getSkippedCount());
+            assertTrue(result.getBytesAfter() < result.getBytesBefore());
+            for (COSStream stream : textStreams) {
+                assertEquals(COSName.FLATE_DECODE, stream.getItem(COSName.FILTER));
+                try (InputStream decoded = stream.createInputStream()) {
+                    assertEquals(text, new String(decoded.readAllBytes(), StandardCharsets.US_ASCII));
+                }
+            }
+            assertNull(noiseStream.getItem(COSName.FILTER));
+            assertNull(tinyStream.getItem(COSName.FILTER));
+        }
+    }
+
+    /**
+     * Streams past the streaming threshold are compressed without being read
+     * into memory, and still decode to their original content.
+     */
+    @Test
+    void compressesLargeStreamsThroughFixedBuffers() throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            String line = "0 0 m 612 792 l S 1 0 0 1 72 720 cm BT (Large page) Tj ET\n";
+            String text = line.repeat((int) (2 * StreamCompressor.STREAMING_THRESHOLD / line.length()));
+            COSStream textStream = addPageWithContent(doc, text.getBytes(StandardCharsets.US_ASCII));
+            byte[] samples = new byte[(int) (2 * StreamCompressor.STREAMING_THRESHOLD)];
+            new Random(9).nextBytes(samples);
+            COSStream samplesStream = addPageWithContent(doc, samples);
+
+            CompressionResult result = new StreamCompressor(2).compress(doc);
+
+            assertEquals(1, result.getCompressedCount());
+            assertEquals(text.length(), result.getBytesBefore());
+            assertEquals(COSName.FLATE_DECODE, textStream.getItem(COSName.FILTER));
+            assertEquals(result.getBytesAfter(), textStream.getLength());
+            try (InputStream decoded = textStream.createInputStream()) {
+                assertEquals(text, new String(decoded.readAllBytes(), StandardCharsets.US_ASCII));
+            }
+            assertNull(samplesStream.getItem(COSName.FILTER));
+            try (InputStream raw = samplesStream.createRawInputStream()) {
+                assertArrayEquals(samples, raw.readAllBytes());
+            }
+        }
+    }
+
+    private static COSStream addPageWithContent(PDDocument doc, byte[] content) throws IOException {
+        PDPage page = new PDPage();
+        PDStream stream = new PDStream(doc);
+        try (OutputStream os = stream.getCOSObject().createRawOutputStream()) {
+            os.write(content);
+        }
+        page.setContents(stream);
+        doc.addPage(page);
+        return stream.getCOSObject();
+    }
+}
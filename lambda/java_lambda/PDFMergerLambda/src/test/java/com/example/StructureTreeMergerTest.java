@@ -0,0 +1,206 @@
+package com.example;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDNumberTreeNode;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDParentTreeValue;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureTreeRoot;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationText;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the linear structure tree merge gives the tree PDFBox gives,
+ * with a parent tree that resolves every page and annotation of the result.
+ */
+public class StructureTreeMergerTest {
+
+    @Test
+    void matchesPdfBoxMerge() throws IOException {
+        try (PDDocument expected = new PDDocument(); PDDocument merged = new PDDocument()) {
+            PDFMergerUtility merger = new PDFMergerUtility();
+            StructureTreeMerger structure = new StructureTreeMerger(merged);
+            for (int i = 0; i < 4; i++) {
+                // The second chunk is untagged, so later keys must not collide with its pages
+                try (PDDocument chunk = i == 1 ? createUntaggedChunk() : createChunk(i);
+                        PDDocument copy = i == 1 ? createUntaggedChunk() : createChunk(i)) {
+                    merger.appendDocument(expected, chunk);
+                    structure.append(merger, copy);
+                }
+            }
+            structure.finish();
+
+            assertEquals(describe(expected), describe(merged));
+            assertEquals(6, structure.getParentTreeSize());
+            assertTrue(merged.getDocumentCatalog().getMarkInfo().isMarked());
+            assertResolves(reload(merged));
+        }
+    }
+
+    @Test
+    void buildsBalancedParentTree() throws IOException {
+        // Two parent tree entries per chunk, so the last of five leaves is partly filled
+        int chunks = StructureTreeMerger.MAX_NODE_ENTRIES * 2 + 3;
+        try (PDDocument merged = new PDDocument()) {
+            PDFMergerUtility merger = new PDFMergerUtility();
+            StructureTreeMerger structure = new StructureTreeMerger(merged);
+            for (int i = 0; i < chunks; i++) {
+                try (PDDocument chunk = createChunk(i)) {
+                    structure.append(merger, chunk);
+                }
+            }
+            structure.finish();
+
+            COSDictionary parentTree = merged.getDocumentCatalog().getStructureTreeRoot().getCOSObject()
+                    .getCOSDictionary(COSName.PARENT_TREE);
+            assertNull(parentTree.getDictionaryObject(COSName.LIMITS));
+            COSArray leaves = parentTree.getCOSArray(COSName.KIDS);
+            assertEquals(5, leaves.size());
+            int expectedKey = 0;
+            for (int i = 0; i < leaves.size(); i++) {
+                COSDictionary leaf = (COSDictionary) leaves.getObject(i);
+                COSArray nums = leaf.getCOSArray(COSName.NUMS);
+                COSArray limits = leaf.getCOSArray(COSName.LIMITS);
+                assertEquals(expectedKey, limits.getInt(0));
+                for (int j = 0; j < nums.size(); j += 2) {
+                    assertEquals(expectedKey++, nums.getInt(j));
+                }
+                assertEquals(expectedKey - 1, limits.getInt(1));
+            }
+            assertEquals(2 * chunks, expectedKey);
+            assertResolves(reload(merged));
+        }
+    }
+
+    /**
+     * Checks that the StructParents of every page and the StructParent of
+     * every annotation lead through the parent tree to elements on that
+     * page.
+     */
+    private static void assertResolves(PDDocument doc) throws IOException {
+        try (doc) {
+            PDStructureTreeRoot root = doc.getDocumentCatalog().getStructureTreeRoot();
+            PDNumberTreeNode parentTree = root.getParentTree();
+            for (PDPage page : doc.getPages()) {
+                int key = page.getCOSObject().getInt(COSName.STRUCT_PARENTS, -1);
+                if (key < 0) {
+                    continue;
+                }
+                COSArray elements = (COSArray) ((PDParentTreeValue) parentTree.getValue(key)).getCOSObject();
+                COSDictionary element = (COSDictionary) elements.getObject(0);
+                assertEquals(page.getCOSObject(), element.getDictionaryObject(COSName.PG));
+
+                COSArray annotations = page.getCOSObject().getCOSArray(COSName.ANNOTS);
+                COSDictionary annotation = (COSDictionary) annotations.getObject(0);
+                COSDictionary link = (COSDictionary) ((PDParentTreeValue) parentTree
+                        .getValue(annotation.getInt(COSName.STRUCT_PARENT))).getCOSObject();
+                COSDictionary objectReference = (COSDictionary) link.getCOSArray(COSName.K).getObject(0);
+                assertEquals(annotation, objectReference.getDictionaryObject(COSName.OBJ));
+            }
+        }
+    }
+
+    private static PDDocument reload(PDDocument doc) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        doc.save(out);
+        return PDDocument.load(out.toByteArray());
+    }
+
+    private static PDDocument createUntaggedChunk() {
+        PDDocument doc = new PDDocument();
+        doc.addPage(new PDPage());
+        return doc;
+    }
+
+    /**
+     * Creates a one-page chunk tagged as /Document, holding a paragraph of
+     * page content and an annotation tagged through an object reference.
+     */
+    private static PDDocument createChunk(int index) throws IOException {
+        PDDocument doc = new PDDocument();
+        PDPage page = new PDPage();
+        doc.addPage(page);
+        PDAnnotationText annotation = new PDAnnotationText();
+        page.getAnnotations().add(annotation);
+
+        PDStructureTreeRoot root = new PDStructureTreeRoot();
+        COSDictionary document = new COSDictionary();
+        document.setItem(COSName.S, COSName.DOCUMENT);
+        document.setItem(COSName.P, root);
+        COSDictionary paragraph = new COSDictionary();
+        paragraph.setItem(COSName.S, COSName.P);
+        paragraph.setItem(COSName.P, document);
+        paragraph.setItem(COSName.PG, page);
+        paragraph.setString(COSName.T, "Paragraph " + index);
+        COSDictionary link = new COSDictionary();
+        link.setItem(COSName.S, COSName.getPDFName("Annot"));
+        link.setItem(COSName.P, document);
+        link.setItem(COSName.PG, page);
+        COSDictionary objectReference = new COSDictionary();
+        objectReference.setItem(COSName.TYPE, COSName.getPDFName("OBJR"));
+        objectReference.setItem(COSName.OBJ, annotation);
+        COSArray linkKids = new COSArray();
+        linkKids.add(objectReference);
+        link.setItem(COSName.K, linkKids);
+        COSArray documentKids = new COSArray();
+        documentKids.add(paragraph);
+        documentKids.add(link);
+        document.setItem(COSName.K, documentKids);
+        root.setK(document);
+
+        COSArray pageElements = new COSArray();
+        pageElements.add(paragraph);
+        COSArray nums = new COSArray();
+        nums.add(COSInteger.ZERO);
+        nums.add(pageElements);
+        nums.add(COSInteger.ONE);
+        nums.add(link);
+        COSDictionary parentTree = new COSDictionary();
+        parentTree.setItem(COSName.NUMS, nums);
+        root.getCOSObject().setItem(COSName.PARENT_TREE, parentTree);
+        root.setParentTreeNextKey(2);
+        page.setStructParents(0);
+        annotation.setStructParent(1);
+        doc.getDocumentCatalog().setStructureTreeRoot(root);
+        return doc;
+    }
+
+    private static String describe(PDDocument doc) {
+        StringBuilder out = new StringBuilder();
+        PDStructureTreeRoot root = doc.getDocumentCatalog().getStructureTreeRoot();
+        describe(root.getK(), root.getCOSObject(), out);
+        return out.toString();
+    }
+
+    private static void describe(COSBase k, COSDictionary parent, StringBuilder out) {
+        if (k instanceof COSArray) {
+            for (int i = 0; i < ((COSArray) k).size(); i++) {
+                describe(((COSArray) k).getObject(i), parent, out);
+            }
+        } else if (k instanceof COSDictionary) {
+            COSDictionary element = (COSDictionary) k;
+            if (element.getCOSName(COSName.S) == null) {
+                out.append("OBJR");
+                return;
+            }
+            assertSame(parent, element.getDictionaryObject(COSName.P));
+            out.append(element.getCOSName(COSName.S).getName());
+            if (element.getString(COSName.T) != null) {
+                out.append('(').append(element.getString(COSName.T)).append(')');
+            }
+            out.append('[');
+            describe(element.getDictionaryObject(COSName.K), element, out);
+            out.append(']');
+        }
+    }
+}